@@ -46,13 +46,16 @@ async function create_tables() {
     );')
 
   //recommendations table: contains personal recommendation info, to be populated by algorithm
+  // keyed by (person, recommendation), so the ranking jobs' upserts replace a row instead of adding one
   await dbaccess.create_tables('CREATE TABLE IF NOT EXISTS recommendations ( \
-      person INT, \
-      recommendation INT, \
+      person INT NOT NULL, \
+      recommendation INT NOT NULL, \
       strength INT, \
       FOREIGN KEY (person) REFERENCES users(user_id), \
-      FOREIGN KEY (recommendation) REFERENCES users(user_id) \
+      FOREIGN KEY (recommendation) REFERENCES users(user_id), \
+      PRIMARY KEY (person, recommendation) \
       );')
+  await addRecommendationsKey();
   
   await dbaccess.create_tables('CREATE TABLE IF NOT EXISTS friend_requests ( \
       friend_request_id INT NOT NULL AUTO_INCREMENT, \
@@ -170,6 +173,8 @@ async function create_tables() {
   await createIndex('idx_users_username', 'users', 'username');
   await createIndex('idx_chat_members_user_id_left_at', 'chat_members', 'user_id, left_at');
   await createIndex('idx_friends_follower_followed', 'friends', 'follower, followed');
+  // the ranking jobs read likes in user_id ranges; covering, so they never touch the table rows
+  await createIndex('idx_likes_user_id_post_id', 'likes', 'user_id, post_id');
   await createIndex('idx_posts_author_uname', 'posts', 'author_username');
   await createIndex('idx_chat_messages_sent', 'chat_messages', 'chat_id, sent_at');
   await createIndex('idx_chat_invites_invitee', 'chat_invites', 'recipient_id');
@@ -185,6 +190,33 @@ async function create_tables() {
   return null;
 }
 
+// A recommendations table created before it had a key may hold duplicate rows: copy it into a
+// keyed table, keeping the strongest row of each (person, recommendation), and swap that in
+async function addRecommendationsKey() {
+  const [keys] = await dbaccess.send_sql('SELECT COUNT(*) AS count FROM information_schema.TABLE_CONSTRAINTS \
+    WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = \'recommendations\' AND CONSTRAINT_TYPE = \'PRIMARY KEY\'');
+  if (keys[0].count > 0) {
+    return;
+  }
+  console.log('Adding the primary key of recommendations');
+  await dbaccess.send_sql('DROP TABLE IF EXISTS recommendations_keyed');
+  await dbaccess.send_sql('CREATE TABLE recommendations_keyed ( \
+      person INT NOT NULL, \
+      recommendation INT NOT NULL, \
+      strength INT, \
+      FOREIGN KEY (person) REFERENCES users(user_id), \
+      FOREIGN KEY (recommendation) REFERENCES users(user_id), \
+      PRIMARY KEY (person, recommendation) \
+      );');
+  await dbaccess.send_sql('INSERT INTO recommendations_keyed (person, recommendation, strength) \
+    SELECT person, recommendation, MAX(strength) FROM recommendations \
+    WHERE person IS NOT NULL AND recommendation IS NOT NULL \
+    GROUP BY person, recommendation');
+  await dbaccess.send_sql('RENAME TABLE recommendations TO recommendations_unkeyed, \
+    recommendations_keyed TO recommendations');
+  await dbaccess.send_sql('DROP TABLE recommendations_unkeyed');
+}
+
 async function createIndex(indexName, tableName, columns) {
   try {
     await dbaccess.send_sql(`CREATE INDEX ${indexName} ON ${tableName}(${columns});`);
@@ -0,0 +1,105 @@
+package instalite.ranking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import instalite.ranking.adsorption.AdsorptionEngine;
+import instalite.ranking.adsorption.FeedRankJob;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.spark.SparkJob;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.SerializablePair;
+
+/**
+ * Runs FeedRankJob with several adsorption engines on the same input and compares their
+ * wall-clock times and results. Nothing is written to MySQL.
+ *
+ * Usage: AdsorptionBenchmark [d_max] [i_max] [engines, e.g. join,dataset] [rounds]
+ *
+ * Every round runs each engine once, in order, in the same Spark session. Warm starts,
+ * saved label state and checkpoints are turned off so every run starts from the same
+ * labels; set SNAPSHOT_DIR so every run reads the same snapshot of the tables. Each run
+ * also writes its usual metrics report (see Config.RUN_REPORT_DIR) with stage timings.
+ */
+public class AdsorptionBenchmark {
+    static Logger logger = LogManager.getLogger(AdsorptionBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigSingleton.getInstance();
+
+        double d_max = (args.length > 0) ? Double.parseDouble(args[0]) : 1;
+        int i_max = (args.length > 1) ? Integer.parseInt(args[1]) : 15;
+        String[] engineNames = ((args.length > 2) ? args[2] : "join,dataset").split(",");
+        int rounds = (args.length > 3) ? Integer.parseInt(args[3]) : 3;
+
+        Config.WARM_START = false;
+        Config.LABEL_STATE_DIR = null;
+        Config.CHECKPOINT_DIR = null;
+
+        FlexibleLogger rankLogger = new FlexibleLogger(LogManager.getLogger(SparkJob.class), true, false);
+        List<AdsorptionEngine.Type> engines = new ArrayList<>();
+        for (String name : engineNames)
+            engines.add(AdsorptionEngine.Type.fromName(name));
+
+        Map<AdsorptionEngine.Type, List<Long>> times = new HashMap<>();
+        Map<AdsorptionEngine.Type, Map<String, Double>> results = new HashMap<>();
+        FeedRankJob job = null;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (AdsorptionEngine.Type engine : engines) {
+                    job = new FeedRankJob(d_max, i_max, true, false, rankLogger, config);
+                    job.setEngine(engine);
+
+                    // call() runs the job without closing the shared session, unlike mainLogic()
+                    long start = System.currentTimeMillis();
+                    List<SerializablePair<String, SerializablePair<String, Double>>> recommendations = job.call(null);
+                    long elapsed = System.currentTimeMillis() - start;
+
+                    times.computeIfAbsent(engine, e -> new ArrayList<>()).add(elapsed);
+                    results.put(engine, toMap(recommendations));
+                    logger.info("Round " + round + ", " + engine + ": " + elapsed + " ms");
+                }
+            }
+        } finally {
+            if (job != null)
+                job.shutdown();
+        }
+
+        Map<String, Double> baseline = results.get(engines.get(0));
+        for (AdsorptionEngine.Type engine : engines) {
+            List<Long> engineTimes = times.get(engine);
+            Collections.sort(engineTimes);
+            logger.info(String.format("%-8s min %6d ms, median %6d ms, %d recommendations, max difference to %s: %g",
+                engine, engineTimes.get(0), engineTimes.get(engineTimes.size() / 2), results.get(engine).size(),
+                engines.get(0), maxDifference(baseline, results.get(engine))));
+        }
+        logger.info("Runs per engine (ms): " + times);
+    }
+
+    // (user, ("post:[postId]", weight)) -> {"user post:[postId]": weight}
+    private static Map<String, Double> toMap(List<SerializablePair<String, SerializablePair<String, Double>>> recs) {
+        Map<String, Double> weights = new HashMap<>();
+        for (SerializablePair<String, SerializablePair<String, Double>> rec : recs)
+            weights.merge(rec.getLeft() + " " + rec.getRight().getLeft(), rec.getRight().getRight(), Double::sum);
+        return weights;
+    }
+
+    // Largest weight difference over the entries of either map (missing entries weigh 0)
+    private static double maxDifference(Map<String, Double> a, Map<String, Double> b) {
+        double max = 0;
+        for (Map.Entry<String, Double> entry : a.entrySet())
+            max = Math.max(max, Math.abs(entry.getValue() - b.getOrDefault(entry.getKey(), 0.0)));
+        for (Map.Entry<String, Double> entry : b.entrySet()) {
+            if (!a.containsKey(entry.getKey()))
+                max = Math.max(max, Math.abs(entry.getValue()));
+        }
+        return max;
+    }
+}
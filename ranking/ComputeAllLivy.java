@@ -0,0 +1,84 @@
+package instalite.ranking;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.livy.JobHandle;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import instalite.ranking.adsorption.AdsorptionEngine;
+import instalite.ranking.adsorption.FeedRankJob;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.friends.FriendsOfFriendsJob;
+import instalite.ranking.pipeline.PipelineReport;
+import instalite.ranking.pipeline.RankingPipelineJob;
+import instalite.ranking.spark.LivySessionManager;
+import instalite.ranking.spark.SparkJob;
+import instalite.ranking.utils.FlexibleLogger;
+
+/**
+ * ComputeAllLivy
+ * Runs the feed ranking (ComputeRanksLivy) and the friend recommendations (ComputeRecsLivy)
+ * as one RankingPipelineJob in the warm Livy session, so the source tables are loaded once
+ * for both and stages whose inputs have not changed since their last run are skipped. The
+ * rankings are written to MySQL by the cluster; the recommendations are stored from here
+ * once they are back. With RESULT_HANDOFF_DIR set, both results are handed off as Parquet
+ * files instead and streamed into MySQL from here.
+ *
+ * Usage: ComputeAllLivy [d_max] [i_max] [debug] [--force]. The `LIVY_HOST` environment variable must be set.
+ */
+public class ComputeAllLivy {
+    static Logger logger = LogManager.getLogger(ComputeAllLivy.class);
+
+    public static void main(String[] args)
+            throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        Config config = ConfigSingleton.getInstance();
+
+        // Check so we'll fatally exit if the environment isn't set
+        if (config.LIVY_HOST == null) {
+            logger.error("LIVY_HOST not set -- update your .env and run source .env");
+            System.exit(-1);
+        }
+
+        double d_max = (args.length > 0) ? Double.parseDouble(args[0]) : 1;
+        int i_max = (args.length > 1) ? Integer.parseInt(args[1]) : 25;
+        boolean debug = args.length > 2 && !args[2].equals("--force");
+        boolean force = Arrays.asList(args).contains("--force");
+
+        String livy = SparkJob.getLivyUrl(new String[0]);
+        FlexibleLogger logger = new FlexibleLogger(null, false, debug);
+
+        boolean handoff = Config.RESULT_HANDOFF_DIR != null;
+        FeedRankJob rankJob = new FeedRankJob(d_max, i_max, false, debug, logger, config);
+        rankJob.setEngine(AdsorptionEngine.Type.fromName(Config.ADSORPTION_ENGINE));
+        // Rankings go straight from the executors into post_rankings, unless handed off
+        rankJob.setWriteRankings(!handoff);
+        FriendsOfFriendsJob recsJob = new FriendsOfFriendsJob(false, debug, logger, config);
+        RankingPipelineJob pipelineJob = new RankingPipelineJob(rankJob, recsJob, false, debug, logger, config);
+        pipelineJob.setResultHandoff(handoff);
+        pipelineJob.setForce(force);
+
+        try (LivySessionManager session = LivySessionManager.open(livy)) {
+            JobHandle<PipelineReport> pipeline = session.submit("pipeline", pipelineJob);
+            session.await(Collections.singletonMap("pipeline", pipeline), 10000);
+
+            PipelineReport report = pipeline.get();
+            logger.info("*** Finished social network ranking and getting recs! *** " + report);
+            // A stage's inputs are only remembered once its results are stored, so if loading
+            // or storing throws here the stage runs again next time
+            if (report.getManifest(RankingPipelineJob.FEED_RANK) != null)
+                FeedRankJob.loadRankings(report.getManifest(RankingPipelineJob.FEED_RANK), logger);
+            RankingPipelineJob.commit(report, RankingPipelineJob.FEED_RANK);
+            if (report.getManifest(RankingPipelineJob.FRIENDS_OF_FRIENDS) != null)
+                FriendsOfFriendsJob.loadRecommendations(report.getManifest(RankingPipelineJob.FRIENDS_OF_FRIENDS), logger);
+            else if (report.ran(RankingPipelineJob.FRIENDS_OF_FRIENDS))
+                ComputeRecsLivy.storeRecommendations(report.getRecommendations(), logger);
+            RankingPipelineJob.commit(report, RankingPipelineJob.FRIENDS_OF_FRIENDS);
+        }
+    }
+}
@@ -6,29 +6,27 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
-import java.lang.ClassNotFoundException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import instalite.ranking.config.Config;
 import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.adsorption.AdsorptionEngine;
 import instalite.ranking.adsorption.FeedRankJob;
 import instalite.ranking.utils.SerializablePair;
 
 import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.spark.HandoffJob;
+import instalite.ranking.spark.LivySessionManager;
 import instalite.ranking.spark.SparkJob;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;  // If you're reading results
-import java.sql.SQLException;  // For exception handling
+import instalite.ranking.writer.ResultManifest;
 
 /**
  * ComputeRanksLivy
@@ -45,9 +43,52 @@ public class ComputeRanksLivy {
     public static List<SerializablePair<String, SerializablePair<String, Double>>> callLivy(
         String livy, FlexibleLogger logger, Config config, double d_max, int i_max, boolean debug)
         throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        return callLivy(livy, logger, config, d_max, i_max, debug,
+            AdsorptionEngine.Type.fromName(Config.ADSORPTION_ENGINE));
+    }
+
+    /**
+     * Call Livy with a chosen adsorption engine
+     */
+    public static List<SerializablePair<String, SerializablePair<String, Double>>> callLivy(
+        String livy, FlexibleLogger logger, Config config, double d_max, int i_max, boolean debug,
+        AdsorptionEngine.Type engine)
+        throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        return callLivy(livy, logger, config, d_max, i_max, debug, engine, false);
+    }
+
+    /**
+     * Call Livy with a chosen adsorption engine, optionally storing the rankings in
+     * post_rankings (the returned list is then empty): with Config.RESULT_HANDOFF_DIR set the
+     * cluster hands them off as Parquet files that are loaded from here, otherwise the
+     * cluster writes them itself
+     */
+    public static List<SerializablePair<String, SerializablePair<String, Double>>> callLivy(
+        String livy, FlexibleLogger logger, Config config, double d_max, int i_max, boolean debug,
+        AdsorptionEngine.Type engine, boolean writeRankings)
+        throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        try (LivySessionManager session = LivySessionManager.open(livy)) {
+            return callLivy(session, logger, config, d_max, i_max, debug, engine, writeRankings);
+        }
+    }
+
+    /**
+     * Same as above, in a Livy session the caller keeps open (e.g. RankingScheduler's)
+     */
+    public static List<SerializablePair<String, SerializablePair<String, Double>>> callLivy(
+        LivySessionManager session, FlexibleLogger logger, Config config, double d_max, int i_max, boolean debug,
+        AdsorptionEngine.Type engine, boolean writeRankings)
+        throws IOException, InterruptedException, ExecutionException {
         FeedRankJob job = new FeedRankJob(d_max, i_max, false, debug, logger, config);
+        job.setEngine(engine);
 
-        return SparkJob.runJob(livy, job);
+        if (writeRankings && Config.RESULT_HANDOFF_DIR != null) {
+            ResultManifest manifest = SparkJob.runJob(session, new HandoffJob(job, logger, config, false, debug));
+            FeedRankJob.loadRankings(manifest, logger);
+            return new ArrayList<>();
+        }
+        job.setWriteRankings(writeRankings);
+        return SparkJob.runJob(session, job);
     }
 
     public static void main(String[] args)
@@ -87,44 +128,11 @@ public class ComputeRanksLivy {
         String livy = SparkJob.getLivyUrl(args);
         FlexibleLogger logger = new FlexibleLogger(null, false, debug);
 
-        List<SerializablePair<String, SerializablePair<String, Double>>> topPosts = callLivy(livy, logger, config, d_max, i_max, debug);
-  
-        logger.info("*** Finished social network ranking! ***");
-
-        // MySQL connection setup
-        String url = "jdbc:mysql://" + Config.MYSQL_HOST + ":" + Config.MYSQL_PORT + "/" + Config.MYSQL_DATABASE;
-
-        String query = "INSERT INTO post_rankings (user_id, post_id, weight) VALUES (?, ?, ?) "
-            + "ON DUPLICATE KEY UPDATE weight = VALUES(weight)";
-
-        try {
-            // Explicitly load the MySQL JDBC driver
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            Connection conn = DriverManager.getConnection(url, Config.MYSQL_USER, Config.MYSQL_PASSWORD);
-            PreparedStatement statement = conn.prepareStatement(query);
-
-            for (SerializablePair<String, SerializablePair<String, Double>> item : topPosts) {
-                logger.info("post item: " + item.getLeft() + "\t" + item.getRight().getLeft() + "\t" + item.getRight().getRight());
-                int postId = Integer.parseInt(item.getRight().getLeft().substring(5));  // will be "post:[postId]" --> postId
-                int userId = Integer.parseInt(item.getLeft());
-                float weight = item.getRight().getRight().floatValue();
-
-                statement.setInt(1, postId);
-                statement.setInt(2, userId);
-                statement.setFloat(3, weight);
-                statement.addBatch();
-            }
-            statement.executeBatch();
-            logger.info("Stored " + topPosts.size() + " items in post_rankings table");
-        } catch (SQLException ex) {
-            logger.info("error with sql"); 
-            ex.printStackTrace();
-        } catch(ClassNotFoundException ex) {
-            logger.info("class not found");
-            ex.printStackTrace();
-        }
+        // Rankings go straight from the executors into post_rankings, or through handed off files
+        callLivy(livy, logger, config, d_max, i_max, debug, AdsorptionEngine.Type.fromName(Config.ADSORPTION_ENGINE),
+            true);
 
+        logger.info("*** Finished social network ranking! ***");
     }
 
 }
@@ -11,7 +11,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
-import java.lang.ClassNotFoundException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -22,13 +21,10 @@ import instalite.ranking.friends.FriendsOfFriendsJob;
 import instalite.ranking.utils.SerializablePair;
 
 import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.spark.HandoffJob;
+import instalite.ranking.spark.LivySessionManager;
 import instalite.ranking.spark.SparkJob;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;  // If you're reading results
-import java.sql.SQLException;  // For exception handling
+import instalite.ranking.writer.ResultManifest;
 
 /** ComputeRecsLivy
  * The class uses the Apache Livy library to submit and execute the jobs on a Livy server.
@@ -49,6 +45,45 @@ public class ComputeRecsLivy {
         return SparkJob.runJob(livy, job);
     }
 
+    /**
+     * Same as above, in a Livy session the caller keeps open (e.g. RankingScheduler's)
+     */
+    public static List<SerializablePair<SerializablePair<String, String>, Integer>> callLivy(
+        LivySessionManager session, FlexibleLogger logger, Config config, boolean debug)
+        throws InterruptedException, ExecutionException {
+        FriendsOfFriendsJob job = new FriendsOfFriendsJob(false, debug, logger, config);
+
+        return SparkJob.runJob(session, job);
+    }
+
+    /**
+     * Call Livy and store the recommendations in the recommendations table: with
+     * Config.RESULT_HANDOFF_DIR set the cluster hands them off as Parquet files that are
+     * loaded from here, otherwise they come back and are stored from here
+     *
+     * @throws IOException if they cannot be stored (after retries)
+     */
+    public static void callLivyAndStore(String livy, FlexibleLogger logger, Config config, boolean debug)
+        throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        try (LivySessionManager session = LivySessionManager.open(livy)) {
+            callLivyAndStore(session, logger, config, debug);
+        }
+    }
+
+    /**
+     * Same as above, in a Livy session the caller keeps open (e.g. RankingScheduler's)
+     */
+    public static void callLivyAndStore(LivySessionManager session, FlexibleLogger logger, Config config,
+        boolean debug) throws IOException, InterruptedException, ExecutionException {
+        if (Config.RESULT_HANDOFF_DIR != null) {
+            FriendsOfFriendsJob job = new FriendsOfFriendsJob(false, debug, logger, config);
+            ResultManifest manifest = SparkJob.runJob(session, new HandoffJob(job, logger, config, false, debug));
+            FriendsOfFriendsJob.loadRecommendations(manifest, logger);
+        } else {
+            storeRecommendations(callLivy(session, logger, config, debug), logger);
+        }
+    }
+
     public static void main(String[] args)
             throws IOException, URISyntaxException, InterruptedException, ExecutionException {
         boolean debug;
@@ -71,44 +106,19 @@ public class ComputeRecsLivy {
         String livy = SparkJob.getLivyUrl(args);
         FlexibleLogger logger = new FlexibleLogger(null, false, debug);
 
-        List<SerializablePair<SerializablePair<String, String>, Integer>> recs = callLivy(livy, logger, config, debug);
-  
-        logger.info("*** Finished getting recs! ***");
+        callLivyAndStore(livy, logger, config, debug);
 
-        // MySQL connection setup
-        String url = "jdbc:mysql://" + Config.MYSQL_HOST + ":" + Config.MYSQL_PORT + "/" + Config.MYSQL_DATABASE;
-
-        String query = "INSERT INTO recommendations (person, recommendation, strength) VALUES (?, ?, ?) "
-            + "ON DUPLICATE KEY UPDATE strength = VALUES(strength)";
-
-        try {
-            // Explicitly load the MySQL JDBC driver
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            Connection conn = DriverManager.getConnection(url, Config.MYSQL_USER, Config.MYSQL_PASSWORD);
-            PreparedStatement statement = conn.prepareStatement(query);
-
-            for (SerializablePair<SerializablePair<String, String>, Integer> item : recs) {
-                logger.info("rec item: " + item.getLeft().getLeft() + "\t" + item.getLeft().getRight() + "\t" + item.getRight());
-                int userId = Integer.parseInt(item.getLeft().getLeft());
-                int recUserId = Integer.parseInt(item.getLeft().getRight());
-                int strength = item.getRight();
-
-                statement.setInt(1, userId);
-                statement.setInt(2, recUserId);
-                statement.setInt(3, strength);
-                statement.addBatch();
-            }
-            statement.executeBatch();
-            logger.info("Stored " + recs.size() + " items in recommendations table");
-        } catch (SQLException ex) {
-            logger.info("error with sql"); 
-            ex.printStackTrace();
-        } catch(ClassNotFoundException ex) {
-            logger.info("class not found");
-            ex.printStackTrace();
-        }
+        logger.info("*** Finished getting recs! ***");
+    }
 
+    /**
+     * Store ((user, recommended_user), strength) recommendations in the recommendations table
+     *
+     * @throws IOException if they cannot be stored (after retries)
+     */
+    public static void storeRecommendations(List<SerializablePair<SerializablePair<String, String>, Integer>> recs,
+        FlexibleLogger logger) throws IOException, InterruptedException {
+        FriendsOfFriendsJob.storeRecommendations(recs, logger);
     }
 
 }
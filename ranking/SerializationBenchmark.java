@@ -0,0 +1,188 @@
+package instalite.ranking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.serializer.DeserializationStream;
+import org.apache.spark.serializer.JavaSerializer;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.serializer.Serializer;
+
+import instalite.ranking.adsorption.AdsorptionEngine;
+import instalite.ranking.adsorption.DegreeCounts;
+import instalite.ranking.adsorption.FeedRankJob;
+import instalite.ranking.adsorption.FrontierState;
+import instalite.ranking.adsorption.LabelVector;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.graph.NodeDictionary;
+import instalite.ranking.graph.NodeType;
+import instalite.ranking.metrics.StageTimingListener;
+import instalite.ranking.spark.RankingKryoRegistrator;
+import instalite.ranking.spark.SparkConnector;
+import instalite.ranking.spark.SparkJob;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.SerializablePair;
+import scala.Tuple2;
+import scala.reflect.ClassTag$;
+
+/**
+ * Compares Java serialization with Kryo (see RankingKryoRegistrator) for the records the
+ * ranking jobs shuffle, in two parts:
+ *
+ * 1. Records: writes the same synthetic records of each shape (weighted edges, label
+ * vectors, frontier states, degree counts, friend recommendations, collected results)
+ * through both serializers' streams, as a shuffle write does, and reports bytes per
+ * record and write and read time.
+ *
+ * 2. FeedRankJob: runs the ranking once with each serializer, in a fresh Spark session
+ * each (the serializer is fixed when the context starts), and reports the shuffle bytes
+ * written and read, shuffle write time and wall-clock time over all stages. Set
+ * SNAPSHOT_DIR so both runs read the same snapshot of the tables. Nothing is written to
+ * MySQL.
+ *
+ * Usage: SerializationBenchmark [records] [d_max] [i_max] [engine] (records only if i_max is 0)
+ */
+public class SerializationBenchmark {
+    static Logger logger = LogManager.getLogger(SerializationBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigSingleton.getInstance();
+
+        int records = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        double d_max = (args.length > 1) ? Double.parseDouble(args[1]) : 1;
+        int i_max = (args.length > 2) ? Integer.parseInt(args[2]) : 15;
+        AdsorptionEngine.Type engine = AdsorptionEngine.Type.fromName((args.length > 3) ? args[3] : "join");
+
+        compareRecords(records);
+        if (i_max > 0)
+            compareJobs(config, d_max, i_max, engine);
+    }
+
+    private static void compareRecords(int records) throws Exception {
+        boolean kryoSerialization = Config.KRYO_SERIALIZATION;
+        Config.KRYO_SERIALIZATION = true;
+        SparkConf kryoConf = new SparkConf(false);
+        RankingKryoRegistrator.sparkSettings().forEach(kryoConf::set);
+        Config.KRYO_SERIALIZATION = kryoSerialization;
+
+        Serializer java = new JavaSerializer(new SparkConf(false));
+        Serializer kryo = new KryoSerializer(kryoConf);
+
+        Random random = new Random(42);
+        Map<String, IntFunction<Object>> shapes = new LinkedHashMap<>();
+        shapes.put("edge (node, (node, weight))", i -> new Tuple2<>(node(random), new Tuple2<>(node(random), random.nextDouble())));
+        shapes.put("labels (node, LabelVector)", i -> new Tuple2<>(node(random), labels(random, 20)));
+        shapes.put("frontier (node, FrontierState)", i -> new Tuple2<>(node(random), FrontierState.start(labels(random, 20))));
+        shapes.put("degrees (node, DegreeCounts)", i -> new Tuple2<>(node(random),
+            new DegreeCounts().count(node(random)).count(node(random))));
+        shapes.put("recommendation ((user, user), strength)", i -> new Tuple2<>(
+            new Tuple2<>(Integer.toString(random.nextInt(100000)), Integer.toString(random.nextInt(100000))), 1 + random.nextInt(5)));
+        shapes.put("result SerializablePair", i -> new SerializablePair<>(Integer.toString(random.nextInt(100000)),
+            new SerializablePair<>("post:" + random.nextInt(1000000), random.nextDouble())));
+
+        for (Map.Entry<String, IntFunction<Object>> shape : shapes.entrySet()) {
+            List<Object> sample = new ArrayList<>(records);
+            for (int i = 0; i < records; i++)
+                sample.add(shape.getValue().apply(i));
+
+            // Once untimed so both are warmed up
+            roundTrip(java, sample);
+            roundTrip(kryo, sample);
+            long[] javaResult = roundTrip(java, sample);
+            long[] kryoResult = roundTrip(kryo, sample);
+            logger.info(String.format("%-40s java %7.1f B/record, write %5d ms, read %5d ms | "
+                + "kryo %7.1f B/record, write %5d ms, read %5d ms | %.1fx smaller",
+                shape.getKey(), (double) javaResult[0] / records, javaResult[1], javaResult[2],
+                (double) kryoResult[0] / records, kryoResult[1], kryoResult[2], (double) javaResult[0] / kryoResult[0]));
+        }
+    }
+
+    // Write the records to one stream and read them back: { bytes, write ms, read ms }
+    private static long[] roundTrip(Serializer serializer, List<Object> sample) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        SerializationStream out = serializer.newInstance().serializeStream(bytes);
+        for (Object record : sample)
+            out.writeObject(record, ClassTag$.MODULE$.AnyRef());
+        out.close();
+        long written = System.nanoTime();
+
+        DeserializationStream in = serializer.newInstance().deserializeStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < sample.size(); i++)
+            in.readObject(ClassTag$.MODULE$.AnyRef());
+        in.close();
+        long read = System.nanoTime();
+
+        return new long[] { bytes.size(), (written - start) / 1_000_000, (read - written) / 1_000_000 };
+    }
+
+    private static long node(Random random) {
+        return NodeDictionary.pack(NodeType.values()[random.nextInt(3)], random.nextInt(1000000));
+    }
+
+    private static LabelVector labels(Random random, int size) {
+        LabelVector vector = LabelVector.empty();
+        for (int i = 0; i < size; i++)
+            vector = vector.add(LabelVector.of(NodeDictionary.pack(NodeType.USER, random.nextInt(100000)), random.nextFloat()));
+        return vector;
+    }
+
+    private static void compareJobs(Config config, double d_max, int i_max, AdsorptionEngine.Type engine)
+        throws Exception {
+        Config.WARM_START = false;
+        Config.LABEL_STATE_DIR = null;
+        Config.CHECKPOINT_DIR = null;
+
+        FlexibleLogger rankLogger = new FlexibleLogger(LogManager.getLogger(SparkJob.class), true, false);
+        Map<String, Map<String, Long>> totals = new LinkedHashMap<>();
+        for (boolean kryo : new boolean[] { false, true }) {
+            Config.KRYO_SERIALIZATION = kryo;
+            JavaSparkContext context = SparkConnector.getSparkContext(config);
+            StageTimingListener listener = new StageTimingListener();
+            context.sc().addSparkListener(listener);
+
+            FeedRankJob job = new FeedRankJob(d_max, i_max, true, false, rankLogger, config);
+            job.setEngine(engine);
+            long start = System.currentTimeMillis();
+            try {
+                job.call(null);
+            } finally {
+                // Stopping drains the listener bus, so every stage has been recorded below
+                job.shutdown();
+                SparkConnector.setSparkSession(null);
+                SparkConnector.setSparkContext(null);
+            }
+
+            Map<String, Long> total = new LinkedHashMap<>();
+            total.put("wallMs", System.currentTimeMillis() - start);
+            for (Map<String, Object> stage : listener.getStages()) {
+                for (String metric : new String[] { "shuffleWriteBytes", "shuffleReadBytes", "shuffleWriteTimeMs" }) {
+                    Object value = stage.get(metric);
+                    if (value != null)
+                        total.merge(metric, ((Number) value).longValue(), Long::sum);
+                }
+            }
+            totals.put(kryo ? "kryo" : "java", total);
+            logger.info((kryo ? "kryo" : "java") + " " + engine + ": " + total);
+        }
+
+        Map<String, Long> java = totals.get("java");
+        Map<String, Long> kryo = totals.get("kryo");
+        logger.info(String.format("Kryo shuffles %.1fx fewer bytes (%d vs %d) in %d vs %d ms of shuffle writes",
+            (double) java.getOrDefault("shuffleWriteBytes", 0L) / Math.max(1, kryo.getOrDefault("shuffleWriteBytes", 0L)),
+            kryo.getOrDefault("shuffleWriteBytes", 0L), java.getOrDefault("shuffleWriteBytes", 0L),
+            kryo.getOrDefault("shuffleWriteTimeMs", 0L), java.getOrDefault("shuffleWriteTimeMs", 0L)));
+    }
+}
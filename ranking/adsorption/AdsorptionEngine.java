@@ -0,0 +1,47 @@
+package instalite.ranking.adsorption;
+
+import java.io.IOException;
+
+import org.apache.spark.api.java.JavaPairRDD;
+
+import scala.Tuple2;
+
+/**
+ * Runs adsorption over the weighted graph that FeedRankJob builds: starting from the
+ * initial labels, repeatedly push every node's labels along its out-edges (scaled by the
+ * edge weight), normalize each node's incoming labels, and stop once no label weight
+ * changes by more than d_max or after i_max iterations.
+ *
+ * Engines differ only in how they execute this, so they can be swapped per run and
+ * compared on the same data.
+ */
+public interface AdsorptionEngine {
+    enum Type {
+        /** Hand-rolled RDD joins against co-partitioned edges ({@link JoinAdsorptionEngine}) */
+        JOIN,
+        /** Vertex-centric message passing over a GraphX graph ({@link GraphXAdsorptionEngine}) */
+        GRAPHX,
+        /** Fork-join over in-memory CSR arrays in the driver JVM ({@link LocalAdsorptionEngine}) */
+        LOCAL,
+        /** Spark SQL plans over DataFrames with primitive columns ({@link DatasetAdsorptionEngine}) */
+        DATASET,
+        /** LOCAL for local runs with at most Config.LOCAL_ENGINE_MAX_EDGES edges, JOIN otherwise */
+        AUTO;
+
+        /**
+         * @param name an engine name, case-insensitive (null for the default)
+         */
+        public static Type fromName(String name) {
+            return (name == null || name.isEmpty()) ? JOIN : valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * @param labels        initial labels, (current, (label, labelWeight))
+     * @param weightedEdges (source, (dest, edgeWeight))
+     * @return the final labels, (current, (label, labelWeight))
+     * @throws IOException if labels cannot be checkpointed
+     */
+    JavaPairRDD<Long, Tuple2<Long, Double>> propagate(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException;
+}
@@ -0,0 +1,145 @@
+package instalite.ranking.adsorption;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Compact Kryo serializers for the records the adsorption engines shuffle and cache
+ * (registered by RankingKryoRegistrator).
+ *
+ * Kryo's default field serializer would write a LabelVector's arrays with 8-byte labels
+ * and per-array headers. Labels are sorted packed ids that are close together (one node
+ * type, ids handed out in order), so these write each label as a variable-length gap to
+ * the previous one, usually one or two bytes instead of eight.
+ */
+public final class AdsorptionSerializers {
+    private AdsorptionSerializers() {
+    }
+
+    /**
+     * [size] [label gap, weight]*
+     */
+    public static class LabelVectorSerializer extends Serializer<LabelVector> {
+        public LabelVectorSerializer() {
+            setImmutable(true);
+            setAcceptsNull(false);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, LabelVector vector) {
+            writeVector(output, vector);
+        }
+
+        @Override
+        public LabelVector read(Kryo kryo, Input input, Class<LabelVector> type) {
+            return readVector(input);
+        }
+
+        static void writeVector(Output output, LabelVector vector) {
+            int size = vector.size();
+            output.writeVarInt(size, true);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                long label = vector.getLabel(i);
+                // Sorted, so every gap but possibly the first is positive
+                output.writeVarLong(label - previous, i > 0);
+                output.writeFloat(vector.getWeight(i));
+                previous = label;
+            }
+        }
+
+        static LabelVector readVector(Input input) {
+            int size = input.readVarInt(true);
+            if (size == 0)
+                return LabelVector.empty();
+            long[] labels = new long[size];
+            float[] weights = new float[size];
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                labels[i] = previous + input.readVarLong(i > 0);
+                weights[i] = input.readFloat();
+                previous = labels[i];
+            }
+            return new LabelVector(labels, weights);
+        }
+    }
+
+    /**
+     * [flags] [sum] [labels] [sent] [delta], where the flags say which of the nullable
+     * vectors are present and which are the same vector as the labels, so a node that
+     * just sent its labels does not write them three times
+     */
+    public static class FrontierStateSerializer extends Serializer<FrontierState> {
+        private static final int HAS_SUM = 1;
+        private static final int HAS_DELTA = 2;
+        private static final int SENT_IS_LABELS = 4;
+        private static final int DELTA_IS_LABELS = 8;
+
+        public FrontierStateSerializer() {
+            setImmutable(true);
+            setAcceptsNull(false);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, FrontierState state) {
+            LabelVector labels = state.getLabels();
+            int flags = 0;
+            if (state.getSum() != null)
+                flags |= HAS_SUM;
+            if (state.getDelta() != null)
+                flags |= (state.getDelta() == labels) ? DELTA_IS_LABELS : HAS_DELTA;
+            if (state.getSent() == labels)
+                flags |= SENT_IS_LABELS;
+
+            output.writeByte(flags);
+            if ((flags & HAS_SUM) != 0)
+                LabelVectorSerializer.writeVector(output, state.getSum());
+            LabelVectorSerializer.writeVector(output, labels);
+            if ((flags & SENT_IS_LABELS) == 0)
+                LabelVectorSerializer.writeVector(output, state.getSent());
+            if ((flags & HAS_DELTA) != 0)
+                LabelVectorSerializer.writeVector(output, state.getDelta());
+        }
+
+        @Override
+        public FrontierState read(Kryo kryo, Input input, Class<FrontierState> type) {
+            int flags = input.readByte();
+            LabelVector sum = ((flags & HAS_SUM) != 0) ? LabelVectorSerializer.readVector(input) : null;
+            LabelVector labels = LabelVectorSerializer.readVector(input);
+            LabelVector sent = ((flags & SENT_IS_LABELS) != 0) ? labels : LabelVectorSerializer.readVector(input);
+            LabelVector delta = ((flags & DELTA_IS_LABELS) != 0) ? labels
+                : ((flags & HAS_DELTA) != 0) ? LabelVectorSerializer.readVector(input)
+                : null;
+            return new FrontierState(sum, labels, sent, delta);
+        }
+    }
+
+    /**
+     * [users] [posts] [hashtags] as variable-length longs
+     */
+    public static class DegreeCountsSerializer extends Serializer<DegreeCounts> {
+        public DegreeCountsSerializer() {
+            setAcceptsNull(false);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, DegreeCounts counts) {
+            output.writeVarLong(counts.getUsers(), true);
+            output.writeVarLong(counts.getPosts(), true);
+            output.writeVarLong(counts.getHashtags(), true);
+        }
+
+        @Override
+        public DegreeCounts read(Kryo kryo, Input input, Class<DegreeCounts> type) {
+            return new DegreeCounts(input.readVarLong(true), input.readVarLong(true), input.readVarLong(true));
+        }
+
+        @Override
+        public DegreeCounts copy(Kryo kryo, DegreeCounts counts) {
+            // Mutable (an aggregateByKey zero value), so copies must be real copies
+            return new DegreeCounts(counts.getUsers(), counts.getPosts(), counts.getHashtags());
+        }
+    }
+}
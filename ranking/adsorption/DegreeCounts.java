@@ -0,0 +1,65 @@
+package instalite.ranking.adsorption;
+
+import java.io.Serializable;
+
+import instalite.ranking.graph.NodeDictionary;
+
+/**
+ * A node's out-degree split by the type of the destination, which is all FeedRankJob
+ * needs to weigh the node's edges. Mutable, so it can be the zero value of an
+ * aggregateByKey and combined map-side without one object per edge.
+ */
+public class DegreeCounts implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long users;
+    private long posts;
+    private long hashtags;
+
+    public DegreeCounts() {
+    }
+
+    DegreeCounts(long users, long posts, long hashtags) {
+        this.users = users;
+        this.posts = posts;
+        this.hashtags = hashtags;
+    }
+
+    /**
+     * Count one more edge to the given (packed) node
+     */
+    public DegreeCounts count(long dest) {
+        if (NodeDictionary.isHashtag(dest)) hashtags++;
+        else if (NodeDictionary.isPost(dest)) posts++;
+        else users++;
+        return this;
+    }
+
+    public DegreeCounts merge(DegreeCounts other) {
+        users += other.users;
+        posts += other.posts;
+        hashtags += other.hashtags;
+        return this;
+    }
+
+    public long getUsers() {
+        return users;
+    }
+
+    public long getPosts() {
+        return posts;
+    }
+
+    public long getHashtags() {
+        return hashtags;
+    }
+
+    public long total() {
+        return users + posts + hashtags;
+    }
+
+    @Override
+    public String toString() {
+        return "(users=" + users + ", posts=" + posts + ", hashtags=" + hashtags + ")";
+    }
+}
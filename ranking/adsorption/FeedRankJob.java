@@ -1,38 +1,65 @@
 package instalite.ranking.adsorption;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import java.util.stream.Collectors;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.Properties;
 
 import java.lang.Math;
 
 import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.MaxAccumulator;
 import org.apache.livy.Job;
 import org.apache.livy.JobContext;
 import org.apache.livy.LivyClient;
 import org.apache.livy.LivyClientBuilder;
+import org.apache.parquet.example.data.Group;
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
 import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.function.PairFlatMapFunction; // for casting
 import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.Optional;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.DoubleAccumulator;
 
 import instalite.ranking.config.Config;
+import instalite.ranking.graph.CsrGraph;
+import instalite.ranking.graph.CsrGraphWriter;
+import instalite.ranking.graph.NodeDictionary;
+import instalite.ranking.graph.NodeType;
+import instalite.ranking.loader.GraphTables;
 import instalite.ranking.utils.SerializablePair;
 import instalite.ranking.spark.SparkJob;
+import instalite.ranking.writer.JdbcBatchWriter;
+import instalite.ranking.writer.ParquetResultLoader;
+import instalite.ranking.writer.ParquetResultWriter;
+import instalite.ranking.writer.ResultManifest;
+import instalite.ranking.writer.ShadowTablePublisher;
 
 import scala.Tuple2;
 
@@ -41,12 +68,117 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 	double d_max; // largest change in a node's rank from iteration i to iteration i+1
 	int i_max; // max number of iterations
 
+	// Label pruning, applied to each node's labels after normalization
+	int l_max; // max number of labels kept per node (0 for no limit)
+	double w_min; // smallest normalized label weight kept (0 to keep all)
+
+	// Read from Config when the job is built, so they travel with it to Livy
+	private String checkpointDir = Config.CHECKPOINT_DIR;
+	private int checkpointInterval = Config.CHECKPOINT_INTERVAL;
+	private long hubDegreeThreshold = Config.HUB_DEGREE_THRESHOLD;
+	private int hubSalts = Config.HUB_SALTS;
+	private String labelStateDir = Config.LABEL_STATE_DIR;
+	private boolean warmStart = Config.WARM_START;
+	private int warmStartMaxRuns = Config.WARM_START_MAX_RUNS;
+	private int partitions = Config.PARTITIONS;
+	private String adsorptionStorageLevel = Config.ADSORPTION_STORAGE_LEVEL;
+	private boolean sparseLabels = Config.SPARSE_LABELS;
+	private boolean fusedIterations = Config.FUSED_ITERATIONS;
+	private boolean activeSet = Config.ACTIVE_SET;
+	private double activeSetTolerance = Config.ACTIVE_SET_TOLERANCE;
+	private long localEngineMaxEdges = Config.LOCAL_ENGINE_MAX_EDGES;
+	private int localEngineThreads = Config.LOCAL_ENGINE_THREADS;
+
+	// Consecutive warm starts behind this run's labels, recorded with them in the label state
+	private int warmRuns = 0;
+
+	private AdsorptionEngine.Type engine = AdsorptionEngine.Type.JOIN;
+
+	// Writes the rankings to MySQL from the executors when set (see setWriteRankings), into
+	// a staging table that is then swapped in if there is a publisher
+	private JdbcBatchWriter<Tuple2<Long, Tuple2<Long, Double>>> rankingWriter;
+	private ShadowTablePublisher rankingPublisher;
+	private boolean rankingShadowPublish;
+
+	// Hands the rankings off as Parquet files instead when set (see setResultHandoff); the
+	// run leaves their manifest in resultManifest
+	private ParquetResultWriter resultWriter;
+	private ResultManifest resultManifest;
+
+	static final String POST_RANKINGS_TABLE = "post_rankings";
+
 	private String source;
 
 	public FeedRankJob(double d_max, int i_max, boolean isLocal, boolean debug, FlexibleLogger logger, Config config) {
+		this(d_max, i_max, Config.LABEL_TOP_K, Config.LABEL_MIN_WEIGHT, isLocal, debug, logger, config);
+	}
+
+	public FeedRankJob(double d_max, int i_max, int l_max, double w_min, boolean isLocal, boolean debug,
+		FlexibleLogger logger, Config config) {
 		super(logger, config, isLocal, debug);
 		this.d_max = d_max;
 		this.i_max = i_max;
+		this.l_max = l_max;
+		this.w_min = w_min;
+	}
+
+	/**
+	 * Choose how adsorption runs (the join-based engine by default)
+	 */
+	public void setEngine(AdsorptionEngine.Type engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * @return the parameters that decide the rankings, e.g. to tell whether a previous run's are still current
+	 */
+	public String describeParameters() {
+		return "engine=" + engine + ",d_max=" + d_max + ",i_max=" + i_max + ",l_max=" + l_max + ",w_min=" + w_min;
+	}
+
+	/**
+	 * Write the rankings to the post_rankings table from the executors, instead of collecting
+	 * them to the driver and returning them (the job then returns an empty list). With
+	 * Config.RANKINGS_SHADOW_PUBLISH they replace the table's rows all at once. The database
+	 * settings are read from Config now, so they travel with the job to Livy.
+	 */
+	public void setWriteRankings(boolean write) {
+		rankingPublisher = write ? ShadowTablePublisher.fromConfig(POST_RANKINGS_TABLE) : null;
+		rankingShadowPublish = write && Config.RANKINGS_SHADOW_PUBLISH;
+		String table = rankingShadowPublish ? rankingPublisher.getStagingTable() : POST_RANKINGS_TABLE;
+		rankingWriter = write ? JdbcBatchWriter.fromConfig(rankingsInsert(table), FeedRankJob::bindRanking) : null;
+	}
+
+	/**
+	 * @return whether a run stores the rankings in MySQL itself, rather than returning them or
+	 *         handing them off for the caller to store
+	 */
+	public boolean storesRankings() {
+		return rankingWriter != null && resultWriter == null;
+	}
+
+	/**
+	 * Write the rankings as Parquet files under Config.RESULT_HANDOFF_DIR instead of to
+	 * MySQL or back to the caller (the job then returns an empty list), for the client to
+	 * stream into post_rankings with loadRankings() and the manifest from getResultManifest()
+	 */
+	@Override
+	public void setResultHandoff(boolean handoff) {
+		resultWriter = handoff ? ParquetResultWriter.fromConfig() : null;
+	}
+
+	/**
+	 * @return the files the last run handed the rankings off in, or null if it did not
+	 */
+	@Override
+	public ResultManifest getResultManifest() {
+		return resultManifest;
+	}
+
+	// Upsert, so a retried batch or task writes the same rows again
+	static String rankingsInsert(String table) {
+		return "INSERT INTO " + table + " (user_id, post_id, weight) VALUES (?, ?, ?) "
+			+ "ON DUPLICATE KEY UPDATE weight = VALUES(weight)";
 	}
 
 	/**
@@ -67,20 +199,14 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 	 * https://spark.apache.org/docs/3.5.0/sql-data-sources-jdbc.html
 	 * 
 	 */
-	protected JavaPairRDD<String, String> getGraph(String placeholder) {
-		// Set up connection to Amazon RDS and configure with credentials.
-		Properties connectionProperties = new Properties(); // required for spark.read()
-		connectionProperties.put("user", Config.MYSQL_USER);
-		connectionProperties.put("password", Config.MYSQL_PASSWORD);
-		connectionProperties.put("driver", Config.JDBC_DRIVER);
+	protected JavaPairRDD<String, String> getGraph(String placeholder) throws IOException, InterruptedException {
+		// Snapshot (or partitioned, column-pruned JDBC) reads of the four tables, loaded concurrently and cached
+		GraphTables tables = loadTables();
 
-		// Read data from MySQL
-		String url = "jdbc:mysql://" + Config.MYSQL_HOST + ":" + Config.MYSQL_PORT + "/" + Config.MYSQL_DATABASE;
-
-		Dataset<Row> posts = spark.read().jdbc(url, "posts", connectionProperties);
-		Dataset<Row> likes = spark.read().jdbc(url, "likes", connectionProperties);
-		Dataset<Row> friends = spark.read().jdbc(url, "friends", connectionProperties);
-		Dataset<Row> hashtags = spark.read().jdbc(url, "hashtags", connectionProperties);
+		Dataset<Row> posts = tables.posts();
+		Dataset<Row> likes = tables.likes();
+		Dataset<Row> friends = tables.friends();
+		Dataset<Row> hashtags = tables.hashtags();
 
 		logger.info("[FeedRankJob getGraph()] Creating graph...");
 
@@ -94,7 +220,6 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 							new Tuple2<>(follower, followed)
 					).iterator();
 			});
-		logger.info("[FeedRankJob getGraph()] Found " + friendEdges.count() + " friendEdges");
 
 		// Create JavaPairRDD from user to liked posts.
 		JavaPairRDD<String, String> likeEdges = likes.javaRDD()
@@ -106,7 +231,6 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 							new Tuple2<>(post, user)
 					).iterator();
 			});
-		logger.info("[FeedRankJob getGraph()] Found " + likeEdges.count() + " likeEdges");
 
 		// Create JavaPairRDD from user to selected hashtag interests
 		// Assume DB string is 'garlic,vampire,...' (comma separated)
@@ -122,7 +246,6 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 					}
 					return tuples.iterator();
 			});
-		logger.info("[FeedRankJob getGraph()] Found " + hashtagEdges.count() + " hashtagEdges");
 
 		// Create JavaPairRDD from post to hashtag contained in the post content.
 		// Assume DB string is ["garlic", "vampire"] (JSON style)
@@ -141,17 +264,41 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 					}
 					return tuples.iterator();
 			});
-		logger.info("[FeedRankJob getGraph()] Found " + hashtagPostEdges.count() + " hashtagPostEdges");
 
-		JavaPairRDD<String, String> network = friendEdges
-			.union(hashtagEdges)
-			.union(likeEdges)
-			.union(hashtagPostEdges);;
+		// Persisted so the dictionary, the encoding and the user scan all read the edges once,
+		// which also keeps the per-type edge counts exact
+		JavaPairRDD<String, String> network = metrics.count("friendEdges", friendEdges)
+			.union(metrics.count("hashtagEdges", hashtagEdges))
+			.union(metrics.count("likeEdges", likeEdges))
+			.union(metrics.count("hashtagPostEdges", hashtagPostEdges))
+			.persist(StorageLevel.fromString(adsorptionStorageLevel));
 
 		logger.info("[FeedRankJob getGraph()] Graph created!");
 		return network;
 	}
 
+	/**
+	 * Load the graph from the CSR graph store when Config.GRAPH_STORE_REUSE is set and the
+	 * store exists; otherwise build it with getGraph() and, if Config.GRAPH_STORE_PATH is
+	 * set, write it to the store for the next run and for non-Spark consumers.
+	 *
+	 * @return JavaPairRDD: (node: String, node: String)
+	 */
+	protected JavaPairRDD<String, String> loadGraph() throws IOException, InterruptedException {
+		String storePath = Config.GRAPH_STORE_PATH;
+		boolean useStore = storePath != null && !storePath.isEmpty();
+
+		if (useStore && Config.GRAPH_STORE_REUSE && new File(storePath).exists()) {
+			logger.info("[FeedRankJob loadGraph()] Reading graph store " + storePath);
+			return CsrGraph.loadEdges(context, storePath, partitions);
+		}
+
+		JavaPairRDD<String, String> network = getGraph(Config.SOCIAL_NET_PATH);
+		if (useStore)
+			new CsrGraphWriter(logger).write(network, storePath);
+		return network;
+	}
+
 	/**
 	 * 
 	 * Main functionality in the program: read and process the social network
@@ -166,157 +313,306 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 		throws IOException, InterruptedException {
 		logger.info("[FeedRankJob run()] Running rankings...");
 
-		// Load the social network (e.g. from MySQL, RDS)
-		JavaPairRDD<String, String> edgeRDD = getGraph(Config.SOCIAL_NET_PATH);
-
-		// Group by source node of edge (note that edges are bidirectional)
-		// Ex. (user, (user, post, hashtag)), (post, (user, hashtag, user)), (hashtag, (user, post, post))
-		JavaPairRDD<String, Iterable<String>> edgesGroupedBySource = edgeRDD.groupByKey();
-		logger.info("[FeedRankJob run()] After edgesGroupedBySource");
-
-		// Calculate weights for all edges; lambda function needs help inferring type 
+		// Load the social network (e.g. from MySQL, RDS, or the graph store)
+		long phaseStart = System.currentTimeMillis();
+		JavaPairRDD<String, String> stringEdges = loadGraph();
+
+		// Dictionary-encode every node to a packed long (node type in the high bits)
+		// so the adsorption loop joins and shuffles primitive ids instead of prefixed strings
+		NodeDictionary dictionary = NodeDictionary.build(context, stringEdges);
+		JavaPairRDD<Long, Long> edgeRDD = dictionary.encodeEdges(stringEdges);
+		logger.info("[FeedRankJob run()] Encoded node ids");
+
+		// Every keyed RDD in the loop shares this partitioner, so joins against the
+		// static edges are narrow and each iteration only shuffles for propagation
+		Partitioner partitioner = new HashPartitioner(partitions);
+		StorageLevel storageLevel = StorageLevel.fromString(adsorptionStorageLevel);
+
+		// Out-degree of every node by destination type (note that edges are bidirectional), counted
+		// map-side so a node's neighbours are never gathered in one place
+		// Ex. (user, (users=1, posts=1, hashtags=1)), (hashtag, (users=1, posts=2, hashtags=0))
+		JavaPairRDD<Long, DegreeCounts> degrees = edgeRDD
+			.aggregateByKey(new DegreeCounts(), partitioner, DegreeCounts::count, DegreeCounts::merge);
+
+		// Hubs (e.g. popular hashtags, viral posts) are weighed and propagated separately
+		long hubThreshold = hubDegreeThreshold; // local, so the closure does not capture the job
+		Map<Long, DegreeCounts> hubDegrees = (hubThreshold > 0)
+			? new HashMap<>(degrees.filter(degree -> degree._2().total() > hubThreshold).collectAsMap())
+			: new HashMap<>();
+		metrics.set("hubNodes", hubDegrees.size());
+		HubSalting salting = hubDegrees.isEmpty()
+			? HubSalting.none(context)
+			: new HubSalting(context, new HashSet<>(hubDegrees.keySet()), (hubSalts > 0) ? hubSalts : partitions,
+				partitions);
+
+		// Calculate weights for all edges, partitioned by source, and cache them for every iteration
 		// "weightedEdges" tuples are (source, (dest, weight))
-    JavaPairRDD<String, Tuple2<String, Double>> weightedEdges = edgesGroupedBySource.flatMapToPair(
-			(PairFlatMapFunction<Tuple2<String, Iterable<String>>, String, Tuple2<String, Double>>) FeedRankJob::computeWeightedEdges
-		);
+		JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges = weighEdges(edgeRDD, degrees, hubDegrees, partitioner)
+			.persist(storageLevel);
 		logger.info("[FeedRankJob run()] Computed weighted edges");
 
-		// Note: "labels" are source node; each current (dest) node has multiple (label, labelWeight) tuples.
-		// "labels" tuples are (current, (label, labelWeight))
-		JavaPairRDD<String, Tuple2<String, Double>> labels = edgeRDD.map(edge -> edge._1()) 
+		// Users are the label sources
+		JavaRDD<Long> users = edgeRDD.map(edge -> edge._1()) 
 			.distinct() // source nodes only
-			.filter(node -> !(node.startsWith("hashtag:")) && !(node.startsWith("post:"))) // only user nodes
-			.mapToPair(FeedRankJob::initializeLabels);
-		logger.info("[FeedRankJob run()] Initialized labels with size " + labels.count());
-
-		// Adsorption
-		for (int i = 0; i < i_max; i++) {
-			logger.info("[FeedRankJob run()] Starting adsorption iteration " + i);
-
-			// 1) Main propagation:
-			// 		(current, (label, labelWeight))
-			//			-> (current, ((label, labelWeight), (neighbor, edgeWeight))
-			// 			-> (neighbor, (label, labelWeight * edgeWeight))
-			JavaPairRDD<String, Tuple2<String, Double>> newLabels = labels
-				.join(weightedEdges)
-				.mapToPair(FeedRankJob::mapToNewLabel);
-			logger.info("[FeedRankJob run()] Calculated unnormalized new labels");
-
-			// 2) Normalization: find sum of label weights at each node
-			// 		(current, (label, labelWeight))
-			//			-> (current, totalLabelWeight)
-			JavaPairRDD<String, Double> nodeTotalLabelWeights = newLabels
-				.mapToPair(tuple -> // Extract (current, labelWeight)
-					new Tuple2<>(tuple._1(), tuple._2()._2())
-				)
-				.reduceByKey((a, b) -> a + b); // Sum label weights
-			
-			// 3) Normalization: divide by sums for new label weights
-			//		(current, (label, labelWeight))
-			//			-> (current, ((label, labelWeight), totalLabelWeight))
-			//			-> (current, (label, normalizedLabelWeight))
-			JavaPairRDD<String, Tuple2<String, Double>> normalizedLabels = newLabels
-				.join(nodeTotalLabelWeights)
-				.mapToPair(tuple -> {
-					String current = tuple._1();
-					String label = tuple._2()._1()._1();
-					double normalizedLabelWeight = tuple._2()._1()._2() / tuple._2()._2();
-					return new Tuple2<>(current, new Tuple2<>(label, normalizedLabelWeight));
-				});
-			logger.info("[FeedRankJob run()] Normalized new labels");
-
-			// 4) Find differences in each label
-			// 		(current, ((newLabel, newWeight), (oldLabel, oldWeight)))
-			//			-> labelWeightDifference
-			JavaRDD<Double> labelDifferences = normalizedLabels
-				.join(labels)
-				.map(tuple -> Math.abs(tuple._2()._1()._2() - tuple._2()._2()._2()));
-			
-			// 5) Get max difference to check for convergence later
-			double maxDifference = labelDifferences.reduce(Math::max);
-
-			labels = normalizedLabels;
-
-			logger.info("[FeedRankJob run()] Labels count: " + labels.count());
-			logger.info("[FeedRankJob run()] Max label difference: " + maxDifference);
-
-			// Check for convergence after at least 2 iterations
-			if ((i > 0) && (d_max > maxDifference)) break;
+			.filter(NodeDictionary::isUser); // only user nodes
+
+		// Resume after the last checkpoint if a previous run of this job died part way, on the
+		// same inputs and with the same parameters. Only the JOIN engine checkpoints labels;
+		// the GRAPHX engine checkpoints its graph to cut the lineage, but cannot resume.
+		AdsorptionEngine.Type type = resolveEngine(weightedEdges);
+		String runCheckpointDir = checkpointDir;
+		if (runCheckpointDir != null && !runCheckpointDir.isEmpty() && type != AdsorptionEngine.Type.JOIN) {
+			if (type != AdsorptionEngine.Type.GRAPHX) {
+				logger.info("[FeedRankJob run()] The " + type + " engine does not checkpoint, ignoring CHECKPOINT_DIR "
+					+ runCheckpointDir);
+			}
+			runCheckpointDir = null;
 		}
+		Properties runKey = (runCheckpointDir == null || runCheckpointDir.isEmpty())
+			? new Properties()
+			: IterationCheckpointer.runKey(stringEdges, type, d_max, i_max, l_max, w_min);
+		IterationCheckpointer checkpoints = new IterationCheckpointer(spark, logger, runCheckpointDir,
+			checkpointInterval, dictionary, partitioner, storageLevel, runKey);
+
+		// Note: "labels" are source node; each current (dest) node has multiple (label, labelWeight) tuples.
+		// "labels" tuples are (current, (label, labelWeight))
+		JavaPairRDD<Long, Tuple2<Long, Double>> labels = checkpoints.canResume()
+			? checkpoints.loadLabels()
+			: initialLabels(users, edgeRDD, dictionary);
+
+		metrics.phase("prepareGraph", phaseStart);
+
+		phaseStart = System.currentTimeMillis();
+		labels = createEngine(type, partitioner, storageLevel, checkpoints, salting)
+			.propagate(labels, weightedEdges);
+		metrics.phase("propagate", phaseStart);
 
 		logger.info("[FeedRankJob run()] Finished rankings!");
+
+		if (hasLabelState()) {
+			Properties state = new Properties();
+			state.setProperty("warmRuns", Integer.toString(warmRuns));
+			new LabelStateStore(spark, logger, labelStateDir).save(labels, dictionary, state);
+		}
 		
-		return getTopRecommendations(labels);
+		phaseStart = System.currentTimeMillis();
+		List<SerializablePair<String, SerializablePair<String, Double>>> recommendations;
+		if (resultWriter != null) {
+			exportRankings(labels);
+			recommendations = new ArrayList<>();
+			metrics.phase("exportRankings", phaseStart);
+		} else if (rankingWriter != null) {
+			writeRankings(labels);
+			recommendations = new ArrayList<>();
+			metrics.phase("writeRankings", phaseStart);
+		} else {
+			recommendations = getTopRecommendations(labels);
+			metrics.phase("collectRecommendations", phaseStart);
+		}
+		checkpoints.finish();
+		weightedEdges.unpersist();
+		stringEdges.unpersist();
+		salting.destroy();
+		dictionary.destroy();
+		return recommendations;
+	}
+
+	AdsorptionEngine.Type resolveEngine(JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) {
+		if (engine != AdsorptionEngine.Type.AUTO)
+			return engine;
+		// Small graphs run faster in one JVM than as Spark tasks
+		long edgeCount = isLocal ? weightedEdges.count() : Long.MAX_VALUE;
+		metrics.set("weightedEdges", edgeCount);
+		return (edgeCount <= localEngineMaxEdges) ? AdsorptionEngine.Type.LOCAL : AdsorptionEngine.Type.JOIN;
+	}
+
+	AdsorptionEngine createEngine(AdsorptionEngine.Type type, Partitioner partitioner, StorageLevel storageLevel,
+		IterationCheckpointer checkpoints, HubSalting salting) {
+		logger.info("[FeedRankJob createEngine()] Running adsorption with the " + type + " engine");
+		metrics.set("engine", type.toString());
+
+		switch (type) {
+			case GRAPHX:
+				GraphXAdsorptionEngine graphX = new GraphXAdsorptionEngine(context, logger, metrics, d_max, i_max, l_max,
+					w_min, storageLevel);
+				graphX.setCheckpoints(checkpointDir, checkpointInterval);
+				return graphX;
+			case LOCAL:
+				return new LocalAdsorptionEngine(context, logger, metrics, d_max, i_max, l_max, w_min, partitions,
+					localEngineThreads);
+			case DATASET:
+				return new DatasetAdsorptionEngine(spark, logger, metrics, d_max, i_max, l_max, w_min, partitions,
+					storageLevel);
+			default:
+				JoinAdsorptionEngine join = new JoinAdsorptionEngine(context, logger, metrics, d_max, i_max, l_max, w_min,
+					partitioner, storageLevel, checkpoints, salting);
+				join.setSparseLabels(sparseLabels);
+				join.setFusedIterations(fusedIterations);
+				join.setActiveSet(activeSet, activeSetTolerance);
+				return join;
+		}
+	}
+
+	private boolean hasLabelState() {
+		return labelStateDir != null && !labelStateDir.isEmpty();
+	}
+
+	/**
+	 * Labels to start adsorption from. Cold, every user holds only its own label at weight 1.
+	 * Warm (Config.WARM_START with saved state), nodes resume from the previous run's final
+	 * labels, which are close to the new result when little changed since.
+	 *
+	 * Adsorption does not inject the seeds again while it iterates, so labels resumed as they
+	 * are would keep spreading run after run and drift toward the same distribution for every
+	 * user. A warm start therefore re-seeds: every user gets its own label back at weight 1 on
+	 * top of what it was left with, as on a cold start. What propagated to posts and hashtags
+	 * still carries over, so after Config.WARM_START_MAX_RUNS warm starts in a row the next run
+	 * starts cold.
+	 *
+	 * @param users the user nodes (label sources)
+	 * @param edges the encoded graph edges
+	 * @param dictionary this run's node dictionary
+	 * @return (current, (label, labelWeight)) rows, not yet partitioned
+	 * @throws IOException if saved labels cannot be read
+	 */
+	JavaPairRDD<Long, Tuple2<Long, Double>> initialLabels(JavaRDD<Long> users, JavaPairRDD<Long, Long> edges,
+		NodeDictionary dictionary) throws IOException {
+		JavaPairRDD<Long, Tuple2<Long, Double>> fresh = users.mapToPair(FeedRankJob::initializeLabels);
+		warmRuns = 0;
+		if (!warmStart || !hasLabelState())
+			return fresh;
+
+		LabelStateStore store = new LabelStateStore(spark, logger, labelStateDir);
+		Properties state = store.getMetadata();
+		if (state == null) {
+			logger.info("[FeedRankJob initialLabels()] No saved labels yet, starting cold");
+			return fresh;
+		}
+		int previousWarmRuns = Integer.parseInt(state.getProperty("warmRuns", "0"));
+		if (previousWarmRuns >= warmStartMaxRuns) {
+			logger.info("[FeedRankJob initialLabels()] Saved labels went through " + previousWarmRuns
+				+ " warm starts, starting cold");
+			return fresh;
+		}
+		JavaPairRDD<Long, Tuple2<Long, Double>> saved = store.load(dictionary);
+
+		// Keep saved labels only at nodes still in the graph and for users that still exist
+		JavaPairRDD<Long, Boolean> nodes = edges.keys().distinct().mapToPair(node -> new Tuple2<>(node, true));
+		JavaPairRDD<Long, Boolean> labelSources = users.mapToPair(user -> new Tuple2<>(user, true));
+		JavaPairRDD<Long, Tuple2<Long, Double>> warm = saved
+			.join(nodes)
+			.mapToPair(row -> new Tuple2<>(row._2()._1()._1(), new Tuple2<>(row._1(), row._2()._1()._2())))
+			.join(labelSources)
+			.mapToPair(row -> new Tuple2<>(row._2()._1()._1(), new Tuple2<>(row._1(), row._2()._1()._2())))
+			.filter(row -> !row._1().equals(row._2()._1())); // each user's own label is re-seeded below
+
+		warmRuns = previousWarmRuns + 1;
+		logger.info("[FeedRankJob initialLabels()] Warm-starting from the previous run's labels (warm start "
+			+ warmRuns + " of " + warmStartMaxRuns + ")");
+		return warm.union(fresh);
+	}
+
+	/**
+	 * Flatten label vectors into (current, (label, labelWeight)) rows
+	 */
+	static JavaPairRDD<Long, Tuple2<Long, Double>> toLabelPairs(JavaPairRDD<Long, LabelVector> vectors) {
+		return vectors.flatMapToPair(tuple -> {
+			LabelVector vector = tuple._2();
+			List<Tuple2<Long, Tuple2<Long, Double>>> pairs = new ArrayList<>(vector.size());
+			for (int i = 0; i < vector.size(); i++)
+				pairs.add(new Tuple2<>(tuple._1(), new Tuple2<>(vector.getLabel(i), (double) vector.getWeight(i))));
+			return pairs.iterator();
+		});
+	}
+
+	/**
+	 * Merge (current, (label, labelWeight)) rows into one label vector per node
+	 */
+	static JavaPairRDD<Long, LabelVector> toLabelVectors(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+		Partitioner partitioner) {
+		return labels
+			.mapValues(label -> LabelVector.of(label._1(), label._2().floatValue()))
+			.reduceByKey(partitioner, LabelVector::add);
 	}
 
 	@Override
 	public List<SerializablePair<String, SerializablePair<String, Double>>> call(JobContext arg0) throws Exception {
 		initialize();
-		return run(false);
+		try {
+			return run(false);
+		} finally {
+			reportMetrics();
+		}
 	}
 
-	// Get weighted edges (in an iterator) for a given source node
-	private static Iterator<Tuple2<String, Tuple2<String, Double>>> computeWeightedEdges(Tuple2<String, Iterable<String>> tuple) {
-		String source = tuple._1();
-		Iterable<String> destinations = tuple._2();
-		
-		// Count number of edges for each destination type (hashtags, posts, users)
-		List<String> destList = new ArrayList<>();
-		for (String dest: destinations) {
-			destList.add(dest);
-		}
-		
-		int userEdges = 0;
-		int hashtagEdges = 0;
-		int postEdges = 0;
-		
-		for (String dest : destList) {
-			if (dest.startsWith("hashtag:")) hashtagEdges++;
-			else if (dest.startsWith("post:")) postEdges++;
-			else userEdges++;
+	/**
+	 * Weigh every edge by its source's out-degrees.
+	 *
+	 * Edges of regular nodes are joined with their source's degrees (the degrees are already
+	 * partitioned by source, so only the edges shuffle). Edges of hubs are weighed map-side from
+	 * the hubs' degrees, which ship with the task, and only then moved to their source's partition,
+	 * so no task ever has to join against a hub's whole neighbourhood.
+	 *
+	 * @param edges (source, dest) encoded edges
+	 * @param degrees (source, degrees), partitioned by partitioner
+	 * @param hubDegrees the degrees of the hubs
+	 * @param partitioner the partitioner shared by labels and edges
+	 * @return (source, (dest, edgeWeight)), partitioned by partitioner
+	 */
+	static JavaPairRDD<Long, Tuple2<Long, Double>> weighEdges(JavaPairRDD<Long, Long> edges,
+		JavaPairRDD<Long, DegreeCounts> degrees, Map<Long, DegreeCounts> hubDegrees, Partitioner partitioner) {
+		JavaPairRDD<Long, Long> regularEdges = hubDegrees.isEmpty()
+			? edges
+			: edges.filter(edge -> !hubDegrees.containsKey(edge._1()));
+		// The edge rides along as the value so the weight, computed in mapValues, can see its source
+		JavaPairRDD<Long, Tuple2<Long, Double>> weighted = regularEdges
+			.mapToPair(edge -> new Tuple2<>(edge._1(), edge))
+			.join(degrees, partitioner)
+			.mapValues(edge -> new Tuple2<>(edge._1()._2(), edgeWeight(edge._1()._1(), edge._1()._2(), edge._2())));
+		if (hubDegrees.isEmpty())
+			return weighted;
+
+		JavaPairRDD<Long, Tuple2<Long, Double>> hubEdges = edges
+			.filter(edge -> hubDegrees.containsKey(edge._1()))
+			.mapToPair(edge -> new Tuple2<>(edge._1(), new Tuple2<>(edge._2(),
+				edgeWeight(edge._1(), edge._2(), hubDegrees.get(edge._1())))))
+			.partitionBy(partitioner);
+		// Both sides share the partitioner, so the union keeps it
+		return weighted.union(hubEdges);
+	}
+
+	/**
+	 * Weight of the edge source -> dest: users give 0.3/0.4/0.3 of their weight to their
+	 * hashtags/posts/users, split evenly within each type; posts and hashtags split theirs evenly
+	 *
+	 * @param degrees the source's out-degrees
+	 */
+	static double edgeWeight(long source, long dest, DegreeCounts degrees) {
+		if (!NodeDictionary.isUser(source)) {
+			// Outgoing edges from hashtags and posts have equal weights that sum to 1
+			return 1.0 / degrees.total();
 		}
-		
-		// Calculate weights based on node type: (sourceNode, (destNode, edgeWeight))
-		List<Tuple2<String, Tuple2<String, Double>>> weightedEdgeList = new ArrayList<>();
-		for (String dest : destList) {
-			double weight = 0.0;
-			if (source.startsWith("hashtag:")) {
-				// Outgoing edges from hashtags have equal weights that sum to 1
-				weight = 1.0 / destList.size();
-			} 
-			else if (source.startsWith("post:")) {
-				// Outgoing edges from posts have equal weights that sum to 1
-				weight = 1.0 / destList.size();
-			} 
-			else {
-				// Outgoing edges from users
-				if (dest.startsWith("hashtag:")) {
-					weight = 0.3 / hashtagEdges;
-				} else if (dest.startsWith("post:")) {
-					weight = 0.4 / postEdges;
-				} else {
-					weight = 0.3 / userEdges;
-				}
-			}
-			Tuple2<String, Double> pair = new Tuple2<>(dest, weight);
-			weightedEdgeList.add(new Tuple2<>(source, pair));
+		// Outgoing edges from users
+		if (NodeDictionary.isHashtag(dest)) {
+			return 0.3 / degrees.getHashtags();
+		} else if (NodeDictionary.isPost(dest)) {
+			return 0.4 / degrees.getPosts();
+		} else {
+			return 0.3 / degrees.getUsers();
 		}
-
-		return weightedEdgeList.iterator();
 	}
 
 	// Tuple format: (current node, (source/label, labelWeight))
-	public static Tuple2<String, Tuple2<String, Double>> initializeLabels(String node) {
+	public static Tuple2<Long, Tuple2<Long, Double>> initializeLabels(Long node) {
 		return new Tuple2<>(node, new Tuple2<>(node, 1.0));
 	}
 
 	// Propagate label to neighbors
-	public static Tuple2<String, Tuple2<String, Double>> mapToNewLabel(
-		Tuple2<String, Tuple2<Tuple2<String, Double>, Tuple2<String, Double>>> tuple) {
+	public static Tuple2<Long, Tuple2<Long, Double>> mapToNewLabel(
+		Tuple2<Long, Tuple2<Tuple2<Long, Double>, Tuple2<Long, Double>>> tuple) {
 		// input tuple structure: (current, ((label, labelWeight), (neighbor, edgeWeight)))
-		String neighbor = tuple._2()._2()._1();
-		String label = tuple._2()._1()._1();
-		String current = tuple._1();
+		long neighbor = tuple._2()._2()._1();
+		long label = tuple._2()._1()._1();
 		double labelWeight = tuple._2()._1()._2();
 		double edgeWeight = tuple._2()._2()._2();
 		double neighborLabelWeight = labelWeight * edgeWeight;
@@ -324,114 +620,149 @@ public class FeedRankJob extends SparkJob<List<SerializablePair<String, Serializ
 		return new Tuple2<>(neighbor, new Tuple2<>(label, neighborLabelWeight));
 	}
 
-	// Transform to (sourceNode/label, ((destNode, newWeight), difference))
-	public static Tuple2<String, Tuple2<Tuple2<String, Double>, Double>> mapToLabelDifference(
-		Tuple2<String, Tuple2<Tuple2<String, Double>, Tuple2<String, Double>>> tuple) {
-		// input tuple structure: (source/label, ((dest, labelWeight), (dest, edgeWeight)))
-		String dest = tuple._2()._2()._1();
-		String sourceNode = tuple._1();
-		double oldLabelWeight = tuple._2()._1()._2();
-		double newWeight = oldLabelWeight * tuple._2()._2()._2();
-		double labelDifference = Math.abs(oldLabelWeight - newWeight);
-		return new Tuple2<>(
-			sourceNode,
-			new Tuple2<>(
-				new Tuple2<>(dest, newWeight),
-				labelDifference
-			)
-		);
-	}
-
-	// Sequence function for aggregateByKey (for computing sum of weights and max difference)
-	public static Tuple2<Tuple2<String, Double>, Double> sequenceFunction(
-		Tuple2<Tuple2<String, Double>, Double> acc,
-		Tuple2<Tuple2<String, Double>, Double> value) {
-
-		Tuple2<String, Double> currentLabel = value._1(); // preserve dest node and label weight
-		double currentDiff = value._2();
-		
-		// Initialize if the accumulator is empty
-		if (acc._1()._1().isEmpty()) {
-				return new Tuple2<>(currentLabel, currentDiff);
-		} else {
-			// Accumulate sum of label weights (for each source node) and find max difference
-			double sum = acc._1()._2() + currentLabel._2();
-			double maxDiff = Math.max(acc._2(), currentDiff);
-
-			// Update the label that corresponds with the max difference
-			String maxLabel = null;
-			if (acc._2() > currentDiff) {
-				maxLabel = acc._1()._1();
-			} else {
-				maxLabel = currentLabel._1();
-			}
+	// Normalize a node's merged incoming vector, then prune it to the maxLabels heaviest labels
+	// of at least minWeight and renormalize, recording the weight dropped
+	public static LabelVector normalizeAndPrune(LabelVector vector, int maxLabels, double minWeight,
+		DoubleAccumulator prunedWeight, MaxAccumulator maxPrunedWeight) {
+		LabelVector normalized = vector.normalize();
+		LabelVector pruned = normalized.prune(maxLabels, minWeight);
+		if (pruned == normalized)
+			return normalized;
+
+		double dropped = normalized.sum() - pruned.sum();
+		prunedWeight.add(dropped);
+		maxPrunedWeight.add(dropped);
+		return pruned.normalize();
+	}
 
-			return new Tuple2<>(new Tuple2<>(maxLabel, sum), maxDiff);
-		}
+	// Fused normalization and convergence check for one node: normalize (and prune) the merged
+	// incoming vector and record how far it moved from the node's previous vector, if it had one
+	public static LabelVector normalizeAndTrackDifference(Tuple2<LabelVector, Optional<LabelVector>> tuple,
+		int maxLabels, double minWeight, MaxAccumulator maxDifference, DoubleAccumulator prunedWeight,
+		MaxAccumulator maxPrunedWeight) {
+		LabelVector normalized = normalizeAndPrune(tuple._1(), maxLabels, minWeight, prunedWeight, maxPrunedWeight);
+		if (tuple._2().isPresent())
+			maxDifference.add(normalized.maxDifference(tuple._2().get()));
+		return normalized;
 	}
 
-	// Combiner function for aggregateByKey (merges partial aggregates from different partitions)
-	public static Tuple2<Tuple2<String, Double>, Double> combinerFunction(
-		Tuple2<Tuple2<String, Double>, Double> acc1, // ((destNode, sumOfWeights), maxDifference)
-		Tuple2<Tuple2<String, Double>, Double> acc2) {
-		double sum = acc1._1()._2() + acc2._1()._2();
-		double maxDiff = Math.max(acc1._2(), acc2._2());
-		String maxLabel = null;
-			if (acc1._2() > acc2._2()) {
-				maxLabel = acc1._1()._1();
-			} else {
-				maxLabel = acc2._1()._1();
-			}
-		return new Tuple2<>(new Tuple2<>(maxLabel, sum), maxDiff);
+	// Filter for (post, (user, weight)) tuples, from (current, (label, labelWeight)) tuples
+	static JavaPairRDD<Long, Tuple2<Long, Double>> userPostWeights(JavaPairRDD<Long, Tuple2<Long, Double>> labels) {
+		return labels.filter(pair -> {
+			// Keep edges with posts as dest nodes, users as sources
+			return NodeDictionary.isUser(pair._2()._1()) && NodeDictionary.isPost(pair._1());
+		});
 	}
 
-	// Input is ((destNode, sumOfWeights), maxDifference)), from "aggregated" RDD
-	public static double extractMaxDifference(Tuple2<Tuple2<String, Double>, Double> tuple) {
-    return tuple._2();  // Extract the second value (maxDifference)
+	// (post, (user, weight)) -> post_rankings (user_id, post_id, weight)
+	static void bindRanking(PreparedStatement statement, Tuple2<Long, Tuple2<Long, Double>> ranking)
+		throws SQLException {
+		statement.setInt(1, (int) NodeDictionary.valueOf(ranking._2()._1()));
+		statement.setLong(2, NodeDictionary.valueOf(ranking._1()));
+		statement.setFloat(3, ranking._2()._2().floatValue());
+	}
+
+	/**
+	 * Write the (user, post, weight) rankings to post_rankings, one task per partition, so
+	 * they never pass through the driver. With Config.RANKINGS_SHADOW_PUBLISH they are loaded
+	 * into a staging table, which then replaces post_rankings; otherwise post_rankings is
+	 * marked with a new generation once they are all written.
+	 *
+	 * @return the number of rankings written
+	 * @throws IOException if the staging table cannot be prepared or published, or the
+	 *                     generation cannot be marked
+	 */
+	public long writeRankings(JavaPairRDD<Long, Tuple2<Long, Double>> labels) throws IOException {
+		if (rankingShadowPublish)
+			rankingPublisher.prepare();
+		long written = rankingWriter.write("rankings", userPostWeights(labels).rdd().toJavaRDD(), metrics);
+		if (rankingShadowPublish) {
+			long publishStart = System.currentTimeMillis();
+			rankingPublisher.publish();
+			metrics.phase("publishRankings", publishStart);
+		} else {
+			rankingPublisher.markGeneration();
+		}
+		logger.info("[FeedRankJob writeRankings()] Stored " + written + " items in post_rankings table");
+		return written;
 	}
 
-	// Input is ((destNode, sumOfWeights), maxDifference)), from "aggregated" RDD
-	public static double extractSumOfWeights(Tuple2<Tuple2<String, Double>, Double> tuple) {
-    return tuple._1()._2(); 
+	// post_rankings columns, as primitives
+	static final StructType RANKINGS_SCHEMA = new StructType()
+		.add("user_id", DataTypes.IntegerType, false)
+		.add("post_id", DataTypes.LongType, false)
+		.add("weight", DataTypes.FloatType, false);
+
+	/**
+	 * Write the (user_id, post_id, weight) rankings as Parquet files, one file per group of
+	 * users, and keep their manifest for getResultManifest()
+	 *
+	 * @return the manifest of the files
+	 * @throws IOException if the files cannot be listed
+	 */
+	public ResultManifest exportRankings(JavaPairRDD<Long, Tuple2<Long, Double>> labels) throws IOException {
+		JavaRDD<Row> rows = userPostWeights(labels).map(ranking -> RowFactory.create(
+			(int) NodeDictionary.valueOf(ranking._2()._1()),
+			NodeDictionary.valueOf(ranking._1()),
+			ranking._2()._2().floatValue()));
+		resultManifest = resultWriter.write("rankings", spark.createDataFrame(rows, RANKINGS_SCHEMA), "user_id", metrics);
+		logger.info("[FeedRankJob exportRankings()] Wrote " + resultManifest);
+		return resultManifest;
 	}
 
-	// Input is ((destNode, newWeight), difference))
-	public static Tuple2<String, Double> extractNewLabel(Tuple2<Tuple2<String, Double>, Double> tuple) {
-    return tuple._1(); 
+	// Parquet (user_id, post_id, weight) row -> post_rankings (user_id, post_id, weight)
+	static void bindRankingRow(PreparedStatement statement, Group ranking) throws SQLException {
+		statement.setInt(1, ranking.getInteger("user_id", 0));
+		statement.setLong(2, ranking.getLong("post_id", 0));
+		statement.setFloat(3, ranking.getFloat("weight", 0));
 	}
 
-	// Helper function to map node labels to their normalized versions (using sum)
-	public static Tuple2<String, Tuple2<String, Double>> normalizeLabel(
-		Tuple2<String, Tuple2<Tuple2<String, Double>, Double>> tuple) {
-		String node = tuple._1();
-		String label = tuple._2()._1()._1();  // Extract the label
-		double weight = tuple._2()._1()._2();  // Extract the label's weight
-		double sum = tuple._2()._2();  // Extract the node sum
+	/**
+	 * Stream rankings a job handed off (see setResultHandoff) into post_rankings from this
+	 * JVM, through a staging table that then replaces it with Config.RANKINGS_SHADOW_PUBLISH
+	 * (or marking a new generation once they are in otherwise), and delete the files once
+	 * they are in. A failed load is started over (see
+	 * ParquetResultLoader.withRetries).
+	 *
+	 * @return the number of rankings written
+	 * @throws IOException if the files cannot be read or the rankings cannot be written
+	 */
+	public static long loadRankings(ResultManifest manifest, FlexibleLogger logger)
+		throws IOException, InterruptedException {
+		return ParquetResultLoader.withRetries(manifest, logger, () -> loadRankingsOnce(manifest, logger));
+	}
 
-		// Return the new Tuple2 with the normalized weight
-		return new Tuple2<>(node, new Tuple2<>(label, weight / sum));
+	private static long loadRankingsOnce(ResultManifest manifest, FlexibleLogger logger)
+		throws IOException, InterruptedException {
+		ShadowTablePublisher publisher = ShadowTablePublisher.fromConfig(POST_RANKINGS_TABLE);
+		boolean shadowPublish = Config.RANKINGS_SHADOW_PUBLISH;
+		String table = shadowPublish ? publisher.getStagingTable() : POST_RANKINGS_TABLE;
+
+		if (shadowPublish)
+			publisher.prepare();
+		ParquetResultLoader loader = ParquetResultLoader.fromConfig();
+		long written = loader.load(manifest, JdbcBatchWriter.fromConfig(rankingsInsert(table), FeedRankJob::bindRankingRow));
+		if (shadowPublish)
+			publisher.publish();
+		else
+			publisher.markGeneration();
+		loader.delete(manifest);
+		logger.info("[FeedRankJob loadRankings()] Stored " + written + " items in post_rankings table");
+		return written;
 	}
 
 	// Get list of posts with weights for rankings database (for feed)
 	public List<SerializablePair<String, SerializablePair<String, Double>>> getTopRecommendations(
-    JavaPairRDD<String, Tuple2<String, Double>> labels) {
+    JavaPairRDD<Long, Tuple2<Long, Double>> labels) {
 
     // 1) Filter for (post, (user, weight)) tuples, from (current, (label, labelWeight)) tuples
-    JavaPairRDD<String, Tuple2<String, Double>> userPostWeights = labels
-			.filter(pair -> {
-				// Keep edges with posts as dest nodes, users as sources
-				String current = pair._1();
-				String label = pair._2()._1();
-				return !label.startsWith("hashtag:") && !label.startsWith("post:") && current.startsWith("post:");
-			});
-
-		logger.info("[FeedRankJob getTopRecommendations()] Number of rec entries: " + userPostWeights.count());
+    JavaPairRDD<Long, Tuple2<Long, Double>> userPostWeights = userPostWeights(labels);
 
-    // 2) Turn Tuple2s to SerializablePairs of (user, (post, weight)) to work with Livy
-		return userPostWeights
+    // 2) Decode ids and turn Tuple2s to SerializablePairs of (user, ("post:" + post, weight)) to work with Livy
+		return metrics.count("recommendations", userPostWeights)
 			.map(pair -> new SerializablePair<>(
-				pair._2()._1(),
-				new SerializablePair<>(pair._1(), pair._2()._2())
+				String.valueOf(NodeDictionary.valueOf(pair._2()._1())),
+				new SerializablePair<>(NodeType.POST.getPrefix() + NodeDictionary.valueOf(pair._1()), pair._2()._2())
 			))
 			.collect(); // returns List<SerializablePair<String, SerializablePair<String, Double>>>
 	}
@@ -0,0 +1,248 @@
+package instalite.ranking.adsorption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.graph.CsrGraph;
+import instalite.ranking.graph.NodeType;
+import instalite.ranking.utils.SerializablePair;
+
+/**
+ * Ranks posts for a single user on demand, without a batch FeedRankJob run, by
+ * approximating the user's personalized PageRank with local forward push.
+ *
+ * Every node has an estimate and a residual; the user starts with residual 1. Pushing a
+ * node moves alpha of its residual into its estimate and spreads the rest over its
+ * out-edges, weighted the same way as FeedRankJob.edgeWeight (0.3/0.4/0.3 of a
+ * user's weight to its hashtags/posts/users, uniform for posts and hashtags). A node is
+ * pushed while its residual is at least epsilon times its degree, so every push moves at
+ * least alpha * epsilon of residual per edge it scans: the work is bounded by about
+ * 1 / (alpha * epsilon) edge visits however large the graph is, hubs are only pushed once
+ * enough residual has gathered at them, and only the neighbourhood of the user is ever
+ * touched.
+ *
+ * Instances are safe to share between threads: each call keeps its state in its own
+ * small hash maps.
+ */
+public class ForwardPushRanker {
+    private final CsrGraph graph;
+    private final double alpha;
+    private final double epsilon;
+
+    // Node ids are grouped by type: users, then posts, then hashtags
+    private final int firstPost;
+    private final int firstHashtag;
+
+    /**
+     * @param graph   the graph, memory-mapped or loaded into the heap
+     * @param alpha   the teleport probability: the share of a residual kept at each push
+     * @param epsilon push nodes until every residual is below this times the node's degree
+     */
+    public ForwardPushRanker(CsrGraph graph, double alpha, double epsilon) {
+        this.graph = graph;
+        this.alpha = alpha;
+        this.epsilon = epsilon;
+        this.firstPost = graph.getFirstNode(NodeType.POST);
+        this.firstHashtag = graph.getFirstNode(NodeType.HASHTAG);
+    }
+
+    /**
+     * Rank with Config.PUSH_ALPHA and Config.PUSH_EPSILON
+     */
+    public ForwardPushRanker(CsrGraph graph) {
+        this(graph, Config.PUSH_ALPHA, Config.PUSH_EPSILON);
+    }
+
+    /**
+     * @param userId the user's id, e.g. "42"
+     * @param limit  the most posts to return
+     * @return ("post:[postId]", score) pairs, best first; empty if the user is not in the graph
+     */
+    public List<SerializablePair<String, Double>> rank(String userId, int limit) {
+        int user = graph.find(userId);
+        if (user < 0 || graph.getType(user) != NodeType.USER)
+            return Collections.emptyList();
+        return rank(user, limit);
+    }
+
+    /**
+     * @param user  the user's node id in the graph
+     * @param limit the most posts to return
+     * @return ("post:[postId]", score) pairs, best first
+     */
+    public List<SerializablePair<String, Double>> rank(int user, int limit) {
+        NodeScores estimates = new NodeScores();
+        NodeScores residuals = new NodeScores();
+        NodeQueue queue = new NodeQueue();
+
+        residuals.add(user, 1.0);
+        queue.add(user);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            double residual = residuals.get(node);
+            residuals.set(node, 0.0);
+            estimates.add(node, alpha * residual);
+            push(node, (1 - alpha) * residual, residuals, queue);
+        }
+        return topPosts(estimates, limit);
+    }
+
+    /**
+     * Spread weight over a node's out-edges, queueing neighbours whose residual reaches
+     * epsilon times their degree
+     */
+    private void push(int node, double weight, NodeScores residuals, NodeQueue queue) {
+        int[] neighbors = graph.getNeighbors(node);
+        if (neighbors.length == 0)
+            return;
+
+        double hashtagShare, postShare, userShare;
+        if (node < firstPost) {
+            // Users split their weight by neighbour type
+            int users = 0, posts = 0, hashtags = 0;
+            for (int neighbor : neighbors) {
+                if (neighbor >= firstHashtag) hashtags++;
+                else if (neighbor >= firstPost) posts++;
+                else users++;
+            }
+            hashtagShare = (hashtags == 0) ? 0 : 0.3 / hashtags;
+            postShare = (posts == 0) ? 0 : 0.4 / posts;
+            userShare = (users == 0) ? 0 : 0.3 / users;
+        } else {
+            // Posts and hashtags spread it uniformly
+            hashtagShare = postShare = userShare = 1.0 / neighbors.length;
+        }
+
+        for (int neighbor : neighbors) {
+            double share = (neighbor >= firstHashtag) ? hashtagShare : (neighbor >= firstPost) ? postShare : userShare;
+            double threshold = epsilon * Math.max(1, graph.getDegree(neighbor));
+            double before = residuals.get(neighbor);
+            double after = residuals.add(neighbor, weight * share);
+            // A node is queued exactly when its residual crosses its threshold; it is reset on being pushed
+            if (before < threshold && after >= threshold)
+                queue.add(neighbor);
+        }
+    }
+
+    private List<SerializablePair<String, Double>> topPosts(NodeScores estimates, int limit) {
+        PriorityQueue<SerializablePair<Integer, Double>> best = new PriorityQueue<>(
+            (a, b) -> Double.compare(a.getRight(), b.getRight()));
+        for (int i = 0; i < estimates.keys.length; i++) {
+            int node = estimates.keys[i];
+            if (node < firstPost || node >= firstHashtag)
+                continue;
+            best.add(new SerializablePair<>(node, estimates.values[i]));
+            if (best.size() > limit)
+                best.poll();
+        }
+
+        List<SerializablePair<String, Double>> posts = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            SerializablePair<Integer, Double> post = best.poll();
+            posts.add(new SerializablePair<>(graph.getName(post.getLeft()), post.getRight()));
+        }
+        Collections.reverse(posts);
+        return posts;
+    }
+
+    /**
+     * Open-addressing map from node id to score (empty slots hold -1)
+     */
+    private static final class NodeScores {
+        int[] keys = newKeys(64);
+        double[] values = new double[64];
+        int size;
+
+        private static int[] newKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+
+        private int slot(int node) {
+            int mask = keys.length - 1;
+            int hash = node * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != -1 && keys[slot] != node)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        double get(int node) {
+            int slot = slot(node);
+            return (keys[slot] == node) ? values[slot] : 0.0;
+        }
+
+        void set(int node, double value) {
+            int slot = slot(node);
+            if (keys[slot] == node)
+                values[slot] = value;
+            else
+                insert(slot, node, value);
+        }
+
+        double add(int node, double delta) {
+            int slot = slot(node);
+            if (keys[slot] == node)
+                return values[slot] += delta;
+            insert(slot, node, delta);
+            return delta;
+        }
+
+        private void insert(int slot, int node, double value) {
+            keys[slot] = node;
+            values[slot] = value;
+            if (++size * 2 > keys.length)
+                grow();
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            double[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new double[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable FIFO ring buffer of node ids
+     */
+    private static final class NodeQueue {
+        private int[] nodes = new int[64];
+        private int head;
+        private int size;
+
+        void add(int node) {
+            if (size == nodes.length) {
+                int[] grown = new int[nodes.length * 2];
+                for (int i = 0; i < size; i++)
+                    grown[i] = nodes[(head + i) % nodes.length];
+                nodes = grown;
+                head = 0;
+            }
+            nodes[(head + size++) % nodes.length] = node;
+        }
+
+        int poll() {
+            int node = nodes[head];
+            head = (head + 1) % nodes.length;
+            size--;
+            return node;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
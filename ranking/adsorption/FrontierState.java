@@ -0,0 +1,122 @@
+package instalite.ranking.adsorption;
+
+import java.io.Serializable;
+
+/**
+ * A node's state in active-set (frontier) adsorption.
+ *
+ * Rather than every node sending its whole label vector along its out-edges each iteration,
+ * only nodes in the frontier send, and they send the change since what they last sent. Each
+ * node keeps the (unnormalized) sum of everything its in-neighbors ever sent it, which the
+ * changes are added to, so the sum is the same as if every neighbor had sent its full vector
+ * and nodes whose in-neighbors are all quiet need no work at all.
+ *
+ * Immutable; each iteration makes the next state from the previous one.
+ */
+public class FrontierState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How much of the largest weight in a sum is treated as rounding error: labels that
+     * were added and subtracted again leave float residue of about this size behind
+     */
+    static final double RESIDUE = 1e-6;
+
+    /**
+     * A node that has received nothing and holds no labels
+     */
+    static final FrontierState UNREACHED = new FrontierState(null, LabelVector.empty(), LabelVector.empty(), null);
+
+    // Sum of the weighted vectors received so far (null until the node first receives)
+    private final LabelVector sum;
+    // The node's labels: the sum, normalized and pruned
+    private final LabelVector labels;
+    // The labels the node's out-neighbors have received from it
+    private final LabelVector sent;
+    // What the node sends this iteration (null if it is not in the frontier)
+    private final LabelVector delta;
+
+    FrontierState(LabelVector sum, LabelVector labels, LabelVector sent, LabelVector delta) {
+        this.sum = sum;
+        this.labels = labels;
+        this.sent = sent;
+        this.delta = delta;
+    }
+
+    /**
+     * @return the state of a node that starts with the given labels and sends all of them
+     */
+    public static FrontierState start(LabelVector labels) {
+        return new FrontierState(null, labels, labels, labels);
+    }
+
+    public LabelVector getSum() {
+        return sum;
+    }
+
+    public LabelVector getLabels() {
+        return labels;
+    }
+
+    public LabelVector getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the change to send to the out-neighbors, or null if the node is not in the frontier
+     */
+    public LabelVector getDelta() {
+        return delta;
+    }
+
+    public boolean isActive() {
+        return delta != null;
+    }
+
+    /**
+     * @return whether the node neither holds nor has sent anything, so it can be dropped
+     */
+    public boolean isEmpty() {
+        return (sum == null || sum.size() == 0) && labels.size() == 0 && sent.size() == 0;
+    }
+
+    /**
+     * @param incoming the sum of the weighted changes received this iteration
+     * @return the node's sum with them added, without residue of cancelled labels
+     */
+    public LabelVector addToSum(LabelVector incoming) {
+        if (sum == null)
+            return incoming.compact(RESIDUE * maxAbsWeight(incoming));
+        double scale = Math.max(maxAbsWeight(sum), maxAbsWeight(incoming));
+        return sum.add(incoming).compact(RESIDUE * scale);
+    }
+
+    /**
+     * @return the same state, out of the frontier
+     */
+    public FrontierState quiet() {
+        return delta == null ? this : new FrontierState(sum, labels, sent, null);
+    }
+
+    /**
+     * @param newSum    the node's new sum
+     * @param newLabels the node's new labels
+     * @param tolerance how far the labels may move from what was last sent before the node sends again
+     * @return the next state, in the frontier with the change to send if the labels moved far enough
+     */
+    public FrontierState next(LabelVector newSum, LabelVector newLabels, double tolerance) {
+        boolean changed = (sent.size() == 0 || newLabels.size() == 0)
+            ? sent.size() != newLabels.size()
+            : newLabels.maxDifference(sent) > tolerance;
+        if (!changed)
+            return new FrontierState(newSum, newLabels, sent, null);
+        return new FrontierState(newSum, newLabels, newLabels, newLabels.subtract(sent).compact(0));
+    }
+
+    private static double maxAbsWeight(LabelVector vector) {
+        double max = 0;
+        for (int i = 0; i < vector.size(); i++)
+            max = Math.max(max, Math.abs(vector.getWeight(i)));
+        return max;
+    }
+}
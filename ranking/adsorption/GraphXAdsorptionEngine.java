@@ -0,0 +1,236 @@
+package instalite.ranking.adsorption;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.graphx.Edge;
+import org.apache.spark.graphx.EdgeContext;
+import org.apache.spark.graphx.Graph;
+import org.apache.spark.graphx.PartitionStrategy;
+import org.apache.spark.graphx.TripletFields;
+import org.apache.spark.graphx.VertexRDD;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.DoubleAccumulator;
+
+import instalite.ranking.metrics.RunMetrics;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.MaxAccumulator;
+import scala.Option;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+import scala.runtime.AbstractFunction1;
+import scala.runtime.AbstractFunction2;
+import scala.runtime.AbstractFunction3;
+import scala.runtime.BoxedUnit;
+
+/**
+ * Adsorption as vertex-centric message passing on a GraphX graph. Every vertex holds its
+ * LabelVector; in each superstep every vertex sends its vector, scaled by the edge weight,
+ * to its out-neighbours and then replaces its own vector with the normalized (and, if
+ * configured, pruned) sum of what it received.
+ *
+ * The edges are partitioned once (EdgePartition2D) and stay cached for the whole run; only
+ * the vertex attributes are rebuilt between supersteps. The superstep loop is driven here
+ * rather than by Pregel.apply: Pregel halts once no messages are sent, but adsorption needs
+ * every vertex to hear from all of its in-neighbours each superstep, and it stops on the
+ * global max label difference, which is collected with an accumulator.
+ *
+ * Each superstep adds a join to the graph's lineage. With a checkpoint directory set (see
+ * setCheckpoints()), the graph is checkpointed under [dir]/graphx every few supersteps so the
+ * lineage, and the plan Spark recomputes a lost partition from, starts there instead. The
+ * previous checkpoint's files are deleted once the next one is written, and a run clears
+ * what an earlier one left behind. These checkpoints only cut the lineage: this engine does
+ * not write label checkpoints, so a run that dies cannot resume from them.
+ */
+public class GraphXAdsorptionEngine implements AdsorptionEngine {
+    private static final ClassTag<LabelVector> VECTOR_TAG = ClassTag$.MODULE$.apply(LabelVector.class);
+    private static final ClassTag<Double> WEIGHT_TAG = ClassTag$.MODULE$.apply(Double.class);
+
+    private final JavaSparkContext context;
+    private final FlexibleLogger logger;
+    private final RunMetrics metrics;
+    private final double d_max;
+    private final int i_max;
+    private final int l_max;
+    private final double w_min;
+    private final StorageLevel storageLevel;
+
+    private String checkpointDir;
+    private int checkpointInterval;
+
+    /**
+     * @param context      the Spark context
+     * @param logger       the job's logger
+     * @param metrics      the run's metrics
+     * @param d_max        stop once no label weight changes by more than this
+     * @param i_max        max number of supersteps
+     * @param l_max        max number of labels kept per node (0 for no limit)
+     * @param w_min        smallest normalized label weight kept (0 to keep all)
+     * @param storageLevel storage level for the graph's edges and vertices
+     */
+    public GraphXAdsorptionEngine(JavaSparkContext context, FlexibleLogger logger, RunMetrics metrics, double d_max,
+        int i_max, int l_max, double w_min, StorageLevel storageLevel) {
+        this.context = context;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.d_max = d_max;
+        this.i_max = i_max;
+        this.l_max = l_max;
+        this.w_min = w_min;
+        this.storageLevel = storageLevel;
+    }
+
+    /**
+     * Checkpoint the graph every interval supersteps under [checkpointDir]/graphx (off by
+     * default, and with a null or empty directory or a non-positive interval)
+     */
+    public void setCheckpoints(String checkpointDir, int checkpointInterval) {
+        this.checkpointDir = checkpointDir;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    @Override
+    public JavaPairRDD<Long, Tuple2<Long, Double>> propagate(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        boolean checkpointing = checkpointDir != null && !checkpointDir.isEmpty() && checkpointInterval > 0;
+        FileSystem fs = null;
+        if (checkpointing) {
+            // Spark writes each run's checkpoints under a new subdirectory of this one
+            Path graphCheckpoints = new Path(checkpointDir, "graphx");
+            fs = graphCheckpoints.getFileSystem(context.hadoopConfiguration());
+            fs.delete(graphCheckpoints, true);
+            context.setCheckpointDir(graphCheckpoints.toString());
+        }
+
+        JavaRDD<Tuple2<Object, LabelVector>> vertices = labels
+            .mapValues(label -> LabelVector.of(label._1(), label._2().floatValue()))
+            .reduceByKey(LabelVector::add)
+            .map(vertex -> new Tuple2<Object, LabelVector>(vertex._1(), vertex._2()));
+        JavaRDD<Edge<Double>> edges = weightedEdges
+            .map(edge -> new Edge<>(edge._1(), edge._2()._1(), edge._2()._2()));
+
+        // Vertices without initial labels (posts, hashtags) start with an empty vector
+        Graph<LabelVector, Double> graph = Graph.apply(vertices.rdd(), edges.rdd(), LabelVector.empty(),
+                storageLevel, storageLevel, VECTOR_TAG, WEIGHT_TAG)
+            .partitionBy(PartitionStrategy.EdgePartition2D$.MODULE$);
+
+        boolean pruning = (l_max > 0) || (w_min > 0);
+        // Taken when written: GraphX swaps a graph's edges for new ones when it ships vertices to them
+        List<String> lastCheckpointFiles = new ArrayList<>();
+        for (int i = 0; i < i_max; i++) {
+            logger.info("[GraphXAdsorptionEngine propagate()] Starting superstep " + i);
+
+            MaxAccumulator differences = new MaxAccumulator();
+            context.sc().register(differences, "maxLabelDifference" + i);
+            DoubleAccumulator prunedWeight = context.sc().doubleAccumulator("prunedLabelWeight" + i);
+            MaxAccumulator maxPrunedWeight = new MaxAccumulator();
+            context.sc().register(maxPrunedWeight, "maxPrunedLabelWeight" + i);
+
+            // 1) Every vertex sends its scaled labels along its out-edges; messages to a vertex are summed
+            VertexRDD<LabelVector> messages = graph.aggregateMessages(new SendLabels(), new MergeLabels(),
+                TripletFields.Src, VECTOR_TAG);
+
+            // 2) Every vertex takes the normalized sum as its new labels; materialize once to fill the accumulators
+            Graph<LabelVector, Double> updated = graph.outerJoinVertices(messages,
+                new UpdateLabels(l_max, w_min, differences, prunedWeight, maxPrunedWeight), VECTOR_TAG, VECTOR_TAG, null)
+                .persist(storageLevel);
+            boolean checkpoint = checkpointing && (i + 1) % checkpointInterval == 0;
+            if (checkpoint)
+                updated.checkpoint();
+            long vertexCount = updated.vertices().count();
+            if (checkpoint) {
+                // The vertex count wrote the vertices; the edges are only written once they are computed
+                updated.edges().count();
+                for (String file : lastCheckpointFiles)
+                    fs.delete(new Path(file), true);
+                lastCheckpointFiles = new ArrayList<>(JavaConverters.seqAsJavaList(updated.getCheckpointFiles()));
+                logger.info("[GraphXAdsorptionEngine propagate()] Checkpointed the graph after superstep " + i);
+            }
+
+            graph.unpersistVertices(false);
+            graph = updated;
+
+            double maxDifference = differences.value();
+            logger.info("[GraphXAdsorptionEngine propagate()] Max label difference: " + maxDifference);
+            if (pruning) {
+                metrics.iteration(i, "maxDifference", maxDifference, "vertices", vertexCount,
+                    "prunedWeight", prunedWeight.value(), "maxPrunedWeight", maxPrunedWeight.value());
+            } else {
+                metrics.iteration(i, "maxDifference", maxDifference, "vertices", vertexCount);
+            }
+
+            // Check for convergence after at least 2 supersteps
+            if ((i > 0) && (d_max > maxDifference)) break;
+        }
+
+        JavaPairRDD<Long, LabelVector> vectors = graph.vertices().toJavaRDD()
+            .filter(vertex -> vertex._2().size() > 0)
+            .mapToPair(vertex -> new Tuple2<>((Long) vertex._1(), vertex._2()));
+        return FeedRankJob.toLabelPairs(vectors);
+    }
+
+    // Send a vertex's labels, scaled by the edge weight, to the edge's destination
+    private static class SendLabels extends AbstractFunction1<EdgeContext<LabelVector, Double, LabelVector>, BoxedUnit>
+        implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public BoxedUnit apply(EdgeContext<LabelVector, Double, LabelVector> edge) {
+            if (edge.srcAttr().size() > 0)
+                edge.sendToDst(edge.srcAttr().scale(edge.attr()));
+            return BoxedUnit.UNIT;
+        }
+    }
+
+    private static class MergeLabels extends AbstractFunction2<LabelVector, LabelVector, LabelVector>
+        implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public LabelVector apply(LabelVector a, LabelVector b) {
+            return a.add(b);
+        }
+    }
+
+    // Replace a vertex's labels with the normalized (and pruned) messages it received, tracking
+    // how far they moved; a vertex that received nothing is left without labels
+    private static class UpdateLabels extends AbstractFunction3<Object, LabelVector, Option<LabelVector>, LabelVector>
+        implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxLabels;
+        private final double minWeight;
+        private final MaxAccumulator differences;
+        private final DoubleAccumulator prunedWeight;
+        private final MaxAccumulator maxPrunedWeight;
+
+        UpdateLabels(int maxLabels, double minWeight, MaxAccumulator differences, DoubleAccumulator prunedWeight,
+            MaxAccumulator maxPrunedWeight) {
+            this.maxLabels = maxLabels;
+            this.minWeight = minWeight;
+            this.differences = differences;
+            this.prunedWeight = prunedWeight;
+            this.maxPrunedWeight = maxPrunedWeight;
+        }
+
+        @Override
+        public LabelVector apply(Object vertex, LabelVector previous, Option<LabelVector> received) {
+            if (received.isEmpty())
+                return LabelVector.empty();
+            LabelVector updated = FeedRankJob.normalizeAndPrune(received.get(), maxLabels, minWeight, prunedWeight,
+                maxPrunedWeight);
+            if (previous.size() > 0)
+                differences.add(updated.maxDifference(previous));
+            return updated;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package instalite.ranking.adsorption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.storage.StorageLevel;
+
+import scala.Tuple2;
+
+/**
+ * Splits the work of hub nodes (nodes with more out-edges than Config.HUB_DEGREE_THRESHOLD,
+ * e.g. a popular hashtag or a viral post) across partitions during propagation.
+ *
+ * Keyed by source node, all of a hub's edges and the join that scales its labels along
+ * them land in one task, so an iteration takes as long as the largest hub. Here a hub's
+ * edges are instead keyed by (hub, salt), with the salt taken from the destination, and
+ * spread over all partitions; each iteration the hub's labels (a few rows) are copied to
+ * every salt and joined there. Edges of other nodes are left keyed by source.
+ */
+public class HubSalting {
+    private final Broadcast<Set<Long>> hubs;
+    private final int salts;
+    private final Partitioner partitioner;
+
+    /**
+     * @param context    the Spark context
+     * @param hubs       the hub nodes
+     * @param salts      how many pieces to split each hub's edges into
+     * @param partitions number of partitions for the salted edges
+     */
+    public HubSalting(JavaSparkContext context, Set<Long> hubs, int salts, int partitions) {
+        this.hubs = context.broadcast(hubs);
+        this.salts = Math.max(1, salts);
+        this.partitioner = new HashPartitioner(partitions);
+    }
+
+    /**
+     * @return salting that splits nothing
+     */
+    public static HubSalting none(JavaSparkContext context) {
+        return new HubSalting(context, Collections.emptySet(), 1, 1);
+    }
+
+    public boolean hasHubs() {
+        return !hubs.value().isEmpty();
+    }
+
+    /**
+     * @return the rows of non-hub nodes, with the same partitioning
+     */
+    public <V> JavaPairRDD<Long, V> regular(JavaPairRDD<Long, V> rows) {
+        Broadcast<Set<Long>> hubs = this.hubs;
+        return rows.filter(row -> !hubs.value().contains(row._1()));
+    }
+
+    /**
+     * @param weightedEdges (source, (dest, edgeWeight))
+     * @param storageLevel  storage level for the salted edges
+     * @return the hubs' edges, ((source, salt), (dest, edgeWeight)), partitioned by salted key
+     */
+    public JavaPairRDD<Tuple2<Long, Integer>, Tuple2<Long, Double>> saltEdges(
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges, StorageLevel storageLevel) {
+        Broadcast<Set<Long>> hubs = this.hubs;
+        int salts = this.salts;
+        return weightedEdges
+            .filter(edge -> hubs.value().contains(edge._1()))
+            .mapToPair(edge -> new Tuple2<>(new Tuple2<>(edge._1(), salt(edge._2()._1(), salts)), edge._2()))
+            .partitionBy(partitioner)
+            .persist(storageLevel);
+    }
+
+    /**
+     * @return the hubs' rows copied to every salt, ((node, salt), value), partitioned like the salted edges
+     */
+    public <V> JavaPairRDD<Tuple2<Long, Integer>, V> replicate(JavaPairRDD<Long, V> rows) {
+        Broadcast<Set<Long>> hubs = this.hubs;
+        int salts = this.salts;
+        return rows
+            .filter(row -> hubs.value().contains(row._1()))
+            .flatMapToPair(row -> {
+                List<Tuple2<Tuple2<Long, Integer>, V>> copies = new ArrayList<>(salts);
+                for (int salt = 0; salt < salts; salt++)
+                    copies.add(new Tuple2<>(new Tuple2<>(row._1(), salt), row._2()));
+                return copies.iterator();
+            })
+            .partitionBy(partitioner);
+    }
+
+    public void destroy() {
+        hubs.destroy();
+    }
+
+    private static int salt(long dest, int salts) {
+        return Math.floorMod(Long.hashCode(dest * 0x9E3779B97F4A7C15L), salts);
+    }
+}
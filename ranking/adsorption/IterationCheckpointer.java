@@ -0,0 +1,193 @@
+package instalite.ranking.adsorption;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+
+import instalite.ranking.graph.NodeDictionary;
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Checkpoints the adsorption labels every few iterations.
+ *
+ * A checkpoint writes the labels to a {@link LabelStateStore} and reads them back,
+ * so the rest of the run's lineage starts at the checkpoint files instead of growing
+ * with every iteration back to the JDBC read. The iteration number and its max label
+ * difference are recorded alongside, so a run that dies can be started again and pick
+ * up after the last checkpoint. The checkpoints are deleted once a run finishes.
+ *
+ * Each checkpoint also records the run it belongs to: a fingerprint of the input edges and
+ * the parameters that shape the labels (see {@link #runKey}). A checkpoint left by a run
+ * on other inputs or with other parameters is discarded instead of resumed, since its
+ * labels would not converge to this run's result.
+ *
+ * With no checkpoint directory or a non-positive interval, nothing is ever due and
+ * runs start at iteration 0.
+ */
+public class IterationCheckpointer {
+    private final LabelStateStore store;
+    private final FlexibleLogger logger;
+    private final int interval;
+    private final NodeDictionary dictionary;
+    private final Partitioner partitioner;
+    private final StorageLevel storageLevel;
+    private final Properties runKey;
+    private final Properties resumePoint;
+
+    /**
+     * @param spark         the Spark session
+     * @param logger        the job's logger
+     * @param checkpointDir where to write checkpoints (null or empty disables them)
+     * @param interval      checkpoint after every this many iterations
+     * @param dictionary    this run's node dictionary
+     * @param partitioner   the partitioner the reloaded labels must share with the edges
+     * @param storageLevel  storage level for the reloaded labels
+     * @param runKey        the run's input fingerprint and parameters (see {@link #runKey})
+     * @throws IOException if an existing checkpoint cannot be read or discarded
+     */
+    public IterationCheckpointer(SparkSession spark, FlexibleLogger logger, String checkpointDir, int interval,
+        NodeDictionary dictionary, Partitioner partitioner, StorageLevel storageLevel, Properties runKey)
+        throws IOException {
+        boolean enabled = checkpointDir != null && !checkpointDir.isEmpty() && interval > 0;
+        this.store = enabled ? new LabelStateStore(spark, logger, checkpointDir) : null;
+        this.logger = logger;
+        this.interval = interval;
+        this.dictionary = dictionary;
+        this.partitioner = partitioner;
+        this.storageLevel = storageLevel;
+        this.runKey = runKey;
+        this.resumePoint = enabled ? matchingCheckpoint() : null;
+    }
+
+    /**
+     * The properties a checkpoint must match to be resumed
+     *
+     * @param edges  the run's input edges
+     * @param engine the adsorption engine
+     * @param d_max  convergence threshold
+     * @param i_max  max number of iterations
+     * @param l_max  max number of labels kept per node
+     * @param w_min  smallest label weight kept
+     */
+    public static Properties runKey(JavaPairRDD<String, String> edges, AdsorptionEngine.Type engine, double d_max,
+        int i_max, int l_max, double w_min) {
+        // Row count and an order-independent sum of a 64-bit hash per edge, as in InputFingerprints
+        Tuple2<Long, Long> fingerprint = edges
+            .map(edge -> new Tuple2<>(1L,
+                mix(((long) edge._1().hashCode() << 32) | (edge._2().hashCode() & 0xffffffffL))))
+            .fold(new Tuple2<>(0L, 0L), (a, b) -> new Tuple2<>(a._1() + b._1(), a._2() + b._2()));
+
+        Properties key = new Properties();
+        key.setProperty("input", fingerprint._1() + ":" + Long.toHexString(fingerprint._2()));
+        key.setProperty("engine", engine.toString());
+        key.setProperty("d_max", Double.toString(d_max));
+        key.setProperty("i_max", Integer.toString(i_max));
+        key.setProperty("l_max", Integer.toString(l_max));
+        key.setProperty("w_min", Double.toString(w_min));
+        return key;
+    }
+
+    // Spread the bits of a 64-bit value (SplitMix64 finalizer)
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    // The last checkpoint, if it was written by a run on the same inputs with the same parameters
+    private Properties matchingCheckpoint() throws IOException {
+        Properties checkpoint = store.getMetadata();
+        if (checkpoint == null)
+            return null;
+        for (String name : runKey.stringPropertyNames()) {
+            if (!runKey.getProperty(name).equals(checkpoint.getProperty(name))) {
+                logger.info("[IterationCheckpointer] Discarding the checkpoint after iteration "
+                    + checkpoint.getProperty("iteration") + ": it was written with " + name + "="
+                    + checkpoint.getProperty(name) + ", this run has " + runKey.getProperty(name));
+                store.delete();
+                return null;
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return whether an unfinished run left a checkpoint to resume from
+     */
+    public boolean canResume() {
+        return resumePoint != null;
+    }
+
+    /**
+     * @return the iteration to start at: 0, or the one after the last checkpoint
+     */
+    public int getFirstIteration() {
+        return canResume() ? Integer.parseInt(resumePoint.getProperty("iteration")) + 1 : 0;
+    }
+
+    /**
+     * @return the labels of the last checkpoint, (current, (label, labelWeight)), not yet partitioned
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public JavaPairRDD<Long, Tuple2<Long, Double>> loadLabels() throws IOException {
+        logger.info("[IterationCheckpointer] Resuming after iteration " + resumePoint.getProperty("iteration")
+            + " (max label difference " + resumePoint.getProperty("maxDifference") + ")");
+        return store.load(dictionary);
+    }
+
+    public boolean isDue(int iteration) {
+        return store != null && (iteration + 1) % interval == 0;
+    }
+
+    /**
+     * Checkpoint (current, (label, labelWeight)) labels
+     *
+     * @return the labels read back from the checkpoint, partitioned and persisted
+     */
+    public JavaPairRDD<Long, Tuple2<Long, Double>> checkpoint(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        int iteration, double maxDifference) throws IOException {
+        save(labels, iteration, maxDifference);
+        JavaPairRDD<Long, Tuple2<Long, Double>> reloaded = store.load(dictionary)
+            .partitionBy(partitioner)
+            .persist(storageLevel);
+        labels.unpersist();
+        return reloaded;
+    }
+
+    /**
+     * Checkpoint (current, labelVector) labels
+     *
+     * @return the vectors read back from the checkpoint, partitioned and persisted
+     */
+    public JavaPairRDD<Long, LabelVector> checkpointVectors(JavaPairRDD<Long, LabelVector> vectors, int iteration,
+        double maxDifference) throws IOException {
+        save(FeedRankJob.toLabelPairs(vectors), iteration, maxDifference);
+        JavaPairRDD<Long, LabelVector> reloaded = FeedRankJob.toLabelVectors(store.load(dictionary), partitioner)
+            .persist(storageLevel);
+        vectors.unpersist();
+        return reloaded;
+    }
+
+    /**
+     * Drop the checkpoints of a run that completed, so the next run starts over
+     */
+    public void finish() throws IOException {
+        if (store != null)
+            store.delete();
+    }
+
+    private void save(JavaPairRDD<Long, Tuple2<Long, Double>> labels, int iteration, double maxDifference)
+        throws IOException {
+        Properties progress = new Properties();
+        progress.putAll(runKey);
+        progress.setProperty("iteration", Integer.toString(iteration));
+        progress.setProperty("maxDifference", Double.toString(maxDifference));
+        store.save(labels, dictionary, progress);
+        logger.info("[IterationCheckpointer] Checkpointed labels after iteration " + iteration);
+    }
+}
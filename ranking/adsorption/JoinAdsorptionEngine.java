@@ -0,0 +1,473 @@
+package instalite.ranking.adsorption;
+
+import java.io.IOException;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.Optional;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.DoubleAccumulator;
+import org.apache.spark.util.LongAccumulator;
+
+import instalite.ranking.metrics.RunMetrics;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.MaxAccumulator;
+import scala.Tuple2;
+
+/**
+ * Adsorption as a sequence of RDD joins against the co-partitioned weighted edges.
+ *
+ * Labels are either one (current, (label, labelWeight)) row per label contribution, or,
+ * with sparse labels, fused iterations or label pruning, one LabelVector per node. With
+ * an active set only the nodes whose labels changed propagate (see {@link FrontierState}).
+ * The job sets these options (from Config.SPARSE_LABELS, Config.FUSED_ITERATIONS,
+ * Config.ACTIVE_SET and Config.ACTIVE_SET_TOLERANCE); all are off by default.
+ *
+ * The out-edges of hub nodes are split across partitions with {@link HubSalting}, so the
+ * join that scales a hub's labels along its edges does not run in a single task.
+ *
+ * Row and label counts are gathered with accumulators while each iteration's labels are
+ * materialized anyway and recorded in the run's metrics, rather than counted with extra jobs.
+ */
+public class JoinAdsorptionEngine implements AdsorptionEngine {
+    private final JavaSparkContext context;
+    private final FlexibleLogger logger;
+    private final RunMetrics metrics;
+    private final double d_max;
+    private final int i_max;
+    private final int l_max;
+    private final double w_min;
+    private final Partitioner partitioner;
+    private final StorageLevel storageLevel;
+    private final IterationCheckpointer checkpoints;
+    private final HubSalting salting;
+
+    private boolean sparseLabels = false;
+    private boolean fusedIterations = false;
+    private boolean activeSet = false;
+    private double activeSetTolerance = 0;
+
+    // The hubs' edges keyed by (hub, salt), while propagating with hubs
+    private JavaPairRDD<Tuple2<Long, Integer>, Tuple2<Long, Double>> hubEdges;
+
+    /**
+     * @param context      the Spark context
+     * @param logger       the job's logger
+     * @param metrics      the run's metrics
+     * @param d_max        stop once no label weight changes by more than this
+     * @param i_max        max number of iterations
+     * @param l_max        max number of labels kept per node (0 for no limit)
+     * @param w_min        smallest normalized label weight kept (0 to keep all)
+     * @param partitioner  the partitioner shared by labels and edges
+     * @param storageLevel storage level for each iteration's labels
+     * @param checkpoints  where to start and when to checkpoint
+     * @param salting      how to split the hubs' edges
+     */
+    public JoinAdsorptionEngine(JavaSparkContext context, FlexibleLogger logger, RunMetrics metrics, double d_max,
+        int i_max, int l_max, double w_min, Partitioner partitioner, StorageLevel storageLevel,
+        IterationCheckpointer checkpoints, HubSalting salting) {
+        this.context = context;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.d_max = d_max;
+        this.i_max = i_max;
+        this.l_max = l_max;
+        this.w_min = w_min;
+        this.partitioner = partitioner;
+        this.storageLevel = storageLevel;
+        this.checkpoints = checkpoints;
+        this.salting = salting;
+    }
+
+    /**
+     * Propagate one sparse label vector per node rather than one row per label contribution
+     */
+    public void setSparseLabels(boolean sparseLabels) {
+        this.sparseLabels = sparseLabels;
+    }
+
+    /**
+     * Normalize and diff the label vectors in one pass per iteration (implies sparse labels)
+     */
+    public void setFusedIterations(boolean fusedIterations) {
+        this.fusedIterations = fusedIterations;
+    }
+
+    /**
+     * Propagate only from nodes whose labels moved more than the tolerance (d_max if 0)
+     * since they last sent (implies sparse labels)
+     */
+    public void setActiveSet(boolean activeSet, double tolerance) {
+        this.activeSet = activeSet;
+        this.activeSetTolerance = tolerance;
+    }
+
+    /**
+     * @return whether labels are pruned each iteration (which needs one label vector per node)
+     */
+    boolean isPruning() {
+        return (l_max > 0) || (w_min > 0);
+    }
+
+    @Override
+    public JavaPairRDD<Long, Tuple2<Long, Double>> propagate(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        if (salting.hasHubs())
+            hubEdges = salting.saltEdges(weightedEdges, storageLevel);
+        try {
+            return propagateLabels(labels, weightedEdges);
+        } finally {
+            if (hubEdges != null)
+                hubEdges.unpersist();
+        }
+    }
+
+    private JavaPairRDD<Long, Tuple2<Long, Double>> propagateLabels(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        if (activeSet || sparseLabels || fusedIterations || isPruning()) {
+            // One sparse label vector per node: (current, {label: labelWeight, ...})
+            JavaPairRDD<Long, LabelVector> vectors = metrics
+                .count("initialLabelVectors", FeedRankJob.toLabelVectors(labels, partitioner))
+                .persist(storageLevel);
+
+            if (activeSet)
+                return FeedRankJob.toLabelPairs(propagateFrontier(vectors, weightedEdges));
+            return FeedRankJob.toLabelPairs(propagateSparse(vectors, weightedEdges));
+        }
+
+        labels = metrics.count("initialLabels", labels.partitionBy(partitioner))
+            .persist(storageLevel);
+
+        return propagatePairs(labels, weightedEdges);
+    }
+
+    /**
+     * Adsorption with one (current, (label, labelWeight)) row per label contribution at each node
+     *
+     * @param labels initial labels, (current, (label, labelWeight)), partitioned by partitioner
+     * @param weightedEdges (source, (dest, edgeWeight)), partitioned by partitioner
+     * @return the final labels
+     * @throws IOException if a checkpoint cannot be written
+     */
+    JavaPairRDD<Long, Tuple2<Long, Double>> propagatePairs(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        // Adsorption
+        for (int i = checkpoints.getFirstIteration(); i < i_max; i++) {
+            logger.info("[JoinAdsorptionEngine propagatePairs()] Starting adsorption iteration " + i);
+
+            // Label rows and their total weight, filled in when the normalized labels are materialized
+            LongAccumulator labelCount = context.sc().longAccumulator("labels" + i);
+            DoubleAccumulator labelWeight = context.sc().doubleAccumulator("labelWeight" + i);
+
+            // 1) Main propagation (the join is narrow; partitionBy is the iteration's one shuffle):
+            // 		(current, (label, labelWeight))
+            //			-> (current, ((label, labelWeight), (neighbor, edgeWeight))
+            // 			-> (neighbor, (label, labelWeight * edgeWeight))
+            JavaPairRDD<Long, Tuple2<Long, Double>> newLabels = joinEdges(labels, weightedEdges)
+                .mapToPair(FeedRankJob::mapToNewLabel)
+                .partitionBy(partitioner);
+            logger.info("[JoinAdsorptionEngine propagatePairs()] Calculated unnormalized new labels");
+
+            // 2) Normalization: find sum of label weights at each node
+            // 		(current, (label, labelWeight))
+            //			-> (current, totalLabelWeight)
+            JavaPairRDD<Long, Double> nodeTotalLabelWeights = newLabels
+                .mapValues(label -> label._2()) // Extract (current, labelWeight)
+                .reduceByKey(partitioner, (a, b) -> a + b); // Sum label weights
+            
+            // 3) Normalization: divide by sums for new label weights
+            //		(current, (label, labelWeight))
+            //			-> (current, ((label, labelWeight), totalLabelWeight))
+            //			-> (current, (label, normalizedLabelWeight))
+            JavaPairRDD<Long, Tuple2<Long, Double>> normalizedLabels = newLabels
+                .join(nodeTotalLabelWeights)
+                .mapValues(tuple -> {
+                    long label = tuple._1()._1();
+                    double normalizedLabelWeight = tuple._1()._2() / tuple._2();
+                    labelCount.add(1);
+                    labelWeight.add(normalizedLabelWeight);
+                    return new Tuple2<>(label, normalizedLabelWeight);
+                })
+                .persist(storageLevel);
+            logger.info("[JoinAdsorptionEngine propagatePairs()] Normalized new labels");
+
+            // 4) Find differences in each label
+            // 		(current, ((newLabel, newWeight), (oldLabel, oldWeight)))
+            //			-> labelWeightDifference
+            JavaRDD<Double> labelDifferences = normalizedLabels
+                .join(labels)
+                .map(tuple -> Math.abs(tuple._2()._1()._2() - tuple._2()._2()._2()));
+            
+            // 5) Get max difference to check for convergence later
+            double maxDifference = labelDifferences.reduce(Math::max);
+
+            // The new labels are materialized now, so the previous iteration's can go
+            labels.unpersist();
+            labels = normalizedLabels;
+
+            logger.info("[JoinAdsorptionEngine propagatePairs()] Max label difference: " + maxDifference);
+            metrics.iteration(i, "maxDifference", maxDifference, "labels", labelCount.value(),
+                "labelWeight", labelWeight.value());
+
+            if (checkpoints.isDue(i))
+                labels = checkpoints.checkpoint(labels, i, maxDifference);
+
+            // Check for convergence after at least 2 iterations
+            if ((i > 0) && (d_max > maxDifference)) break;
+        }
+
+        return labels;
+    }
+
+    /**
+     * Adsorption with one sparse LabelVector per node. Each edge carries its source's whole
+     * vector, scaled by the edge weight; vectors arriving at a node are merged (map-side
+     * first, via reduceByKey), then normalized and diffed locally.
+     *
+     * With fused iterations the normalization and the diff against the old vector
+     * happen in the same pass over the aggregated vectors, with the max difference collected
+     * in an accumulator, so an iteration is one shuffle and one Spark job (the one that
+     * materializes the new vectors).
+     *
+     * If pruning is configured, each normalized vector keeps only its l_max heaviest labels
+     * with weight at least w_min and is renormalized; the weight dropped is logged per
+     * iteration as the pruning error.
+     *
+     * @param vectors initial label vectors, (current, labelVector), partitioned by partitioner
+     * @param weightedEdges (source, (dest, edgeWeight)), partitioned by partitioner
+     * @return the final label vectors
+     * @throws IOException if a checkpoint cannot be written
+     */
+    JavaPairRDD<Long, LabelVector> propagateSparse(JavaPairRDD<Long, LabelVector> vectors,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        // Locals, so the closures below do not capture the job
+        int maxLabels = l_max;
+        double minWeight = w_min;
+
+        for (int i = checkpoints.getFirstIteration(); i < i_max; i++) {
+            logger.info("[JoinAdsorptionEngine propagateSparse()] Starting adsorption iteration " + i);
+
+            // Pruning error: total weight dropped (approximate if a partition is recomputed)
+            // and the most dropped at any one node
+            DoubleAccumulator prunedWeight = context.sc().doubleAccumulator("prunedLabelWeight" + i);
+            MaxAccumulator maxPrunedWeight = new MaxAccumulator();
+            context.sc().register(maxPrunedWeight, "maxPrunedLabelWeight" + i);
+
+            // Nodes, labels and label weight after normalization, filled in when the vectors are materialized
+            LongAccumulator nodeCount = context.sc().longAccumulator("nodes" + i);
+            LongAccumulator labelCount = context.sc().longAccumulator("labels" + i);
+            DoubleAccumulator labelWeight = context.sc().doubleAccumulator("labelWeight" + i);
+
+            // 1) Propagation and normalization:
+            //		(current, (labelVector, (neighbor, edgeWeight)))
+            //			-> (neighbor, labelVector * edgeWeight)
+            //			-> (neighbor, sum of incoming vectors, normalized)
+            JavaPairRDD<Long, LabelVector> propagatedVectors = joinEdges(vectors, weightedEdges)
+                .mapToPair(tuple -> new Tuple2<>(tuple._2()._2()._1(), tuple._2()._1().scale(tuple._2()._2()._2())))
+                .reduceByKey(partitioner, LabelVector::add);
+
+            JavaPairRDD<Long, LabelVector> normalizedVectors;
+            double maxDifference;
+            if (fusedIterations) {
+                // 2) Normalize and diff in one narrow pass (old vectors share the partitioner),
+                //    then materialize once to fill the accumulator
+                MaxAccumulator differences = new MaxAccumulator();
+                context.sc().register(differences, "maxLabelDifference" + i);
+                normalizedVectors = propagatedVectors
+                    .leftOuterJoin(vectors)
+                    .mapValues(tuple -> countLabels(FeedRankJob.normalizeAndTrackDifference(tuple, maxLabels, minWeight,
+                        differences, prunedWeight, maxPrunedWeight), nodeCount, labelCount, labelWeight))
+                    .persist(storageLevel);
+                normalizedVectors.count();
+                maxDifference = differences.value();
+            } else {
+                normalizedVectors = propagatedVectors
+                    .mapValues(vector -> countLabels(FeedRankJob.normalizeAndPrune(vector, maxLabels, minWeight,
+                        prunedWeight, maxPrunedWeight), nodeCount, labelCount, labelWeight))
+                    .persist(storageLevel);
+
+                // 2) Max difference between each node's old and new vector
+                maxDifference = normalizedVectors
+                    .join(vectors)
+                    .map(tuple -> tuple._2()._1().maxDifference(tuple._2()._2()))
+                    .fold(0.0, Math::max);
+            }
+
+            vectors.unpersist();
+            vectors = normalizedVectors;
+
+            logger.info("[JoinAdsorptionEngine propagateSparse()] Max label difference: " + maxDifference);
+            if (isPruning()) {
+                metrics.iteration(i, "maxDifference", maxDifference, "nodes", nodeCount.value(),
+                    "labels", labelCount.value(), "labelWeight", labelWeight.value(),
+                    "prunedWeight", prunedWeight.value(), "maxPrunedWeight", maxPrunedWeight.value());
+            } else {
+                metrics.iteration(i, "maxDifference", maxDifference, "nodes", nodeCount.value(),
+                    "labels", labelCount.value(), "labelWeight", labelWeight.value());
+            }
+
+            if (checkpoints.isDue(i))
+                vectors = checkpoints.checkpointVectors(vectors, i, maxDifference);
+
+            // Check for convergence after at least 2 iterations
+            if ((i > 0) && (d_max > maxDifference)) break;
+        }
+        return vectors;
+    }
+
+    /**
+     * Active-set adsorption with one {@link FrontierState} per node. Only nodes in the frontier
+     * send, and they send the change to their labels since they last sent, scaled by the edge
+     * weight; each receiving node adds what arrives to its running sum and renormalizes. A node
+     * joins the frontier when its labels move more than the tolerance (see setActiveSet,
+     * or d_max) from what it last sent, and the run stops once the frontier is empty.
+     *
+     * With a tolerance of 0 the labels are those of {@link #propagateSparse} up to float rounding,
+     * but the join against the edges, the shuffle and the merging of vectors only involve the
+     * frontier, which shrinks as the labels settle. The states are updated in one narrow pass
+     * over all nodes (nodes that received nothing are only carried over) and materialized once
+     * per iteration.
+     *
+     * A checkpoint saves the labels, and the run continues from them with all nodes in the
+     * frontier, as a resumed run does.
+     *
+     * @param vectors initial label vectors, (current, labelVector), partitioned by partitioner
+     * @param weightedEdges (source, (dest, edgeWeight)), partitioned by partitioner
+     * @return the final label vectors
+     * @throws IOException if a checkpoint cannot be written
+     */
+    JavaPairRDD<Long, LabelVector> propagateFrontier(JavaPairRDD<Long, LabelVector> vectors,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) throws IOException {
+        // Locals, so the closures below do not capture the job
+        int maxLabels = l_max;
+        double minWeight = w_min;
+        double tolerance = (activeSetTolerance > 0) ? activeSetTolerance : d_max;
+
+        JavaPairRDD<Long, FrontierState> states = vectors.mapValues(FrontierState::start).persist(storageLevel);
+        long frontierSize = -1;
+
+        for (int i = checkpoints.getFirstIteration(); i < i_max && frontierSize != 0; i++) {
+            logger.info("[JoinAdsorptionEngine propagateFrontier()] Starting adsorption iteration " + i);
+
+            DoubleAccumulator prunedWeight = context.sc().doubleAccumulator("prunedLabelWeight" + i);
+            MaxAccumulator maxPrunedWeight = new MaxAccumulator();
+            context.sc().register(maxPrunedWeight, "maxPrunedLabelWeight" + i);
+            MaxAccumulator differences = new MaxAccumulator();
+            context.sc().register(differences, "maxLabelDifference" + i);
+
+            // Nodes that received changes, nodes in the next frontier, and nodes, labels and label
+            // weight after the update, filled in when the states are materialized
+            LongAccumulator updatedCount = context.sc().longAccumulator("updatedNodes" + i);
+            LongAccumulator frontierCount = context.sc().longAccumulator("frontier" + i);
+            LongAccumulator nodeCount = context.sc().longAccumulator("nodes" + i);
+            LongAccumulator labelCount = context.sc().longAccumulator("labels" + i);
+            DoubleAccumulator labelWeight = context.sc().doubleAccumulator("labelWeight" + i);
+
+            // 1) Propagation of the frontier's changes:
+            //		(current, (delta, (neighbor, edgeWeight)))
+            //			-> (neighbor, delta * edgeWeight)
+            //			-> (neighbor, sum of incoming changes)
+            JavaPairRDD<Long, LabelVector> deltas = states
+                .filter(state -> state._2().isActive())
+                .mapValues(FrontierState::getDelta);
+            JavaPairRDD<Long, LabelVector> incoming = joinEdges(deltas, weightedEdges)
+                .mapToPair(tuple -> new Tuple2<>(tuple._2()._2()._1(), tuple._2()._1().scale(tuple._2()._2()._2())))
+                .reduceByKey(partitioner, LabelVector::add);
+
+            // 2) Update every node's state in one narrow pass (both sides share the partitioner),
+            //    then materialize once to fill the accumulators
+            JavaPairRDD<Long, FrontierState> updatedStates = states
+                .fullOuterJoin(incoming, partitioner)
+                .mapValues(tuple -> {
+                    FrontierState state = updateState(tuple._1().orElse(FrontierState.UNREACHED), tuple._2(),
+                        maxLabels, minWeight, tolerance, differences, prunedWeight, maxPrunedWeight, updatedCount);
+                    if (state.isActive())
+                        frontierCount.add(1);
+                    if (state.getLabels().size() > 0)
+                        countLabels(state.getLabels(), nodeCount, labelCount, labelWeight);
+                    return state;
+                })
+                .filter(state -> !state._2().isEmpty())
+                .persist(storageLevel);
+            updatedStates.count();
+
+            states.unpersist();
+            vectors.unpersist();
+            states = updatedStates;
+            double maxDifference = differences.value();
+            frontierSize = frontierCount.value();
+
+            logger.info("[JoinAdsorptionEngine propagateFrontier()] Max label difference: " + maxDifference
+                + ", next frontier: " + frontierSize + " nodes");
+            if (isPruning()) {
+                metrics.iteration(i, "maxDifference", maxDifference, "updatedNodes", updatedCount.value(),
+                    "frontier", frontierSize, "nodes", nodeCount.value(), "labels", labelCount.value(),
+                    "labelWeight", labelWeight.value(), "prunedWeight", prunedWeight.value(),
+                    "maxPrunedWeight", maxPrunedWeight.value());
+            } else {
+                metrics.iteration(i, "maxDifference", maxDifference, "updatedNodes", updatedCount.value(),
+                    "frontier", frontierSize, "nodes", nodeCount.value(), "labels", labelCount.value(),
+                    "labelWeight", labelWeight.value());
+            }
+
+            if (checkpoints.isDue(i) && frontierSize != 0) {
+                JavaPairRDD<Long, LabelVector> saved = checkpoints.checkpointVectors(
+                    states.mapValues(FrontierState::getLabels), i, maxDifference);
+                states.unpersist();
+                states = saved.mapValues(FrontierState::start).persist(storageLevel);
+            }
+        }
+
+        logger.info("[JoinAdsorptionEngine propagateFrontier()] " + (frontierSize == 0
+            ? "Frontier is empty" : "Stopped after " + i_max + " iterations"));
+        return states.mapValues(FrontierState::getLabels);
+    }
+
+    /**
+     * Add a node's incoming changes to its sum and work out its next state. A node that
+     * received nothing keeps its labels and leaves the frontier, unless it never received
+     * anything, in which case it loses its (initial) labels as in a full iteration.
+     */
+    private static FrontierState updateState(FrontierState state, Optional<LabelVector> incoming, int maxLabels,
+        double minWeight, double tolerance, MaxAccumulator differences, DoubleAccumulator prunedWeight,
+        MaxAccumulator maxPrunedWeight, LongAccumulator updated) {
+        if (!incoming.isPresent() && state.getSum() != null)
+            return state.quiet();
+
+        LabelVector sum = incoming.isPresent() ? state.addToSum(incoming.get()) : LabelVector.empty();
+        LabelVector labels = (sum.size() == 0) ? LabelVector.empty()
+            : FeedRankJob.normalizeAndPrune(sum, maxLabels, minWeight, prunedWeight, maxPrunedWeight);
+        if (state.getSent().size() > 0 && labels.size() > 0)
+            differences.add(labels.maxDifference(state.getSent()));
+        updated.add(1);
+        return state.next(sum, labels, tolerance);
+    }
+
+    /**
+     * Join each node's labels with its out-edges: narrow for regular nodes, and through the
+     * salted edges for hubs, whose labels are first copied to every salt
+     *
+     * @return (current, (labels, (neighbor, edgeWeight))), one row per out-edge
+     */
+    private <V> JavaPairRDD<Long, Tuple2<V, Tuple2<Long, Double>>> joinEdges(JavaPairRDD<Long, V> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) {
+        if (hubEdges == null)
+            return labels.join(weightedEdges);
+        return salting.regular(labels)
+            .join(salting.regular(weightedEdges))
+            .union(salting.replicate(labels)
+                .join(hubEdges)
+                .mapToPair(row -> new Tuple2<>(row._1()._1(), row._2())));
+    }
+
+    // Count a normalized vector's node, labels and label weight
+    private static LabelVector countLabels(LabelVector vector, LongAccumulator nodes, LongAccumulator labels,
+        DoubleAccumulator weight) {
+        nodes.add(1);
+        labels.add(vector.size());
+        weight.add(vector.sum());
+        return vector;
+    }
+}
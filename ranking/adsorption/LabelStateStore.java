@@ -0,0 +1,169 @@
+package instalite.ranking.adsorption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+
+import instalite.ranking.graph.NodeDictionary;
+import instalite.ranking.graph.NodeType;
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Keeps the final labels of the last FeedRankJob run so the next run can start from
+ * them instead of from scratch. Also holds the mid-run checkpoints of
+ * {@link IterationCheckpointer}.
+ *
+ * Layout: [dir]/gen-N/*.parquet with (node, label, weight) rows plus
+ * [dir]/_state.properties, which records the current generation. Nodes are stored by
+ * their prefixed name and labels by user id, since hashtag ids are renumbered every run.
+ *
+ * Paths go through the Hadoop FileSystem API, so the directory may be local, HDFS or S3.
+ */
+public class LabelStateStore {
+    private static final String METADATA_FILE = "_state.properties";
+
+    private static final StructType SCHEMA = new StructType()
+        .add("node", DataTypes.StringType, false)
+        .add("label", DataTypes.LongType, false)
+        .add("weight", DataTypes.DoubleType, false);
+
+    private final SparkSession spark;
+    private final FlexibleLogger logger;
+    private final Path root;
+
+    public LabelStateStore(SparkSession spark, FlexibleLogger logger, String stateDir) {
+        this.spark = spark;
+        this.logger = logger;
+        this.root = new Path(stateDir);
+    }
+
+    /**
+     * Read back the last saved labels, encoded with this run's dictionary. Rows at
+     * hashtags that are no longer in the graph are dropped.
+     *
+     * @param dictionary this run's node dictionary
+     * @return (current, (label, labelWeight)) rows, or null if nothing was saved yet
+     * @throws IOException if the state cannot be read
+     */
+    public JavaPairRDD<Long, Tuple2<Long, Double>> load(NodeDictionary dictionary) throws IOException {
+        Properties metadata = readMetadata(fileSystem());
+        if (metadata == null)
+            return null;
+
+        Path source = generationPath(metadata);
+        logger.info("[LabelStateStore] Loading " + metadata.getProperty("rowCount") + " labels saved "
+            + "in " + source);
+        return spark.read().parquet(source.toString())
+            .javaRDD()
+            .filter(row -> dictionary.contains(row.getString(0)))
+            .mapToPair(row -> new Tuple2<>(dictionary.encode(row.getString(0)),
+                new Tuple2<>(NodeDictionary.pack(NodeType.USER, row.getLong(1)), row.getDouble(2))));
+    }
+
+    /**
+     * Save the final labels as a new generation, then drop the previous one
+     *
+     * @param labels     (current, (label, labelWeight)) rows
+     * @param dictionary the dictionary the labels were encoded with
+     * @throws IOException if the state cannot be written
+     */
+    public void save(JavaPairRDD<Long, Tuple2<Long, Double>> labels, NodeDictionary dictionary) throws IOException {
+        save(labels, dictionary, new Properties());
+    }
+
+    /**
+     * Save labels as a new generation along with some properties, then drop the previous one
+     *
+     * @param labels     (current, (label, labelWeight)) rows
+     * @param dictionary the dictionary the labels were encoded with
+     * @param properties extra properties to record with this generation
+     * @throws IOException if the state cannot be written
+     */
+    public void save(JavaPairRDD<Long, Tuple2<Long, Double>> labels, NodeDictionary dictionary, Properties properties)
+        throws IOException {
+        FileSystem fs = fileSystem();
+        Properties previous = readMetadata(fs);
+        long generation = (previous == null) ? 0 : Long.parseLong(previous.getProperty("generation")) + 1;
+
+        Properties metadata = new Properties();
+        metadata.putAll(properties);
+        metadata.setProperty("generation", Long.toString(generation));
+        Path target = generationPath(metadata);
+
+        JavaRDD<Row> rows = labels.map(row -> RowFactory.create(dictionary.decode(row._1()),
+            NodeDictionary.valueOf(row._2()._1()), row._2()._2()));
+        spark.createDataFrame(rows, SCHEMA).write().mode(SaveMode.Overwrite).parquet(target.toString());
+
+        metadata.setProperty("rowCount", Long.toString(spark.read().parquet(target.toString()).count()));
+        metadata.setProperty("savedAt", Long.toString(System.currentTimeMillis()));
+        writeMetadata(fs, metadata);
+        logger.info("[LabelStateStore] Saved " + metadata.getProperty("rowCount") + " labels to " + target);
+
+        if (previous != null)
+            fs.delete(generationPath(previous), true);
+    }
+
+    /**
+     * @return the properties recorded with the current generation, or null if nothing was saved yet
+     * @throws IOException if the metadata cannot be read
+     */
+    public Properties getMetadata() throws IOException {
+        return readMetadata(fileSystem());
+    }
+
+    /**
+     * Delete all saved state
+     *
+     * @throws IOException if the directory cannot be deleted
+     */
+    public void delete() throws IOException {
+        fileSystem().delete(root, true);
+    }
+
+    private FileSystem fileSystem() throws IOException {
+        return root.getFileSystem(spark.sparkContext().hadoopConfiguration());
+    }
+
+    private Path generationPath(Properties metadata) {
+        return new Path(root, "gen-" + metadata.getProperty("generation"));
+    }
+
+    private Properties readMetadata(FileSystem fs) throws IOException {
+        Path file = new Path(root, METADATA_FILE);
+        if (!fs.exists(file))
+            return null;
+        Properties metadata = new Properties();
+        try (InputStream in = fs.open(file)) {
+            metadata.load(in);
+        }
+        return metadata;
+    }
+
+    /**
+     * Write to a temporary file and rename over the old one so a crash never leaves
+     * metadata pointing at a half-written generation
+     */
+    private void writeMetadata(FileSystem fs, Properties metadata) throws IOException {
+        Path file = new Path(root, METADATA_FILE);
+        Path temp = new Path(root, METADATA_FILE + ".tmp");
+        try (OutputStream out = fs.create(temp, true)) {
+            metadata.store(out, "Adsorption label state");
+        }
+        fs.delete(file, false);
+        if (!fs.rename(temp, file))
+            throw new IOException("Could not update label state metadata " + file);
+    }
+}
@@ -0,0 +1,239 @@
+package instalite.ranking.adsorption;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * All of the labels held by one node, as a sparse vector of parallel primitive
+ * arrays sorted by label id. Labels are packed user ids (see NodeDictionary).
+ *
+ * Vectors are immutable: scale, add and normalize return new vectors, so the same
+ * instance can safely be shared between RDD records.
+ */
+public class LabelVector implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final long[] NO_LABELS = new long[0];
+    private static final float[] NO_WEIGHTS = new float[0];
+
+    private final long[] labels;
+    private final float[] weights;
+
+    LabelVector(long[] labels, float[] weights) {
+        this.labels = labels;
+        this.weights = weights;
+    }
+
+    public static LabelVector empty() {
+        return new LabelVector(NO_LABELS, NO_WEIGHTS);
+    }
+
+    public static LabelVector of(long label, float weight) {
+        return new LabelVector(new long[] { label }, new float[] { weight });
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public long getLabel(int i) {
+        return labels[i];
+    }
+
+    public float getWeight(int i) {
+        return weights[i];
+    }
+
+    /**
+     * @return the weight of a label, or 0 if the node does not hold it
+     */
+    public float getWeight(long label) {
+        int i = Arrays.binarySearch(labels, label);
+        return (i < 0) ? 0f : weights[i];
+    }
+
+    public double sum() {
+        double sum = 0;
+        for (float weight : weights)
+            sum += weight;
+        return sum;
+    }
+
+    /**
+     * Multiply every weight by an edge weight (propagation along one edge)
+     */
+    public LabelVector scale(double factor) {
+        float[] scaled = new float[weights.length];
+        for (int i = 0; i < weights.length; i++)
+            scaled[i] = (float) (weights[i] * factor);
+        return new LabelVector(labels, scaled);
+    }
+
+    /**
+     * Sum two vectors with a single merge pass over the sorted label arrays
+     */
+    public LabelVector add(LabelVector other) {
+        if (other.size() == 0)
+            return this;
+        if (size() == 0)
+            return other;
+
+        long[] mergedLabels = new long[labels.length + other.labels.length];
+        float[] mergedWeights = new float[mergedLabels.length];
+        int i = 0, j = 0, n = 0;
+        while (i < labels.length && j < other.labels.length) {
+            if (labels[i] < other.labels[j]) {
+                mergedLabels[n] = labels[i];
+                mergedWeights[n++] = weights[i++];
+            } else if (labels[i] > other.labels[j]) {
+                mergedLabels[n] = other.labels[j];
+                mergedWeights[n++] = other.weights[j++];
+            } else {
+                mergedLabels[n] = labels[i];
+                mergedWeights[n++] = weights[i++] + other.weights[j++];
+            }
+        }
+        while (i < labels.length) {
+            mergedLabels[n] = labels[i];
+            mergedWeights[n++] = weights[i++];
+        }
+        while (j < other.labels.length) {
+            mergedLabels[n] = other.labels[j];
+            mergedWeights[n++] = other.weights[j++];
+        }
+        return new LabelVector(Arrays.copyOf(mergedLabels, n), Arrays.copyOf(mergedWeights, n));
+    }
+
+    /**
+     * @return this vector minus another; weights may be negative, e.g. for the change
+     *         between two versions of a node's labels
+     */
+    public LabelVector subtract(LabelVector other) {
+        return add(other.scale(-1));
+    }
+
+    /**
+     * Drop labels whose weight is at most minWeight in magnitude, such as exact zeros or the
+     * rounding error left of a label whose contributions were subtracted again
+     *
+     * @return the compacted vector, or this vector if nothing was dropped
+     */
+    public LabelVector compact(double minWeight) {
+        int kept = 0;
+        for (float weight : weights) {
+            if (Math.abs(weight) > minWeight)
+                kept++;
+        }
+        if (kept == weights.length)
+            return this;
+
+        long[] keptLabels = new long[kept];
+        float[] keptWeights = new float[kept];
+        int n = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > minWeight) {
+                keptLabels[n] = labels[i];
+                keptWeights[n++] = weights[i];
+            }
+        }
+        return new LabelVector(keptLabels, keptWeights);
+    }
+
+    /**
+     * Scale the weights so they sum to 1
+     */
+    public LabelVector normalize() {
+        double sum = sum();
+        return (sum == 0) ? this : scale(1.0 / sum);
+    }
+
+    /**
+     * Drop labels lighter than minWeight and keep at most maxLabels of the heaviest
+     * remaining ones (ties at the cut-off are broken by label id). A non-empty vector
+     * always keeps at least its heaviest label. The result is not renormalized, so
+     * 1 - result.sum() is the weight pruned from a normalized vector.
+     *
+     * @param maxLabels the most labels to keep, or 0 for no limit
+     * @param minWeight the smallest weight to keep
+     * @return the pruned vector, or this vector if nothing had to be pruned
+     */
+    public LabelVector prune(int maxLabels, double minWeight) {
+        int limit = (maxLabels > 0) ? maxLabels : Integer.MAX_VALUE;
+        float heaviest = 0f;
+        for (float weight : weights)
+            heaviest = Math.max(heaviest, weight);
+        minWeight = Math.min(minWeight, heaviest);
+
+        int heavyEnough = 0;
+        for (float weight : weights) {
+            if (weight >= minWeight)
+                heavyEnough++;
+        }
+        if (heavyEnough == weights.length && heavyEnough <= limit)
+            return this;
+
+        // The K-th largest weight is the cut-off; only some labels at exactly the cut-off may stay
+        float cutoff = Float.NEGATIVE_INFINITY;
+        int tiesToKeep = Integer.MAX_VALUE;
+        if (heavyEnough > limit) {
+            float[] sorted = weights.clone();
+            Arrays.sort(sorted);
+            cutoff = sorted[sorted.length - limit];
+            int above = 0;
+            for (float weight : weights) {
+                if (weight > cutoff)
+                    above++;
+            }
+            tiesToKeep = limit - above;
+        }
+
+        int size = Math.min(heavyEnough, limit);
+        long[] keptLabels = new long[size];
+        float[] keptWeights = new float[size];
+        int n = 0;
+        for (int i = 0; i < weights.length; i++) {
+            float weight = weights[i];
+            if (weight < minWeight || weight < cutoff)
+                continue;
+            if (weight == cutoff) {
+                if (tiesToKeep == 0)
+                    continue;
+                tiesToKeep--;
+            }
+            keptLabels[n] = labels[i];
+            keptWeights[n++] = weight;
+        }
+        return new LabelVector(Arrays.copyOf(keptLabels, n), Arrays.copyOf(keptWeights, n));
+    }
+
+    /**
+     * @return the largest absolute weight difference over the labels of either vector
+     */
+    public double maxDifference(LabelVector other) {
+        double max = 0;
+        int i = 0, j = 0;
+        while (i < labels.length || j < other.labels.length) {
+            double difference;
+            if (j >= other.labels.length || (i < labels.length && labels[i] < other.labels[j])) {
+                difference = weights[i++];
+            } else if (i >= labels.length || labels[i] > other.labels[j]) {
+                difference = other.weights[j++];
+            } else {
+                difference = weights[i++] - other.weights[j++];
+            }
+            max = Math.max(max, Math.abs(difference));
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(labels[i]).append('=').append(weights[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,287 @@
+package instalite.ranking.adsorption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import instalite.ranking.metrics.RunMetrics;
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Adsorption inside the driver JVM, for graphs small enough to hold in memory. The weighted
+ * edges (as computed by FeedRankJob) are collected once into primitive CSR arrays indexed by
+ * destination, and each iteration is a sparse matrix - sparse label product computed with
+ * fork-join over node ranges. Every node only writes its own new vector, so the ranges need
+ * no locking, and no task scheduling, serialization or shuffle happens between iterations.
+ *
+ * Inside the engine labels are dense node indexes; they are mapped back to packed node ids
+ * on the way out. It does not write label checkpoints.
+ */
+public class LocalAdsorptionEngine implements AdsorptionEngine {
+    // Nodes per fork-join leaf
+    private static final int LEAF_NODES = 512;
+
+    private final JavaSparkContext context;
+    private final FlexibleLogger logger;
+    private final RunMetrics metrics;
+    private final double d_max;
+    private final int i_max;
+    private final int l_max;
+    private final double w_min;
+    private final int partitions;
+    private final int threads;
+
+    // Graph in CSR form by destination: in-edges of node v are [inOffsets[v], inOffsets[v + 1])
+    private long[] nodeIds;
+    private int[] inOffsets;
+    private int[] inSources;
+    private double[] inWeights;
+
+    // Per-thread scratch for summing one node's incoming labels
+    private ThreadLocal<double[]> sums;
+    private ThreadLocal<boolean[]> seen;
+    private ThreadLocal<int[]> touched;
+
+    /**
+     * @param context    the Spark context, used to collect the inputs and return the result
+     * @param logger     the job's logger
+     * @param metrics    the run's metrics
+     * @param d_max      stop once no label weight changes by more than this
+     * @param i_max      max number of iterations
+     * @param l_max      max number of labels kept per node (0 for no limit)
+     * @param w_min      smallest normalized label weight kept (0 to keep all)
+     * @param partitions number of partitions of the returned labels
+     * @param threads    fork-join threads (0 for one per core)
+     */
+    public LocalAdsorptionEngine(JavaSparkContext context, FlexibleLogger logger, RunMetrics metrics, double d_max,
+        int i_max, int l_max, double w_min, int partitions, int threads) {
+        this.context = context;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.d_max = d_max;
+        this.i_max = i_max;
+        this.l_max = l_max;
+        this.w_min = w_min;
+        this.partitions = partitions;
+        this.threads = threads;
+    }
+
+    @Override
+    public JavaPairRDD<Long, Tuple2<Long, Double>> propagate(JavaPairRDD<Long, Tuple2<Long, Double>> labels,
+        JavaPairRDD<Long, Tuple2<Long, Double>> weightedEdges) {
+        long start = System.currentTimeMillis();
+        buildGraph(weightedEdges.collect());
+        LabelVector[] vectors = initialVectors(labels.collect());
+        metrics.set("localGraphNodes", nodeIds.length);
+        metrics.set("localGraphEdges", inSources.length);
+        metrics.phase("buildLocalGraph", start);
+
+        int n = nodeIds.length;
+        sums = ThreadLocal.withInitial(() -> new double[n]);
+        seen = ThreadLocal.withInitial(() -> new boolean[n]);
+        touched = ThreadLocal.withInitial(() -> new int[n]);
+
+        ForkJoinPool pool = new ForkJoinPool((threads > 0) ? threads : Runtime.getRuntime().availableProcessors());
+        try {
+            for (int i = 0; i < i_max; i++) {
+                long iterationStart = System.currentTimeMillis();
+                LabelVector[] next = new LabelVector[n];
+                IterationStats stats = pool.invoke(new PropagateRange(vectors, next, 0, n));
+                vectors = next;
+
+                logger.info("[LocalAdsorptionEngine propagate()] Max label difference: " + stats.maxDifference);
+                if ((l_max > 0) || (w_min > 0)) {
+                    metrics.iteration(i, "maxDifference", stats.maxDifference, "nodes", stats.nodes,
+                        "labels", stats.labels, "labelWeight", stats.labelWeight, "prunedWeight", stats.prunedWeight,
+                        "maxPrunedWeight", stats.maxPrunedWeight,
+                        "durationMs", System.currentTimeMillis() - iterationStart);
+                } else {
+                    metrics.iteration(i, "maxDifference", stats.maxDifference, "nodes", stats.nodes,
+                        "labels", stats.labels, "labelWeight", stats.labelWeight,
+                        "durationMs", System.currentTimeMillis() - iterationStart);
+                }
+
+                // Check for convergence after at least 2 iterations
+                if ((i > 0) && (d_max > stats.maxDifference)) break;
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Tuple2<Long, Tuple2<Long, Double>>> result = new ArrayList<>();
+        for (int v = 0; v < n; v++) {
+            LabelVector vector = vectors[v];
+            if (vector == null)
+                continue;
+            for (int k = 0; k < vector.size(); k++)
+                result.add(new Tuple2<>(nodeIds[v], new Tuple2<>(nodeIds[(int) vector.getLabel(k)],
+                    (double) vector.getWeight(k))));
+        }
+        return context.parallelizePairs(result, partitions);
+    }
+
+    /**
+     * Number the nodes densely (in packed id order) and lay out the in-edges of each node
+     */
+    private void buildGraph(List<Tuple2<Long, Tuple2<Long, Double>>> edges) {
+        long[] ids = new long[2 * edges.size()];
+        for (int e = 0; e < edges.size(); e++) {
+            ids[2 * e] = edges.get(e)._1();
+            ids[2 * e + 1] = edges.get(e)._2()._1();
+        }
+        Arrays.sort(ids);
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1])
+                ids[n++] = ids[i];
+        }
+        nodeIds = Arrays.copyOf(ids, n);
+
+        inOffsets = new int[n + 1];
+        int[] destinations = new int[edges.size()];
+        for (int e = 0; e < edges.size(); e++) {
+            destinations[e] = indexOf(edges.get(e)._2()._1());
+            inOffsets[destinations[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++)
+            inOffsets[v + 1] += inOffsets[v];
+
+        int[] fill = Arrays.copyOf(inOffsets, n);
+        inSources = new int[edges.size()];
+        inWeights = new double[edges.size()];
+        for (int e = 0; e < edges.size(); e++) {
+            int slot = fill[destinations[e]]++;
+            inSources[slot] = indexOf(edges.get(e)._1());
+            inWeights[slot] = edges.get(e)._2()._2();
+        }
+    }
+
+    private LabelVector[] initialVectors(List<Tuple2<Long, Tuple2<Long, Double>>> labels) {
+        LabelVector[] vectors = new LabelVector[nodeIds.length];
+        for (Tuple2<Long, Tuple2<Long, Double>> label : labels) {
+            int node = indexOf(label._1());
+            int source = indexOf(label._2()._1());
+            if (node < 0 || source < 0)
+                continue;
+            LabelVector vector = LabelVector.of(source, label._2()._2().floatValue());
+            vectors[node] = (vectors[node] == null) ? vector : vectors[node].add(vector);
+        }
+        return vectors;
+    }
+
+    private int indexOf(long id) {
+        int index = Arrays.binarySearch(nodeIds, id);
+        return (index < 0) ? -1 : index;
+    }
+
+    /**
+     * Sum, normalize and prune the incoming labels of one node
+     *
+     * @return the node's new vector, or null if no labels reached it
+     */
+    private LabelVector propagateNode(int v, LabelVector[] vectors, IterationStats stats) {
+        double[] sum = sums.get();
+        boolean[] present = seen.get();
+        int[] labels = touched.get();
+        int count = 0;
+        for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+            LabelVector source = vectors[inSources[e]];
+            if (source == null)
+                continue;
+            double edgeWeight = inWeights[e];
+            for (int k = 0; k < source.size(); k++) {
+                int label = (int) source.getLabel(k);
+                if (!present[label]) {
+                    present[label] = true;
+                    labels[count++] = label;
+                }
+                sum[label] += source.getWeight(k) * edgeWeight;
+            }
+        }
+        if (count == 0)
+            return null;
+
+        Arrays.sort(labels, 0, count);
+        long[] keys = new long[count];
+        float[] weights = new float[count];
+        for (int k = 0; k < count; k++) {
+            int label = labels[k];
+            keys[k] = label;
+            weights[k] = (float) sum[label];
+            sum[label] = 0;
+            present[label] = false;
+        }
+
+        LabelVector normalized = new LabelVector(keys, weights).normalize();
+        LabelVector pruned = normalized.prune(l_max, w_min);
+        if (pruned != normalized) {
+            double dropped = normalized.sum() - pruned.sum();
+            stats.prunedWeight += dropped;
+            stats.maxPrunedWeight = Math.max(stats.maxPrunedWeight, dropped);
+            normalized = pruned.normalize();
+        }
+        if (vectors[v] != null)
+            stats.maxDifference = Math.max(stats.maxDifference, normalized.maxDifference(vectors[v]));
+        stats.nodes++;
+        stats.labels += normalized.size();
+        stats.labelWeight += normalized.sum();
+        return normalized;
+    }
+
+    private static class IterationStats {
+        double maxDifference;
+        double prunedWeight;
+        double maxPrunedWeight;
+        long nodes;
+        long labels;
+        double labelWeight;
+
+        IterationStats merge(IterationStats other) {
+            maxDifference = Math.max(maxDifference, other.maxDifference);
+            nodes += other.nodes;
+            labels += other.labels;
+            labelWeight += other.labelWeight;
+            prunedWeight += other.prunedWeight;
+            maxPrunedWeight = Math.max(maxPrunedWeight, other.maxPrunedWeight);
+            return this;
+        }
+    }
+
+    // Compute the new vectors of the nodes in [from, to), splitting until the range is a leaf
+    private class PropagateRange extends RecursiveTask<IterationStats> {
+        private static final long serialVersionUID = 1L;
+
+        private final LabelVector[] vectors;
+        private final LabelVector[] next;
+        private final int from;
+        private final int to;
+
+        PropagateRange(LabelVector[] vectors, LabelVector[] next, int from, int to) {
+            this.vectors = vectors;
+            this.next = next;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IterationStats compute() {
+            if (to - from <= LEAF_NODES) {
+                IterationStats stats = new IterationStats();
+                for (int v = from; v < to; v++)
+                    next[v] = propagateNode(v, vectors, stats);
+                return stats;
+            }
+            int middle = (from + to) >>> 1;
+            PropagateRange left = new PropagateRange(vectors, next, from, middle);
+            left.fork();
+            IterationStats right = new PropagateRange(vectors, next, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+}
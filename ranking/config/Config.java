@@ -53,8 +53,309 @@ public class Config {
 
     public static String LIVY_HOST = "localhost";
 
+    /**
+     * Where to remember the warm Livy session and the hash of the JAR it runs, so later runs
+     * reuse it (null or empty to start and stop a session per run)
+     */
+    public static String LIVY_SESSION_FILE = ".livy-session";
+
+    /**
+     * How long to wait for a new Livy session to come up, in seconds
+     */
+    public static int LIVY_SESSION_START_TIMEOUT = 600;
+
     /**
      * How many RDD partitions to use?
      */
     public static int PARTITIONS = 5;
+
+    /**
+     * How many range partitions (and JDBC connections) per source table when loading the graph?
+     */
+    public static int JDBC_PARTITIONS = 8;
+
+    /**
+     * Rows fetched per round trip when reading source tables over JDBC
+     */
+    public static int JDBC_FETCH_SIZE = 10000;
+
+    /**
+     * Load the posts, likes, friends and hashtags tables concurrently?
+     */
+    public static boolean JDBC_PARALLEL_LOAD = true;
+
+    /**
+     * Where to keep Parquet snapshots of the ranking source tables (null or empty reads MySQL directly)
+     */
+    public static String SNAPSHOT_DIR = "snapshots";
+
+    /**
+     * Comma-separated tables that are fully re-copied on every run, e.g. because rows get deleted
+     */
+    public static String SNAPSHOT_FULL_REFRESH_TABLES = "friends";
+
+    /**
+     * Re-copy every snapshot on the next run
+     */
+    public static boolean SNAPSHOT_FULL_REFRESH = false;
+
+    /**
+     * Non-append-only snapshots older than this are re-copied even if their row count is unchanged
+     */
+    public static long SNAPSHOT_MAX_AGE_MINUTES = 360;
+
+    /**
+     * Where FeedRankJob writes the memory-mapped CSR graph store (null or empty disables it)
+     */
+    public static String GRAPH_STORE_PATH = null;
+
+    /**
+     * Read the graph from an existing graph store instead of rebuilding it from the source tables
+     */
+    public static boolean GRAPH_STORE_REUSE = false;
+
+    /**
+     * Hold each node's labels as one sparse LabelVector instead of one RDD row per label
+     */
+    public static boolean SPARSE_LABELS = false;
+
+    /**
+     * Storage level for the cached edges and per-iteration labels in FeedRankJob
+     */
+    public static String ADSORPTION_STORAGE_LEVEL = "MEMORY_AND_DISK";
+
+    /**
+     * Fuse propagation, normalization and the convergence check into one shuffle and one job
+     * per iteration (implies SPARSE_LABELS)
+     */
+    public static boolean FUSED_ITERATIONS = false;
+
+    /**
+     * Most labels FeedRankJob keeps per node after each iteration (0 keeps all)
+     */
+    public static int LABEL_TOP_K = 0;
+
+    /**
+     * Smallest normalized label weight FeedRankJob keeps after each iteration (0 keeps all)
+     */
+    public static double LABEL_MIN_WEIGHT = 0.0;
+
+    /**
+     * Where FeedRankJob saves its final labels after each run (null or empty disables it)
+     */
+    public static String LABEL_STATE_DIR = null;
+
+    /**
+     * Start FeedRankJob from the labels saved in LABEL_STATE_DIR, with every user re-seeded
+     * with its own label
+     */
+    public static boolean WARM_START = true;
+
+    /**
+     * How many FeedRankJob runs in a row may warm-start before one starts cold again
+     */
+    public static int WARM_START_MAX_RUNS = 3;
+
+    /**
+     * Where FeedRankJob checkpoints its labels mid-run (null or empty disables it). Should be
+     * on storage that survives the driver, e.g. HDFS or S3, for runs submitted through Livy.
+     * Only the JOIN engine checkpoints its labels, and a run only resumes a checkpoint written
+     * on the same inputs with the same parameters; the GRAPHX engine checkpoints its graph
+     * here to cut the lineage, but cannot resume from it
+     */
+    public static String CHECKPOINT_DIR = null;
+
+    /**
+     * How many adsorption iterations FeedRankJob runs between checkpoints
+     */
+    public static int CHECKPOINT_INTERVAL = 5;
+
+    /**
+     * Which adsorption engine ComputeRanksLocal/ComputeRanksLivy run: "join", "graphx", "local",
+     * "dataset" or "auto" (local for local runs on graphs up to LOCAL_ENGINE_MAX_EDGES edges, else join)
+     */
+    public static String ADSORPTION_ENGINE = "auto";
+
+    /**
+     * Largest graph, in directed edges, that the "auto" engine runs inside the driver JVM
+     */
+    public static long LOCAL_ENGINE_MAX_EDGES = 5000000;
+
+    /**
+     * Threads for the in-JVM adsorption engine (0 for one per processor)
+     */
+    public static int LOCAL_ENGINE_THREADS = 0;
+
+    /**
+     * Teleport probability for on-demand forward-push ranking (ForwardPushRanker)
+     */
+    public static double PUSH_ALPHA = 0.15;
+
+    /**
+     * Residual threshold per unit of degree for on-demand forward-push ranking: a node is pushed
+     * while its residual is at least this times its degree. Smaller is more accurate and slower
+     */
+    public static double PUSH_EPSILON = 1e-5;
+
+    /**
+     * Where to write a JSON metrics report for every job run (null or empty to only log it)
+     */
+    public static String RUN_REPORT_DIR = "reports";
+
+    /**
+     * Nodes with more out-edges than this are hubs: their edges are weighed from broadcast degrees
+     * and split into HUB_SALTS pieces during join-engine propagation (0 to treat no node as a hub)
+     */
+    public static long HUB_DEGREE_THRESHOLD = 10000;
+
+    /**
+     * How many pieces to split each hub's edges into (0 for one per partition)
+     */
+    public static int HUB_SALTS = 0;
+
+    /**
+     * Propagate only from nodes whose labels changed by more than ACTIVE_SET_TOLERANCE in the last
+     * iteration (join engine), stopping once no node changes
+     */
+    public static boolean ACTIVE_SET = false;
+
+    /**
+     * How far a node's labels must move before it propagates the change (0 to use d_max)
+     */
+    public static double ACTIVE_SET_TOLERANCE = 0;
+
+    /**
+     * Rows per batch (and transaction) when writing results to MySQL from the executors
+     */
+    public static int WRITE_BATCH_SIZE = 1000;
+
+    /**
+     * Most MySQL connections each executor opens to write results
+     */
+    public static int WRITE_CONNECTIONS_PER_EXECUTOR = 4;
+
+    /**
+     * How often a batch that hit a deadlock or lock wait timeout is retried
+     */
+    public static int WRITE_MAX_RETRIES = 5;
+
+    /**
+     * Load rankings into a staging table and swap it in for the live table when done (see
+     * ShadowTablePublisher), rather than updating the live table in place
+     */
+    public static boolean RANKINGS_SHADOW_PUBLISH = true;
+
+    /**
+     * Where the ranking pipeline remembers the inputs each stage last ran on, so stages whose
+     * inputs have not changed are skipped (empty to always run every stage)
+     */
+    public static String PIPELINE_STATE_DIR = "pipeline-state";
+
+    /**
+     * Serialize shuffled, cached and collected records with Kryo (see RankingKryoRegistrator)
+     * instead of Java serialization
+     */
+    public static boolean KRYO_SERIALIZATION = true;
+
+    /**
+     * Fail on records of types not registered with Kryo, rather than writing their class
+     * names into every record
+     */
+    public static boolean KRYO_REGISTRATION_REQUIRED = true;
+
+    /**
+     * Where jobs hand large results off as Parquet files for the client to stream into
+     * MySQL (see ParquetResultWriter), e.g. s3a://bucket/results; unset to write or return
+     * them as before
+     */
+    public static String RESULT_HANDOFF_DIR = null;
+
+    /**
+     * How many files each handed-off result is written as
+     */
+    public static int RESULT_HANDOFF_FILES = 8;
+
+    /**
+     * Parquet compression codec of handed-off results
+     */
+    public static String RESULT_HANDOFF_COMPRESSION = "zstd";
+
+    /**
+     * How many times the client tries to load a handed-off result into MySQL before giving
+     * up and leaving its files in place
+     */
+    public static int RESULT_HANDOFF_LOAD_ATTEMPTS = 3;
+
+    /**
+     * How often the ranking scheduler polls the source tables for changes
+     */
+    public static long SCHEDULER_POLL_SECONDS = 60;
+
+    /**
+     * How often the ranking scheduler counts the rows of the source tables, a scan of an
+     * index per table; polls in between only read the largest keys
+     */
+    public static long SCHEDULER_COUNT_MINUTES = 15;
+
+    /**
+     * Rows of posts, likes, friends and hashtags inserted or deleted since the last ranking
+     * run that make the scheduler start the next one
+     */
+    public static long SCHEDULER_RANKINGS_MIN_CHANGES = 500;
+
+    /**
+     * Rows of friends inserted or deleted since the last recommendations run that make the
+     * scheduler start the next one
+     */
+    public static long SCHEDULER_RECOMMENDATIONS_MIN_CHANGES = 50;
+
+    /**
+     * Age of the last successful run after which the scheduler runs it again, changes or not
+     */
+    public static long SCHEDULER_MAX_STALENESS_MINUTES = 360;
+
+    /**
+     * How long the scheduler waits before running a failed run again
+     */
+    public static long SCHEDULER_RETRY_MINUTES = 10;
+
+    /**
+     * How many runs the scheduler keeps in its history
+     */
+    public static int SCHEDULER_HISTORY_SIZE = 100;
+
+    /**
+     * Where the scheduler writes its run history and lag metrics as JSON (empty for nowhere)
+     */
+    public static String SCHEDULER_STATUS_FILE = "reports/scheduler-status.json";
+
+    /**
+     * Port the feed server (see FeedServer) listens on
+     */
+    public static int SERVING_PORT = 8081;
+
+    /**
+     * Event loop threads the feed server answers requests on
+     */
+    public static int SERVING_THREADS = 1;
+
+    /**
+     * Rankings the feed server keeps in memory per user, and the largest limit it serves
+     */
+    public static int SERVING_TOP_N = 100;
+
+    /**
+     * Posts the feed server returns when a request has no limit
+     */
+    public static int SERVING_DEFAULT_LIMIT = 20;
+
+    /**
+     * Encoded feeds of recently requested users the feed server keeps
+     */
+    public static int SERVING_CACHE_SIZE = 10000;
+
+    /**
+     * How often the feed server checks for a newly published generation of the rankings
+     */
+    public static long SERVING_RELOAD_SECONDS = 30;
 }
\ No newline at end of file
@@ -30,6 +30,67 @@ public class ConfigSingleton {
         config.SPARK_TESTING_MEMORY = dotenv.get("SPARK_TESTING_MEMORY", "2147480000");
 
         config.LIVY_HOST = dotenv.get("LIVY_HOST", "localhost");
+        config.LIVY_SESSION_FILE = dotenv.get("LIVY_SESSION_FILE", ".livy-session");
+        config.LIVY_SESSION_START_TIMEOUT = Integer.parseInt(dotenv.get("LIVY_SESSION_START_TIMEOUT", "600"));
+
+        config.JDBC_PARTITIONS = Integer.parseInt(dotenv.get("JDBC_PARTITIONS", "8"));
+        config.JDBC_FETCH_SIZE = Integer.parseInt(dotenv.get("JDBC_FETCH_SIZE", "10000"));
+        config.JDBC_PARALLEL_LOAD = Boolean.parseBoolean(dotenv.get("JDBC_PARALLEL_LOAD", "true"));
+
+        config.SNAPSHOT_DIR = dotenv.get("SNAPSHOT_DIR", "snapshots");
+        config.SNAPSHOT_FULL_REFRESH_TABLES = dotenv.get("SNAPSHOT_FULL_REFRESH_TABLES", "friends");
+        config.SNAPSHOT_FULL_REFRESH = Boolean.parseBoolean(dotenv.get("SNAPSHOT_FULL_REFRESH", "false"));
+        config.SNAPSHOT_MAX_AGE_MINUTES = Long.parseLong(dotenv.get("SNAPSHOT_MAX_AGE_MINUTES", "360"));
+
+        config.GRAPH_STORE_PATH = dotenv.get("GRAPH_STORE_PATH");
+        config.GRAPH_STORE_REUSE = Boolean.parseBoolean(dotenv.get("GRAPH_STORE_REUSE", "false"));
+
+        config.SPARSE_LABELS = Boolean.parseBoolean(dotenv.get("SPARSE_LABELS", "false"));
+        config.PARTITIONS = Integer.parseInt(dotenv.get("PARTITIONS", "5"));
+        config.ADSORPTION_STORAGE_LEVEL = dotenv.get("ADSORPTION_STORAGE_LEVEL", "MEMORY_AND_DISK");
+        config.FUSED_ITERATIONS = Boolean.parseBoolean(dotenv.get("FUSED_ITERATIONS", "false"));
+        config.LABEL_TOP_K = Integer.parseInt(dotenv.get("LABEL_TOP_K", "0"));
+        config.LABEL_MIN_WEIGHT = Double.parseDouble(dotenv.get("LABEL_MIN_WEIGHT", "0"));
+        config.LABEL_STATE_DIR = dotenv.get("LABEL_STATE_DIR");
+        config.WARM_START = Boolean.parseBoolean(dotenv.get("WARM_START", "true"));
+        config.WARM_START_MAX_RUNS = Integer.parseInt(dotenv.get("WARM_START_MAX_RUNS", "3"));
+        config.CHECKPOINT_DIR = dotenv.get("CHECKPOINT_DIR");
+        config.CHECKPOINT_INTERVAL = Integer.parseInt(dotenv.get("CHECKPOINT_INTERVAL", "5"));
+        config.ADSORPTION_ENGINE = dotenv.get("ADSORPTION_ENGINE", "auto");
+        config.LOCAL_ENGINE_MAX_EDGES = Long.parseLong(dotenv.get("LOCAL_ENGINE_MAX_EDGES", "5000000"));
+        config.LOCAL_ENGINE_THREADS = Integer.parseInt(dotenv.get("LOCAL_ENGINE_THREADS", "0"));
+        config.PUSH_ALPHA = Double.parseDouble(dotenv.get("PUSH_ALPHA", "0.15"));
+        config.PUSH_EPSILON = Double.parseDouble(dotenv.get("PUSH_EPSILON", "1e-5"));
+        config.RUN_REPORT_DIR = dotenv.get("RUN_REPORT_DIR", "reports");
+        config.HUB_DEGREE_THRESHOLD = Long.parseLong(dotenv.get("HUB_DEGREE_THRESHOLD", "10000"));
+        config.HUB_SALTS = Integer.parseInt(dotenv.get("HUB_SALTS", "0"));
+        config.ACTIVE_SET = Boolean.parseBoolean(dotenv.get("ACTIVE_SET", "false"));
+        config.ACTIVE_SET_TOLERANCE = Double.parseDouble(dotenv.get("ACTIVE_SET_TOLERANCE", "0"));
+        config.WRITE_BATCH_SIZE = Integer.parseInt(dotenv.get("WRITE_BATCH_SIZE", "1000"));
+        config.WRITE_CONNECTIONS_PER_EXECUTOR = Integer.parseInt(dotenv.get("WRITE_CONNECTIONS_PER_EXECUTOR", "4"));
+        config.WRITE_MAX_RETRIES = Integer.parseInt(dotenv.get("WRITE_MAX_RETRIES", "5"));
+        config.RANKINGS_SHADOW_PUBLISH = Boolean.parseBoolean(dotenv.get("RANKINGS_SHADOW_PUBLISH", "true"));
+        config.PIPELINE_STATE_DIR = dotenv.get("PIPELINE_STATE_DIR", "pipeline-state");
+        config.KRYO_SERIALIZATION = Boolean.parseBoolean(dotenv.get("KRYO_SERIALIZATION", "true"));
+        config.KRYO_REGISTRATION_REQUIRED = Boolean.parseBoolean(dotenv.get("KRYO_REGISTRATION_REQUIRED", "true"));
+        config.RESULT_HANDOFF_DIR = dotenv.get("RESULT_HANDOFF_DIR");
+        config.RESULT_HANDOFF_FILES = Integer.parseInt(dotenv.get("RESULT_HANDOFF_FILES", "8"));
+        config.RESULT_HANDOFF_COMPRESSION = dotenv.get("RESULT_HANDOFF_COMPRESSION", "zstd");
+        config.RESULT_HANDOFF_LOAD_ATTEMPTS = Integer.parseInt(dotenv.get("RESULT_HANDOFF_LOAD_ATTEMPTS", "3"));
+        config.SCHEDULER_POLL_SECONDS = Long.parseLong(dotenv.get("SCHEDULER_POLL_SECONDS", "60"));
+        config.SCHEDULER_COUNT_MINUTES = Long.parseLong(dotenv.get("SCHEDULER_COUNT_MINUTES", "15"));
+        config.SCHEDULER_RANKINGS_MIN_CHANGES = Long.parseLong(dotenv.get("SCHEDULER_RANKINGS_MIN_CHANGES", "500"));
+        config.SCHEDULER_RECOMMENDATIONS_MIN_CHANGES = Long.parseLong(dotenv.get("SCHEDULER_RECOMMENDATIONS_MIN_CHANGES", "50"));
+        config.SCHEDULER_MAX_STALENESS_MINUTES = Long.parseLong(dotenv.get("SCHEDULER_MAX_STALENESS_MINUTES", "360"));
+        config.SCHEDULER_RETRY_MINUTES = Long.parseLong(dotenv.get("SCHEDULER_RETRY_MINUTES", "10"));
+        config.SCHEDULER_HISTORY_SIZE = Integer.parseInt(dotenv.get("SCHEDULER_HISTORY_SIZE", "100"));
+        config.SCHEDULER_STATUS_FILE = dotenv.get("SCHEDULER_STATUS_FILE", "reports/scheduler-status.json");
+        config.SERVING_PORT = Integer.parseInt(dotenv.get("SERVING_PORT", "8081"));
+        config.SERVING_THREADS = Integer.parseInt(dotenv.get("SERVING_THREADS", "1"));
+        config.SERVING_TOP_N = Integer.parseInt(dotenv.get("SERVING_TOP_N", "100"));
+        config.SERVING_DEFAULT_LIMIT = Integer.parseInt(dotenv.get("SERVING_DEFAULT_LIMIT", "20"));
+        config.SERVING_CACHE_SIZE = Integer.parseInt(dotenv.get("SERVING_CACHE_SIZE", "10000"));
+        config.SERVING_RELOAD_SECONDS = Long.parseLong(dotenv.get("SERVING_RELOAD_SECONDS", "30"));
         return config;
     }
 }
\ No newline at end of file
@@ -22,46 +22,82 @@ import org.apache.spark.api.java.function.PairFlatMapFunction; // for casting
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
 
+import org.apache.parquet.example.data.Group;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.api.java.JavaSparkContext;
 
 import instalite.ranking.config.Config;
+import instalite.ranking.loader.SourceTable;
 import instalite.ranking.utils.SerializablePair;
 import instalite.ranking.spark.SparkJob;
 import instalite.ranking.spark.SparkConnector;
+import instalite.ranking.writer.JdbcBatchWriter;
+import instalite.ranking.writer.ParquetResultLoader;
+import instalite.ranking.writer.ParquetResultWriter;
+import instalite.ranking.writer.ResultManifest;
 import scala.Tuple2;
 
 public class FriendsOfFriendsJob extends SparkJob<List<SerializablePair<SerializablePair<String, String>, Integer>>> {
+    // Upsert on the (person, recommendation) primary key (see backend/models/create_tables.js),
+    // so a reloaded chunk replaces the rows it wrote instead of adding them again
+    public static final String RECOMMENDATIONS_INSERT = "INSERT INTO recommendations (person, recommendation, strength) "
+        + "VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE strength = VALUES(strength)";
+
+    // recommendations columns, as primitives
+    static final StructType RECOMMENDATIONS_SCHEMA = new StructType()
+        .add("person", DataTypes.IntegerType, false)
+        .add("recommendation", DataTypes.IntegerType, false)
+        .add("strength", DataTypes.IntegerType, false);
+
+    // Hands the recommendations off as Parquet files when set (see setResultHandoff); the
+    // run leaves their manifest in resultManifest
+    private ParquetResultWriter resultWriter;
+    private ResultManifest resultManifest;
+
     public FriendsOfFriendsJob(boolean isLocal, boolean debug, FlexibleLogger logger, Config config) {
         super(logger, config, isLocal, debug);
     }
 
+    /**
+     * Write the recommendations as Parquet files under Config.RESULT_HANDOFF_DIR instead of
+     * collecting them (the job then returns an empty list), for the client to stream into
+     * the recommendations table with loadRecommendations() and the manifest from
+     * getResultManifest()
+     */
+    @Override
+    public void setResultHandoff(boolean handoff) {
+        resultWriter = handoff ? ParquetResultWriter.fromConfig() : null;
+    }
+
+    /**
+     * @return the files the last run handed the recommendations off in, or null if it did not
+     */
+    @Override
+    public ResultManifest getResultManifest() {
+        return resultManifest;
+    }
+
     // Get (followed, follower) tuples
-    private JavaPairRDD<String, String> loadFollowersRDD() {
+    private JavaPairRDD<String, String> loadFollowersRDD() throws IOException, InterruptedException {
         logger.info("[FriendsOfFriends] Loading followers from database...");
         
-        // Read data from MySQL using Spark JDBC
-        Properties connectionProperties = new Properties();
-        connectionProperties.put("user", Config.MYSQL_USER);
-        connectionProperties.put("password", Config.MYSQL_PASSWORD);
-        connectionProperties.put("driver", Config.JDBC_DRIVER);
-
-        String url = "jdbc:mysql://" + Config.MYSQL_HOST + ":" + Config.MYSQL_PORT + "/" + Config.MYSQL_DATABASE;
-        
-        Dataset<Row> friends = spark.read().jdbc(url, "friends", connectionProperties);
+        // Snapshot (or partitioned, column-pruned JDBC) read of the friends table
+        Dataset<Row> friends = loadTables(SourceTable.FRIENDS).friends();
         
-        // Convert to (followed, follower) pairs
+        // Convert to (followed, follower) pairs, counted as the grouping reads them
         JavaPairRDD<String, String> edgeRDD = friends.javaRDD()
             .mapToPair(row -> new Tuple2<>(
                 row.getAs("followed").toString(),
                 row.getAs("follower").toString()
             ));
             
-        logger.info("[FriendsOfFriends] Loaded " + edgeRDD.count() + " follower relationships");
-        return edgeRDD;
+        return metrics.count("followerRelationships", edgeRDD);
     }
 
     // (followed, follower) RDD -> ((user, recommendation), strength) RDD
@@ -107,8 +143,7 @@ public class FriendsOfFriendsJob extends SparkJob<List<SerializablePair<Serializ
         JavaPairRDD<Tuple2<String, String>, Integer> recommendationStrengths = recommendationsWithStrength
             .reduceByKey((a, b) -> a + b);
             
-        logger.info("[FriendsOfFriends] Generated " + recommendationStrengths.count() + " recommendations");
-        return recommendationStrengths;
+        return metrics.count("recommendations", recommendationStrengths);
     }
 
     /**
@@ -116,13 +151,16 @@ public class FriendsOfFriendsJob extends SparkJob<List<SerializablePair<Serializ
      * @return List of recommendations in format ((user, recommended_user), strength)
      */
     public List<SerializablePair<SerializablePair<String, String>, Integer>> run(boolean debug) throws IOException, InterruptedException {
-        initialize();
-        
         // Load follower network
         JavaPairRDD<String, String> network = loadFollowersRDD();
         
         // Generate recommendations
         JavaPairRDD<Tuple2<String, String>, Integer> recommendations = generateRecommendations(network);
+
+        if (resultWriter != null) {
+            exportRecommendations(recommendations);
+            return new ArrayList<>();
+        }
         
         // Collect and return results as SerializablePairs
         return recommendations
@@ -133,6 +171,65 @@ public class FriendsOfFriendsJob extends SparkJob<List<SerializablePair<Serializ
             .collect(); 
     }
 
+    // Write the (person, recommendation, strength) rows as Parquet files, one file per group of users
+    private void exportRecommendations(JavaPairRDD<Tuple2<String, String>, Integer> recommendations)
+        throws IOException {
+        JavaRDD<Row> rows = recommendations.map(pair -> RowFactory.create(
+            Integer.parseInt(pair._1()._1()), Integer.parseInt(pair._1()._2()), pair._2()));
+        resultManifest = resultWriter.write("recommendations", spark.createDataFrame(rows, RECOMMENDATIONS_SCHEMA),
+            "person", metrics);
+        logger.info("[FriendsOfFriends] Wrote " + resultManifest);
+    }
+
+    // Parquet (person, recommendation, strength) row -> recommendations (person, recommendation, strength)
+    static void bindRecommendationRow(PreparedStatement statement, Group recommendation) throws SQLException {
+        statement.setInt(1, recommendation.getInteger("person", 0));
+        statement.setInt(2, recommendation.getInteger("recommendation", 0));
+        statement.setInt(3, recommendation.getInteger("strength", 0));
+    }
+
+    // ((user, recommended_user), strength) -> recommendations (person, recommendation, strength)
+    static void bindRecommendation(PreparedStatement statement,
+        SerializablePair<SerializablePair<String, String>, Integer> recommendation) throws SQLException {
+        statement.setInt(1, Integer.parseInt(recommendation.getLeft().getLeft()));
+        statement.setInt(2, Integer.parseInt(recommendation.getLeft().getRight()));
+        statement.setInt(3, recommendation.getRight());
+    }
+
+    /**
+     * Store recommendations a job returned in the recommendations table from this JVM
+     *
+     * @return the number of recommendations written
+     * @throws IOException if the recommendations cannot be written (after retries)
+     */
+    public static long storeRecommendations(List<SerializablePair<SerializablePair<String, String>, Integer>> recs,
+        FlexibleLogger logger) throws IOException, InterruptedException {
+        long written = JdbcBatchWriter.fromConfig(RECOMMENDATIONS_INSERT, FriendsOfFriendsJob::bindRecommendation)
+            .write(recs.iterator());
+        logger.info("[FriendsOfFriends] Stored " + written + " items in recommendations table");
+        return written;
+    }
+
+    /**
+     * Stream recommendations a job handed off (see setResultHandoff) into the recommendations
+     * table from this JVM, and delete the files once they are in. A failed load is started
+     * over (see ParquetResultLoader.withRetries).
+     *
+     * @return the number of recommendations written
+     * @throws IOException if the files cannot be read or the recommendations cannot be written
+     */
+    public static long loadRecommendations(ResultManifest manifest, FlexibleLogger logger)
+        throws IOException, InterruptedException {
+        return ParquetResultLoader.withRetries(manifest, logger, () -> {
+            ParquetResultLoader loader = ParquetResultLoader.fromConfig();
+            long written = loader.load(manifest,
+                JdbcBatchWriter.fromConfig(RECOMMENDATIONS_INSERT, FriendsOfFriendsJob::bindRecommendationRow));
+            loader.delete(manifest);
+            logger.info("[FriendsOfFriends] Stored " + written + " items in recommendations table");
+            return written;
+        });
+    }
+
     @Override
     public List<SerializablePair<SerializablePair<String, String>, Integer>> call(JobContext ctx) throws Exception {
         return run(false);
@@ -0,0 +1,244 @@
+package instalite.ranking.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+import org.apache.spark.SparkFiles;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import scala.Tuple2;
+
+/**
+ * Read-only view of a graph file written by {@link CsrGraphWriter}, either memory-mapped
+ * ({@link #open}) or read into the heap ({@link #load}).
+ *
+ * Opening the file only maps it and reads the header; neighbours, types and names
+ * are decoded straight from the bytes on demand. Instances are safe to share
+ * between threads since every read is an absolute get on the buffer.
+ */
+public class CsrGraph {
+    private final ByteBuffer buffer;
+    private final int nodeCount;
+    private final int[] typeCounts = new int[NodeType.values().length];
+    private final long edgeCount;
+    private final int typesPosition;
+    private final int offsetsPosition;
+    private final int nameOffsetsPosition;
+
+    private CsrGraph(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != CsrGraphWriter.MAGIC)
+            throw new IOException("Not a graph store file");
+        if (buffer.getInt(4) != CsrGraphWriter.VERSION)
+            throw new IOException("Unsupported graph store version " + buffer.getInt(4));
+
+        nodeCount = buffer.getInt(8);
+        typeCounts[NodeType.USER.ordinal()] = buffer.getInt(12);
+        typeCounts[NodeType.POST.ordinal()] = buffer.getInt(16);
+        typeCounts[NodeType.HASHTAG.ordinal()] = buffer.getInt(20);
+        edgeCount = buffer.getLong(24);
+        typesPosition = (int) buffer.getLong(40);
+        offsetsPosition = (int) buffer.getLong(48);
+        nameOffsetsPosition = (int) buffer.getLong(56);
+    }
+
+    /**
+     * Memory-map a graph store file
+     *
+     * @param path the file written by CsrGraphWriter
+     * @return the mapped graph
+     * @throws IOException if the file is missing, too large to map or not a graph store
+     */
+    public static CsrGraph open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Graph store " + path + " is larger than 2GB and cannot be mapped");
+            // The mapping stays valid after the channel is closed
+            return new CsrGraph(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Read a graph store file into the heap, for latency-sensitive lookups that should
+     * never wait on a page fault
+     *
+     * @param path the file written by CsrGraphWriter
+     * @return the loaded graph
+     * @throws IOException if the file is missing, too large or not a graph store
+     */
+    public static CsrGraph load(String path) throws IOException {
+        return new CsrGraph(ByteBuffer.wrap(Files.readAllBytes(Paths.get(path))));
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * @return the number of nodes of one type
+     */
+    public int getNodeCount(NodeType type) {
+        return typeCounts[type.ordinal()];
+    }
+
+    /**
+     * @return the first id of the contiguous id range holding nodes of this type
+     */
+    public int getFirstNode(NodeType type) {
+        int first = 0;
+        for (int i = 0; i < type.ordinal(); i++)
+            first += typeCounts[i];
+        return first;
+    }
+
+    public NodeType getType(int node) {
+        return NodeType.fromTag(buffer.get(typesPosition + node));
+    }
+
+    public int getDegree(int node) {
+        int[] position = { adjacencyPosition(node) };
+        return VarInt.read(buffer, position);
+    }
+
+    /**
+     * Decode the neighbours of a node in ascending id order, without allocating
+     */
+    public void forEachNeighbor(int node, IntConsumer action) {
+        int[] position = { adjacencyPosition(node) };
+        int degree = VarInt.read(buffer, position);
+        int neighbor = 0;
+        for (int i = 0; i < degree; i++) {
+            neighbor += VarInt.read(buffer, position);
+            action.accept(neighbor);
+        }
+    }
+
+    public int[] getNeighbors(int node) {
+        int[] position = { adjacencyPosition(node) };
+        int[] neighbors = new int[VarInt.read(buffer, position)];
+        int neighbor = 0;
+        for (int i = 0; i < neighbors.length; i++) {
+            neighbor += VarInt.read(buffer, position);
+            neighbors[i] = neighbor;
+        }
+        return neighbors;
+    }
+
+    /**
+     * @return the prefixed node name used by the edge RDDs, e.g. "post:17"
+     */
+    public String getName(int node) {
+        int start = (int) buffer.getLong(nameOffsetsPosition + 8 * node);
+        int end = (int) buffer.getLong(nameOffsetsPosition + 8 * (node + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Look up a node id by its prefixed name (binary search within the type's id range)
+     *
+     * @return the node id, or -1 if the node is not in the graph
+     */
+    public int find(String name) {
+        NodeType type = NodeType.of(name);
+        int low = getFirstNode(type);
+        int high = low + getNodeCount(type) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = getName(mid).compareTo(name);
+            if (comparison < 0)
+                low = mid + 1;
+            else if (comparison > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int adjacencyPosition(int node) {
+        return (int) buffer.getLong(offsetsPosition + 8 * node);
+    }
+
+    /**
+     * Read a graph store back into the (node, node) edge RDD that getGraph() produces.
+     * The file is shipped to the executors with addFile and each partition maps its
+     * own copy and decodes a range of source nodes.
+     *
+     * @param context    the Spark context
+     * @param path       the graph store file on the driver
+     * @param partitions how many node ranges to split the scan into
+     * @return the bidirectional edges
+     * @throws IOException if the file cannot be opened
+     */
+    public static JavaPairRDD<String, String> loadEdges(JavaSparkContext context, String path, int partitions)
+        throws IOException {
+        int nodeCount = open(path).getNodeCount();
+        context.addFile(path);
+        String fileName = new File(path).getName();
+
+        List<Tuple2<Integer, Integer>> ranges = new ArrayList<>();
+        int step = Math.max(1, (nodeCount + partitions - 1) / Math.max(1, partitions));
+        for (int start = 0; start < nodeCount; start += step)
+            ranges.add(new Tuple2<>(start, Math.min(nodeCount, start + step)));
+
+        return context.parallelize(ranges, Math.max(1, ranges.size()))
+            .flatMapToPair(range -> new EdgeIterator(open(SparkFiles.get(fileName)), range._1(), range._2()));
+    }
+
+    /**
+     * Lazily walks the edges of the nodes in [start, end)
+     */
+    private static class EdgeIterator implements Iterator<Tuple2<String, String>> {
+        private final CsrGraph graph;
+        private final int end;
+        private int node;
+        private String source;
+        private int[] neighbors = new int[0];
+        private int next;
+
+        EdgeIterator(CsrGraph graph, int start, int end) {
+            this.graph = graph;
+            this.end = end;
+            this.node = start - 1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next >= neighbors.length) {
+                if (node + 1 >= end)
+                    return false;
+                node++;
+                source = graph.getName(node);
+                neighbors = graph.getNeighbors(node);
+                next = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Tuple2<String, String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return new Tuple2<>(source, graph.getName(neighbors[next++]));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package instalite.ranking.graph;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.storage.StorageLevel;
+
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Writes the (node, node) edge RDD produced by FeedRankJob.getGraph() as a
+ * compressed CSR file that {@link CsrGraph} can memory-map.
+ *
+ * Nodes get dense int ids ordered by (type, name), so users, posts and hashtags
+ * each occupy one contiguous id range and names can be binary searched. Each
+ * adjacency list is stored as varint(degree) followed by the sorted neighbour ids,
+ * delta-encoded as varints. Duplicate edges are kept (as zero deltas) so weights
+ * computed from the file match those computed from the RDD.
+ *
+ * File layout (all integers big-endian):
+ *   header (HEADER_BYTES) | adjacency lists | node names (UTF-8) | type tags (1 byte per node)
+ *   | adjacency offsets (long[n + 1]) | name offsets (long[n + 1])
+ */
+public class CsrGraphWriter {
+    static final int MAGIC = 0x43535247; // "CSRG"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+
+    private final FlexibleLogger logger;
+
+    public CsrGraphWriter(FlexibleLogger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Build the CSR file from a bidirectional edge RDD. The adjacency lists are encoded
+     * on the executors and streamed to the driver in id order, so the driver only holds
+     * the per-node offset arrays.
+     *
+     * @param edges (node, node) edges as produced by getGraph()
+     * @param path  local file to write; replaced atomically when complete
+     * @throws IOException if the file cannot be written
+     */
+    public void write(JavaPairRDD<String, String> edges, String path) throws IOException {
+        logger.info("[CsrGraphWriter] Writing graph store to " + path);
+
+        // 1) Dense ids ordered by (type, name)
+        JavaRDD<String> nodes = edges.keys()
+            .union(edges.values())
+            .distinct()
+            .sortBy(CsrGraphWriter::sortKey, true, edges.getNumPartitions());
+        JavaPairRDD<String, Long> ids = nodes.zipWithIndex().persist(StorageLevel.MEMORY_AND_DISK());
+        long totalNodes = ids.count();
+        if (totalNodes > Integer.MAX_VALUE)
+            throw new IOException("Too many nodes for an int-indexed graph store: " + totalNodes);
+        int nodeCount = (int) totalNodes;
+
+        // 2) Edges as (sourceId, destId)
+        JavaPairRDD<Integer, Integer> idEdges = edges
+            .join(ids)
+            .mapToPair(tuple -> new Tuple2<>(tuple._2()._1(), tuple._2()._2().intValue()))
+            .join(ids)
+            .mapToPair(tuple -> new Tuple2<>(tuple._2()._1(), tuple._2()._2().intValue()));
+
+        // 3) (sourceId, (degree, encoded adjacency)) in id order
+        JavaPairRDD<Integer, Tuple2<Integer, byte[]>> adjacency = idEdges
+            .groupByKey()
+            .mapValues(CsrGraphWriter::encodeAdjacency)
+            .sortByKey(true);
+
+        File target = new File(path);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        File temp = new File(path + ".tmp");
+
+        long edgeCount = 0;
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_BYTES);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            long position = HEADER_BYTES;
+
+            long[] offsets = new long[nodeCount + 1];
+            int next = 0;
+            Iterator<Tuple2<Integer, Tuple2<Integer, byte[]>>> lists = adjacency.toLocalIterator();
+            while (lists.hasNext()) {
+                Tuple2<Integer, Tuple2<Integer, byte[]>> list = lists.next();
+                // Nodes without out-edges get an empty list (a single zero degree byte)
+                for (; next < list._1(); next++) {
+                    offsets[next] = position;
+                    out.write(0);
+                    position++;
+                }
+                offsets[next++] = position;
+                out.write(list._2()._2());
+                position += list._2()._2().length;
+                edgeCount += list._2()._1();
+            }
+            for (; next < nodeCount; next++) {
+                offsets[next] = position;
+                out.write(0);
+                position++;
+            }
+            offsets[nodeCount] = position;
+
+            long namesPosition = position;
+            long[] nameOffsets = new long[nodeCount + 1];
+            byte[] types = new byte[nodeCount];
+            int[] typeCounts = new int[NodeType.values().length];
+            Iterator<Tuple2<String, Long>> names = ids.toLocalIterator();
+            for (int node = 0; names.hasNext(); node++) {
+                String name = names.next()._1();
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                nameOffsets[node] = position;
+                out.write(bytes);
+                position += bytes.length;
+
+                NodeType type = NodeType.of(name);
+                types[node] = type.getTag();
+                typeCounts[type.ordinal()]++;
+            }
+            nameOffsets[nodeCount] = position;
+
+            long typesPosition = position;
+            out.write(types);
+            position += types.length;
+
+            long offsetsPosition = position;
+            writeLongs(out, offsets);
+            position += 8L * offsets.length;
+
+            long nameOffsetsPosition = position;
+            writeLongs(out, nameOffsets);
+            position += 8L * nameOffsets.length;
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(nodeCount)
+                .putInt(typeCounts[NodeType.USER.ordinal()])
+                .putInt(typeCounts[NodeType.POST.ordinal()])
+                .putInt(typeCounts[NodeType.HASHTAG.ordinal()])
+                .putLong(edgeCount)
+                .putLong(namesPosition)
+                .putLong(typesPosition)
+                .putLong(offsetsPosition)
+                .putLong(nameOffsetsPosition);
+            header.flip();
+            channel.write(header, 0);
+
+            logger.info("[CsrGraphWriter] Wrote " + nodeCount + " nodes and " + edgeCount + " edges in "
+                + position + " bytes");
+        } finally {
+            ids.unpersist();
+        }
+
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Type ordinal first so that sorting groups each node type into one id range
+    static String sortKey(String node) {
+        return NodeType.of(node).ordinal() + node;
+    }
+
+    // varint(degree), then the sorted neighbour ids as varint deltas
+    static Tuple2<Integer, byte[]> encodeAdjacency(Iterable<Integer> neighbors) {
+        List<Integer> sorted = new ArrayList<>();
+        for (Integer neighbor : neighbors)
+            sorted.add(neighbor);
+        Collections.sort(sorted);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.size() * 2 + 5);
+        VarInt.write(out, sorted.size());
+        int previous = 0;
+        for (int neighbor : sorted) {
+            VarInt.write(out, neighbor - previous);
+            previous = neighbor;
+        }
+        return new Tuple2<>(sorted.size(), out.toByteArray());
+    }
+
+    private static void writeLongs(OutputStream out, long[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        for (long value : values) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putLong(value);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+}
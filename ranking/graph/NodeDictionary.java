@@ -0,0 +1,129 @@
+package instalite.ranking.graph;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+
+import scala.Tuple2;
+
+/**
+ * Maps the prefixed String node names of the edge RDDs ("42", "post:17",
+ * "hashtag:garlic") to packed longs: the {@link NodeType} tag in the top two bits
+ * and a 62-bit value below it.
+ *
+ * User and post ids are already numeric, so they are packed directly and decode
+ * without any lookup. Hashtags are numbered densely from a dictionary built once
+ * per run and broadcast to the executors.
+ */
+public class NodeDictionary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int TYPE_SHIFT = 62;
+    static final long VALUE_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private final Broadcast<Map<String, Long>> hashtagIds;
+    private final Broadcast<String[]> hashtagNames;
+
+    private NodeDictionary(Broadcast<Map<String, Long>> hashtagIds, Broadcast<String[]> hashtagNames) {
+        this.hashtagIds = hashtagIds;
+        this.hashtagNames = hashtagNames;
+    }
+
+    /**
+     * Build the dictionary for a graph by numbering its distinct hashtags
+     *
+     * @param context the Spark context, used to broadcast the hashtag dictionary
+     * @param edges   (node, node) edges as produced by getGraph()
+     */
+    public static NodeDictionary build(JavaSparkContext context, JavaPairRDD<String, String> edges) {
+        List<String> hashtags = edges.keys()
+            .filter(node -> NodeType.of(node) == NodeType.HASHTAG)
+            .distinct()
+            .collect();
+
+        Map<String, Long> ids = new HashMap<>();
+        String[] names = new String[hashtags.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = hashtags.get(i);
+            ids.put(names[i], (long) i);
+        }
+        return new NodeDictionary(context.broadcast(ids), context.broadcast(names));
+    }
+
+    public static long pack(NodeType type, long value) {
+        return ((long) type.ordinal() << TYPE_SHIFT) | (value & VALUE_MASK);
+    }
+
+    public static NodeType typeOf(long id) {
+        return NodeType.fromTag((int) (id >>> TYPE_SHIFT));
+    }
+
+    /**
+     * @return the user id, post id or hashtag number packed into the id
+     */
+    public static long valueOf(long id) {
+        return id & VALUE_MASK;
+    }
+
+    public static boolean isUser(long id) {
+        return typeOf(id) == NodeType.USER;
+    }
+
+    public static boolean isPost(long id) {
+        return typeOf(id) == NodeType.POST;
+    }
+
+    public static boolean isHashtag(long id) {
+        return typeOf(id) == NodeType.HASHTAG;
+    }
+
+    /**
+     * @return whether encode() accepts the node (hashtags must be in the dictionary)
+     */
+    public boolean contains(String node) {
+        return NodeType.of(node) != NodeType.HASHTAG || hashtagIds.value().containsKey(node);
+    }
+
+    public long encode(String node) {
+        NodeType type = NodeType.of(node);
+        switch (type) {
+            case HASHTAG:
+                Long hashtag = hashtagIds.value().get(node);
+                if (hashtag == null)
+                    throw new IllegalArgumentException("Hashtag not in dictionary: " + node);
+                return pack(type, hashtag);
+            default:
+                return pack(type, Long.parseLong(node.substring(type.getPrefix().length())));
+        }
+    }
+
+    /**
+     * @return the prefixed node name, e.g. "post:17"
+     */
+    public String decode(long id) {
+        NodeType type = typeOf(id);
+        if (type == NodeType.HASHTAG)
+            return hashtagNames.value()[(int) valueOf(id)];
+        return type.getPrefix() + valueOf(id);
+    }
+
+    /**
+     * Encode both ends of every edge
+     */
+    public JavaPairRDD<Long, Long> encodeEdges(JavaPairRDD<String, String> edges) {
+        return edges.mapToPair(edge -> new Tuple2<>(encode(edge._1()), encode(edge._2())));
+    }
+
+    /**
+     * Release the broadcast dictionary on the executors
+     */
+    public void destroy() {
+        hashtagIds.destroy();
+        hashtagNames.destroy();
+    }
+}
@@ -0,0 +1,43 @@
+package instalite.ranking.graph;
+
+/**
+ * The three kinds of node in the ranking graph, identified in the edge RDDs by
+ * prefix: users are bare ids ("42"), posts are "post:17" and hashtags "hashtag:garlic".
+ */
+public enum NodeType {
+    USER(""),
+    POST("post:"),
+    HASHTAG("hashtag:");
+
+    private final String prefix;
+
+    NodeType(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the one-byte tag stored for this type on disk
+     */
+    public byte getTag() {
+        return (byte) ordinal();
+    }
+
+    public static NodeType fromTag(int tag) {
+        return values()[tag];
+    }
+
+    /**
+     * Work out a node's type from its prefixed name
+     */
+    public static NodeType of(String node) {
+        if (node.startsWith(HASHTAG.prefix))
+            return HASHTAG;
+        if (node.startsWith(POST.prefix))
+            return POST;
+        return USER;
+    }
+}
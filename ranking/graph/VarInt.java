@@ -0,0 +1,37 @@
+package instalite.ranking.graph;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 varints: 7 bits per byte, high bit set on every byte but the last.
+ */
+final class VarInt {
+    private VarInt() {
+    }
+
+    static void write(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decode the varint starting at position[0] and advance position[0] past it
+     */
+    static int read(ByteBuffer buffer, int[] position) {
+        int pos = position[0];
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(pos++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        position[0] = pos;
+        return value;
+    }
+}
@@ -0,0 +1,62 @@
+package instalite.ranking.loader;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+
+/**
+ * The source tables for one ranking run, loaded and cached by a table loader.
+ */
+public class GraphTables {
+    private final Map<SourceTable, Dataset<Row>> tables = new EnumMap<>(SourceTable.class);
+    private final Map<SourceTable, Long> rowCounts = new EnumMap<>(SourceTable.class);
+
+    public void put(SourceTable table, Dataset<Row> rows, long rowCount) {
+        tables.put(table, rows);
+        rowCounts.put(table, rowCount);
+    }
+
+    public Dataset<Row> get(SourceTable table) {
+        Dataset<Row> rows = tables.get(table);
+        if (rows == null)
+            throw new IllegalStateException("Table " + table.getTableName() + " was not loaded");
+        return rows;
+    }
+
+    public boolean contains(SourceTable table) {
+        return tables.containsKey(table);
+    }
+
+    /**
+     * @return the row count observed when the table was materialized, or -1 if unknown
+     */
+    public long getRowCount(SourceTable table) {
+        return rowCounts.getOrDefault(table, -1L);
+    }
+
+    public Dataset<Row> posts() {
+        return get(SourceTable.POSTS);
+    }
+
+    public Dataset<Row> likes() {
+        return get(SourceTable.LIKES);
+    }
+
+    public Dataset<Row> friends() {
+        return get(SourceTable.FRIENDS);
+    }
+
+    public Dataset<Row> hashtags() {
+        return get(SourceTable.HASHTAGS);
+    }
+
+    /**
+     * Release the cached copies of every table
+     */
+    public void unpersist() {
+        for (Dataset<Row> rows : tables.values())
+            rows.unpersist();
+    }
+}
@@ -0,0 +1,206 @@
+package instalite.ranking.loader;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Loads the ranking source tables from MySQL through Spark's JDBC source.
+ *
+ * Each table is range-partitioned on its integer key (bounds are looked up with a
+ * MIN/MAX query first) and pruned to the columns in {@link SourceTable}, so wide
+ * columns such as posts.content never leave the database. Tables are cached and
+ * materialized from separate driver threads so the four scans overlap. The partitions
+ * and the parallelism come from the job's {@link TableLoadSettings}.
+ *
+ * https://spark.apache.org/docs/3.5.0/sql-data-sources-jdbc.html
+ */
+public class JdbcTableLoader {
+    private final SparkSession spark;
+    private final FlexibleLogger logger;
+    private final TableLoadSettings settings;
+
+    public JdbcTableLoader(SparkSession spark, FlexibleLogger logger, TableLoadSettings settings) {
+        this.spark = spark;
+        this.logger = logger;
+        this.settings = settings;
+    }
+
+    public static String getJdbcUrl() {
+        return "jdbc:mysql://" + Config.MYSQL_HOST + ":" + Config.MYSQL_PORT + "/" + Config.MYSQL_DATABASE;
+    }
+
+    /**
+     * Connection properties required for spark.read().jdbc()
+     */
+    public static Properties getConnectionProperties() {
+        Properties connectionProperties = new Properties();
+        connectionProperties.put("user", Config.MYSQL_USER);
+        connectionProperties.put("password", Config.MYSQL_PASSWORD);
+        connectionProperties.put("driver", Config.JDBC_DRIVER);
+        connectionProperties.put("fetchsize", String.valueOf(Config.JDBC_FETCH_SIZE));
+        return connectionProperties;
+    }
+
+    /**
+     * Build a lazy, partitioned and column-pruned read of one table
+     *
+     * @param table the table to read
+     * @return Dataset containing only the columns listed for the table
+     * @throws SQLException if the partition bounds cannot be queried
+     */
+    public Dataset<Row> read(SourceTable table) throws SQLException {
+        return read(table, null, null);
+    }
+
+    /**
+     * Build a lazy, partitioned and column-pruned read of the rows of one table whose
+     * partition column lies in (exclusiveLowerBound, inclusiveUpperBound]. Used by
+     * the snapshot cache to pull only rows added since its last high-water mark.
+     *
+     * @param table the table to read
+     * @param exclusiveLowerBound lower bound on the partition column, or null for none
+     * @param inclusiveUpperBound upper bound on the partition column, or null for none
+     * @return Dataset containing only the columns listed for the table
+     * @throws SQLException if the partition bounds cannot be queried
+     */
+    public Dataset<Row> read(SourceTable table, Long exclusiveLowerBound, Long inclusiveUpperBound) throws SQLException {
+        String[] columns = table.getColumns();
+        String where = rangeCondition(table, exclusiveLowerBound, inclusiveUpperBound);
+        String source = table.getTableName();
+        if (!where.isEmpty()) {
+            source = "(SELECT " + String.join(", ", columns) + " FROM " + table.getTableName()
+                + where + ") AS " + table.getTableName() + "_range";
+        }
+
+        Properties connectionProperties = getConnectionProperties();
+        long[] bounds = (settings.getJdbcPartitions() > 1) ? findBounds(table, exclusiveLowerBound, inclusiveUpperBound) : null;
+
+        Dataset<Row> rows;
+        if (bounds == null) {
+            rows = spark.read().jdbc(getJdbcUrl(), source, connectionProperties);
+        } else {
+            // Never ask for more partitions than there are distinct key values
+            long range = bounds[1] - bounds[0] + 1;
+            int partitions = (int) Math.max(1, Math.min(settings.getJdbcPartitions(), range));
+            logger.debug("[JdbcTableLoader] Reading " + table.getTableName() + " on " + table.getPartitionColumn()
+                + " in [" + bounds[0] + ", " + bounds[1] + "] with " + partitions + " partitions");
+            rows = spark.read().jdbc(getJdbcUrl(), source, table.getPartitionColumn(),
+                bounds[0], bounds[1] + 1, partitions, connectionProperties);
+        }
+
+        return rows.select(columns[0], Arrays.copyOfRange(columns, 1, columns.length));
+    }
+
+    /**
+     * Look up MIN and MAX of the partition column
+     *
+     * @return {min, max}, or null if there are no rows
+     */
+    long[] findBounds(SourceTable table) throws SQLException {
+        return findBounds(table, null, null);
+    }
+
+    /**
+     * Look up MIN and MAX of the partition column within (exclusiveLowerBound, inclusiveUpperBound]
+     *
+     * @return {min, max}, or null if there are no rows in range
+     */
+    long[] findBounds(SourceTable table, Long exclusiveLowerBound, Long inclusiveUpperBound) throws SQLException {
+        String column = table.getPartitionColumn();
+        String query = "SELECT MIN(" + column + "), MAX(" + column + ") FROM " + table.getTableName()
+            + rangeCondition(table, exclusiveLowerBound, inclusiveUpperBound);
+
+        try (Connection conn = DriverManager.getConnection(getJdbcUrl(), Config.MYSQL_USER, Config.MYSQL_PASSWORD);
+             Statement statement = conn.createStatement();
+             ResultSet result = statement.executeQuery(query)) {
+            if (!result.next())
+                return null;
+            long min = result.getLong(1);
+            if (result.wasNull())
+                return null;
+            long max = result.getLong(2);
+            return new long[] { min, max };
+        }
+    }
+
+    /**
+     * @return the number of rows currently in the table
+     */
+    long countRows(SourceTable table) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(getJdbcUrl(), Config.MYSQL_USER, Config.MYSQL_PASSWORD);
+             Statement statement = conn.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table.getTableName())) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    private static String rangeCondition(SourceTable table, Long exclusiveLowerBound, Long inclusiveUpperBound) {
+        List<String> conditions = new ArrayList<>();
+        if (exclusiveLowerBound != null)
+            conditions.add(table.getPartitionColumn() + " > " + exclusiveLowerBound);
+        if (inclusiveUpperBound != null)
+            conditions.add(table.getPartitionColumn() + " <= " + inclusiveUpperBound);
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+
+    /**
+     * Read, cache and materialize the given tables. With parallel loading
+     * (Config.JDBC_PARALLEL_LOAD) each table is scanned from its own driver thread so the
+     * Spark jobs run concurrently.
+     *
+     * @param tables the tables to load (all of them if empty)
+     * @return the cached tables
+     * @throws IOException if any table fails to load
+     * @throws InterruptedException if loading is interrupted
+     */
+    public GraphTables loadAll(SourceTable... tables) throws IOException, InterruptedException {
+        if (tables.length == 0)
+            tables = SourceTable.values();
+
+        int threads = settings.isParallelLoad() ? tables.length : 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Tuple2<Dataset<Row>, Long>>> pending = new ArrayList<>();
+            for (SourceTable table : tables) {
+                pending.add(pool.submit(() -> {
+                    Dataset<Row> rows = read(table).persist(StorageLevel.MEMORY_AND_DISK());
+                    return new Tuple2<>(rows, rows.count());
+                }));
+            }
+
+            GraphTables result = new GraphTables();
+            for (int i = 0; i < tables.length; i++) {
+                Tuple2<Dataset<Row>, Long> loaded = pending.get(i).get();
+                result.put(tables[i], loaded._1(), loaded._2());
+                logger.info("[JdbcTableLoader] Loaded " + loaded._2() + " rows from " + tables[i].getTableName());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to load ranking tables from " + getJdbcUrl(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package instalite.ranking.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+
+import instalite.ranking.utils.FlexibleLogger;
+import scala.Tuple2;
+
+/**
+ * Keeps a Parquet copy of each ranking source table under the snapshot directory
+ * (Config.SNAPSHOT_DIR, carried by the job's {@link TableLoadSettings}) and serves the
+ * jobs from it instead of scanning MySQL every run.
+ *
+ * Layout: [dir]/[table]/gen-N/[part]/*.parquet plus [dir]/[table]/_snapshot.properties,
+ * which records the current generation, its parts, the high-water mark and the row count.
+ * A generation starts with the part "base", the full copy, and gains one part per
+ * increment, named by the id range it holds ("inc-[from]-[to]"). Parts are only read once
+ * the metadata lists them, so files left by a load that died before committing its
+ * metadata are never read, and are deleted by the next increment.
+ *
+ * On each load:
+ *  - append-only tables (posts) pull only rows above the high-water mark into a new part
+ *    of the current generation, until it has MAX_PARTS parts and is rewritten;
+ *  - other tables are rewritten into a new generation when their MySQL row count changed
+ *    or the snapshot is older than Config.SNAPSHOT_MAX_AGE_MINUTES;
+ *  - tables in Config.SNAPSHOT_FULL_REFRESH_TABLES (or all tables, if
+ *    Config.SNAPSHOT_FULL_REFRESH is set) are always rewritten, which catches deletes.
+ *
+ * Paths go through the Hadoop FileSystem API, so the directory may be local, HDFS or S3.
+ */
+public class SnapshotTableLoader {
+    private static final String METADATA_FILE = "_snapshot.properties";
+    private static final String BASE_PART = "base";
+
+    // Increments per generation before it is rewritten, so reads do not gather ever more small parts
+    private static final int MAX_PARTS = 64;
+
+    private final SparkSession spark;
+    private final FlexibleLogger logger;
+    private final JdbcTableLoader jdbc;
+    private final TableLoadSettings settings;
+    private final Path root;
+
+    public SnapshotTableLoader(SparkSession spark, FlexibleLogger logger, TableLoadSettings settings) {
+        this.spark = spark;
+        this.logger = logger;
+        this.jdbc = new JdbcTableLoader(spark, logger, settings);
+        this.settings = settings;
+        this.root = new Path(settings.getSnapshotDir());
+    }
+
+    /**
+     * Bring the snapshots of the given tables up to date and read them back.
+     *
+     * @param tables the tables to load (all of them if empty)
+     * @return the cached snapshot tables
+     * @throws IOException if a snapshot cannot be refreshed or read
+     * @throws InterruptedException if loading is interrupted
+     */
+    public GraphTables loadAll(SourceTable... tables) throws IOException, InterruptedException {
+        if (tables.length == 0)
+            tables = SourceTable.values();
+
+        int threads = settings.isParallelLoad() ? tables.length : 1;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Tuple2<Dataset<Row>, Long>>> pending = new ArrayList<>();
+            for (SourceTable table : tables)
+                pending.add(pool.submit(() -> refresh(table)));
+
+            GraphTables result = new GraphTables();
+            for (int i = 0; i < tables.length; i++) {
+                Tuple2<Dataset<Row>, Long> loaded = pending.get(i).get();
+                result.put(tables[i], loaded._1(), loaded._2());
+                logger.info("[SnapshotTableLoader] Loaded " + loaded._2() + " rows from the "
+                    + tables[i].getTableName() + " snapshot");
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to refresh ranking snapshots in " + root, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Refresh one table's snapshot as needed, then read and cache it
+     *
+     * @return (snapshot rows, row count)
+     */
+    Tuple2<Dataset<Row>, Long> refresh(SourceTable table) throws IOException, SQLException {
+        FileSystem fs = root.getFileSystem(spark.sparkContext().hadoopConfiguration());
+        Path tableDir = new Path(root, table.getTableName());
+        Properties metadata = readMetadata(fs, tableDir);
+
+        if (metadata == null || needsFullRefresh(table, metadata)) {
+            metadata = fullRefresh(fs, tableDir, table, metadata);
+        } else if (table.isAppendOnly()) {
+            metadata = appendNewRows(fs, tableDir, table, metadata);
+        } else {
+            logger.debug("[SnapshotTableLoader] Reusing " + table.getTableName() + " snapshot");
+        }
+
+        Dataset<Row> rows = spark.read()
+            .parquet(partPaths(tableDir, metadata))
+            .persist(StorageLevel.MEMORY_AND_DISK());
+        return new Tuple2<>(rows, Long.parseLong(metadata.getProperty("rowCount")));
+    }
+
+    private boolean needsFullRefresh(SourceTable table, Properties metadata) throws SQLException {
+        if (settings.isFullRefresh() || settings.getFullRefreshTables().contains(table))
+            return true;
+        // Written before snapshots had parts, or grown to too many of them
+        if (parts(metadata).length == 0 || parts(metadata).length >= MAX_PARTS)
+            return true;
+        if (table.isAppendOnly())
+            return false;
+
+        long ageMinutes = (System.currentTimeMillis() - Long.parseLong(metadata.getProperty("refreshedAt"))) / 60000;
+        if (ageMinutes >= settings.getSnapshotMaxAgeMinutes())
+            return true;
+
+        // A changed row count is a cheap signal that rows were inserted or deleted
+        return jdbc.countRows(table) != Long.parseLong(metadata.getProperty("rowCount"));
+    }
+
+    /**
+     * Rewrite the whole table into a new generation, then drop the old one
+     */
+    private Properties fullRefresh(FileSystem fs, Path tableDir, SourceTable table, Properties previous)
+        throws IOException, SQLException {
+        long generation = (previous == null) ? 0 : Long.parseLong(previous.getProperty("generation")) + 1;
+
+        // Pin the high-water mark first so rows inserted during the copy are picked up next time
+        Long highWater = null;
+        if (table.isAppendOnly()) {
+            long[] bounds = jdbc.findBounds(table);
+            highWater = (bounds == null) ? null : bounds[1];
+        }
+
+        Properties metadata = new Properties();
+        metadata.setProperty("generation", Long.toString(generation));
+        metadata.setProperty("parts", BASE_PART);
+        Path target = new Path(generationPath(tableDir, metadata), BASE_PART);
+
+        logger.info("[SnapshotTableLoader] Full refresh of " + table.getTableName() + " into " + target);
+        jdbc.read(table, null, highWater).write().mode(SaveMode.Overwrite).parquet(target.toString());
+
+        metadata.setProperty("highWater", (highWater == null) ? "" : Long.toString(highWater));
+        metadata.setProperty("rowCount", Long.toString(spark.read().parquet(target.toString()).count()));
+        metadata.setProperty("refreshedAt", Long.toString(System.currentTimeMillis()));
+        writeMetadata(fs, tableDir, metadata);
+
+        if (previous != null)
+            fs.delete(generationPath(tableDir, previous), true);
+        return metadata;
+    }
+
+    /**
+     * Write rows above the high-water mark into a new part of the current generation, which
+     * is only read once the metadata lists it
+     */
+    private Properties appendNewRows(FileSystem fs, Path tableDir, SourceTable table, Properties metadata)
+        throws IOException, SQLException {
+        String highWaterValue = metadata.getProperty("highWater", "");
+        Long highWater = highWaterValue.isEmpty() ? null : Long.parseLong(highWaterValue);
+
+        long[] bounds = jdbc.findBounds(table, highWater, null);
+        if (bounds == null) {
+            logger.debug("[SnapshotTableLoader] No new rows in " + table.getTableName());
+            return metadata;
+        }
+
+        // Parts of an earlier load that died before its metadata was written
+        Path generationDir = generationPath(tableDir, metadata);
+        List<String> parts = Arrays.asList(parts(metadata));
+        for (FileStatus status : fs.listStatus(generationDir)) {
+            if (status.isDirectory() && !parts.contains(status.getPath().getName())) {
+                logger.info("[SnapshotTableLoader] Deleting uncommitted snapshot part " + status.getPath());
+                fs.delete(status.getPath(), true);
+            }
+        }
+
+        String part = "inc-" + highWaterValue + "-" + bounds[1];
+        Path target = new Path(generationDir, part);
+        logger.info("[SnapshotTableLoader] Appending " + table.getTableName() + " rows with "
+            + table.getPartitionColumn() + " in (" + highWaterValue + ", " + bounds[1] + "] as " + target);
+        jdbc.read(table, highWater, bounds[1]).write().mode(SaveMode.Overwrite).parquet(target.toString());
+        long added = spark.read().parquet(target.toString()).count();
+
+        Properties updated = new Properties();
+        updated.putAll(metadata);
+        updated.setProperty("parts", metadata.getProperty("parts") + "," + part);
+        updated.setProperty("highWater", Long.toString(bounds[1]));
+        updated.setProperty("rowCount", Long.toString(Long.parseLong(metadata.getProperty("rowCount")) + added));
+        writeMetadata(fs, tableDir, updated);
+        return updated;
+    }
+
+    private static Path generationPath(Path tableDir, Properties metadata) {
+        return new Path(tableDir, "gen-" + metadata.getProperty("generation"));
+    }
+
+    // The committed parts of the current generation, none for metadata written before there were parts
+    private static String[] parts(Properties metadata) {
+        String parts = metadata.getProperty("parts", "");
+        return parts.isEmpty() ? new String[0] : parts.split(",");
+    }
+
+    private static String[] partPaths(Path tableDir, Properties metadata) {
+        String[] parts = parts(metadata);
+        String[] paths = new String[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            paths[i] = new Path(generationPath(tableDir, metadata), parts[i]).toString();
+        return paths;
+    }
+
+    private static Properties readMetadata(FileSystem fs, Path tableDir) throws IOException {
+        Path file = new Path(tableDir, METADATA_FILE);
+        if (!fs.exists(file))
+            return null;
+        Properties metadata = new Properties();
+        try (InputStream in = fs.open(file)) {
+            metadata.load(in);
+        }
+        return metadata;
+    }
+
+    /**
+     * Write to a temporary file and rename over the old one so a crash never leaves
+     * metadata pointing at a half-written generation
+     */
+    private static void writeMetadata(FileSystem fs, Path tableDir, Properties metadata) throws IOException {
+        Path file = new Path(tableDir, METADATA_FILE);
+        Path temp = new Path(tableDir, METADATA_FILE + ".tmp");
+        try (OutputStream out = fs.create(temp, true)) {
+            metadata.store(out, "Ranking snapshot metadata");
+        }
+        fs.delete(file, false);
+        if (!fs.rename(temp, file))
+            throw new IOException("Could not update snapshot metadata " + file);
+    }
+}
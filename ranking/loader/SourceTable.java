@@ -0,0 +1,70 @@
+package instalite.ranking.loader;
+
+/**
+ * The MySQL tables that the ranking jobs build their graphs from, together with
+ * the only columns the edge builders actually read and the integer column used
+ * to range-partition the JDBC scan.
+ *
+ * Each partition column must lead an index, or every partition's range query scans the
+ * whole table: posts.post_id and hashtags.user_id are primary keys, friends.follower
+ * leads idx_friends_follower_followed and likes.user_id leads idx_likes_user_id_post_id
+ * (see backend/models/create_tables.js), which also covers the columns read from likes.
+ *
+ * Only posts is append-only with a monotonic key (post_id AUTO_INCREMENT), so it
+ * is the only table the snapshot cache can refresh incrementally. likes has no
+ * key at all, hashtags rows are updated in place and friends rows are deleted.
+ */
+public enum SourceTable {
+    POSTS("posts", "post_id", true, "post_id", "hashtags"),
+    LIKES("likes", "user_id", false, "user_id", "post_id"),
+    FRIENDS("friends", "follower", false, "followed", "follower"),
+    HASHTAGS("hashtags", "user_id", false, "user_id", "hashtag");
+
+    private final String tableName;
+    private final String partitionColumn;
+    private final boolean appendOnly;
+    private final String[] columns;
+
+    SourceTable(String tableName, String partitionColumn, boolean appendOnly, String... columns) {
+        this.tableName = tableName;
+        this.partitionColumn = partitionColumn;
+        this.appendOnly = appendOnly;
+        this.columns = columns;
+    }
+
+    /**
+     * @return true if rows are only ever inserted, with a monotonically increasing partition column
+     */
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public static SourceTable fromTableName(String tableName) {
+        for (SourceTable table : values()) {
+            if (table.tableName.equalsIgnoreCase(tableName.trim()))
+                return table;
+        }
+        throw new IllegalArgumentException("Unknown source table: " + tableName);
+    }
+
+    /**
+     * @return the name of the table in MySQL
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the numeric column used for range partitioning
+     */
+    public String getPartitionColumn() {
+        return partitionColumn;
+    }
+
+    /**
+     * @return the columns the edge builders need (everything else is pruned)
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+}
@@ -0,0 +1,91 @@
+package instalite.ranking.loader;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import instalite.ranking.config.Config;
+
+/**
+ * How the ranking source tables are loaded: the JDBC scan's partitions and parallelism and
+ * the snapshot cache's directory and refresh policy. A job reads them from Config when it
+ * is built and carries them, as Config is only filled in from .env on the client and a job
+ * run on Livy would otherwise load with the compiled defaults.
+ */
+public class TableLoadSettings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int jdbcPartitions;
+    private final boolean parallelLoad;
+    private final String snapshotDir;
+    private final String fullRefreshTables;
+    private final boolean fullRefresh;
+    private final long snapshotMaxAgeMinutes;
+
+    /**
+     * @param jdbcPartitions        range partitions (and JDBC connections) per table
+     * @param parallelLoad          load the tables concurrently
+     * @param snapshotDir           where to keep the Parquet snapshots (null or empty for none)
+     * @param fullRefreshTables     comma-separated tables re-copied on every load
+     * @param fullRefresh           re-copy every table
+     * @param snapshotMaxAgeMinutes age after which a non-append-only snapshot is re-copied
+     */
+    public TableLoadSettings(int jdbcPartitions, boolean parallelLoad, String snapshotDir, String fullRefreshTables,
+        boolean fullRefresh, long snapshotMaxAgeMinutes) {
+        this.jdbcPartitions = jdbcPartitions;
+        this.parallelLoad = parallelLoad;
+        this.snapshotDir = snapshotDir;
+        this.fullRefreshTables = fullRefreshTables;
+        this.fullRefresh = fullRefresh;
+        this.snapshotMaxAgeMinutes = snapshotMaxAgeMinutes;
+    }
+
+    /**
+     * @return the settings currently in Config
+     */
+    public static TableLoadSettings fromConfig() {
+        return new TableLoadSettings(Config.JDBC_PARTITIONS, Config.JDBC_PARALLEL_LOAD, Config.SNAPSHOT_DIR,
+            Config.SNAPSHOT_FULL_REFRESH_TABLES, Config.SNAPSHOT_FULL_REFRESH, Config.SNAPSHOT_MAX_AGE_MINUTES);
+    }
+
+    public int getJdbcPartitions() {
+        return jdbcPartitions;
+    }
+
+    public boolean isParallelLoad() {
+        return parallelLoad;
+    }
+
+    /**
+     * @return whether the tables are served from snapshots rather than read from MySQL
+     */
+    public boolean usesSnapshots() {
+        return snapshotDir != null && !snapshotDir.isEmpty();
+    }
+
+    public String getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public boolean isFullRefresh() {
+        return fullRefresh;
+    }
+
+    /**
+     * @return the tables whose snapshots are re-copied on every load
+     */
+    public Set<SourceTable> getFullRefreshTables() {
+        Set<SourceTable> tables = new HashSet<>();
+        if (fullRefreshTables == null)
+            return tables;
+        for (String name : fullRefreshTables.split(",")) {
+            if (!name.trim().isEmpty())
+                tables.add(SourceTable.fromTableName(name));
+        }
+        return tables;
+    }
+
+    public long getSnapshotMaxAgeMinutes() {
+        return snapshotMaxAgeMinutes;
+    }
+}
@@ -0,0 +1,229 @@
+package instalite.ranking.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.AccumulatorV2;
+import org.apache.spark.util.DoubleAccumulator;
+import org.apache.spark.util.LongAccumulator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.MaxAccumulator;
+
+/**
+ * Collects the diagnostics of one job run without running extra Spark jobs for them.
+ *
+ * Row counts come from accumulators that are bumped while an RDD is computed for the job
+ * that needs it anyway, stage and job timings from a {@link StageTimingListener}, and
+ * per-iteration values (max label difference, label totals, ...) are recorded from the
+ * driver. Nothing is logged until {@link #report()}, which logs a summary once and writes
+ * the whole run as JSON.
+ *
+ * The Spark context may be shared with other jobs, e.g. in a Livy session or a scheduler
+ * daemon, so the run tags the jobs it submits with a run id in a local property of the
+ * creating thread, and the listener only records jobs with that tag. A run started while
+ * another is open on the thread (a pipeline stage) nests its id under the outer one, so
+ * the outer run still accounts for the stage's jobs; report() restores the outer id.
+ *
+ * An accumulator counts every time its partition is computed, so a count over an RDD that
+ * is neither persisted nor used once is a multiple of the row count, and retried tasks may
+ * count twice; counts are placed where each partition is computed once.
+ */
+public class RunMetrics {
+    private static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * The local property jobs carry their run's id in
+     */
+    public static final String RUN_ID_PROPERTY = "instalite.run.id";
+    private static final AtomicLong RUN_COUNT = new AtomicLong();
+
+    private final String jobName;
+    private final JavaSparkContext context;
+    private final FlexibleLogger logger;
+    private final String reportDir;
+    private final String previousRunId;
+    private final String runId;
+    private final StageTimingListener listener;
+    private final long start = System.currentTimeMillis();
+
+    private final Map<String, AccumulatorV2<?, ?>> accumulators = new LinkedHashMap<>();
+    private final Map<String, Object> values = new LinkedHashMap<>();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final List<Map<String, Object>> iterations = new ArrayList<>();
+    private boolean reported = false;
+
+    /**
+     * @param jobName   the name the run is reported under
+     * @param context   the Spark context to register accumulators and the listener with
+     * @param logger    the job's logger
+     * @param reportDir where to write JSON run reports (null or empty to only log them)
+     */
+    public RunMetrics(String jobName, JavaSparkContext context, FlexibleLogger logger, String reportDir) {
+        this.jobName = jobName;
+        this.context = context;
+        this.logger = logger;
+        this.reportDir = reportDir;
+
+        this.previousRunId = context.getLocalProperty(RUN_ID_PROPERTY);
+        this.runId = ((previousRunId == null) ? "" : previousRunId + "/") + jobName + "-"
+            + RUN_COUNT.incrementAndGet();
+        context.setLocalProperty(RUN_ID_PROPERTY, runId);
+        this.listener = new StageTimingListener(RUN_ID_PROPERTY, runId);
+        context.sc().addSparkListener(listener);
+    }
+
+    /**
+     * @return a counter reported under the given name
+     */
+    public LongAccumulator counter(String name) {
+        LongAccumulator counter = context.sc().longAccumulator(jobName + "." + name);
+        accumulators.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * @return a sum reported under the given name
+     */
+    public DoubleAccumulator sum(String name) {
+        DoubleAccumulator sum = context.sc().doubleAccumulator(jobName + "." + name);
+        accumulators.put(name, sum);
+        return sum;
+    }
+
+    /**
+     * @return a maximum reported under the given name
+     */
+    public MaxAccumulator max(String name) {
+        MaxAccumulator max = new MaxAccumulator();
+        context.sc().register(max, jobName + "." + name);
+        accumulators.put(name, max);
+        return max;
+    }
+
+    /**
+     * Count the rows of an RDD as they are computed, under the given name
+     *
+     * @return the same rows, with the same partitioning
+     */
+    public <T> JavaRDD<T> count(String name, JavaRDD<T> rdd) {
+        LongAccumulator rows = counter(name);
+        return rdd.filter(row -> {
+            rows.add(1);
+            return true;
+        });
+    }
+
+    /**
+     * Count the rows of a pair RDD as they are computed, under the given name
+     *
+     * @return the same rows, with the same partitioning
+     */
+    public <K, V> JavaPairRDD<K, V> count(String name, JavaPairRDD<K, V> rdd) {
+        LongAccumulator rows = counter(name);
+        return rdd.filter(row -> {
+            rows.add(1);
+            return true;
+        });
+    }
+
+    /**
+     * Record a value computed on the driver
+     */
+    public void set(String name, Object value) {
+        values.put(name, value);
+    }
+
+    /**
+     * Record how long a phase of the run took
+     *
+     * @param phaseStart System.currentTimeMillis() when the phase started
+     */
+    public void phase(String name, long phaseStart) {
+        phases.put(name, System.currentTimeMillis() - phaseStart);
+    }
+
+    /**
+     * Record the values of one iteration, e.g. its max label difference and label totals
+     *
+     * @param iteration    the iteration number
+     * @param nameAndValue alternating names and values
+     */
+    public void iteration(int iteration, Object... nameAndValue) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("iteration", iteration);
+        for (int i = 0; i + 1 < nameAndValue.length; i += 2)
+            record.put((String) nameAndValue[i], nameAndValue[i + 1]);
+        iterations.add(record);
+    }
+
+    /**
+     * Log the run's metrics and write them as JSON. Only the first call reports; the
+     * listener is removed afterwards, and jobs are no longer tagged with this run.
+     */
+    public void report() {
+        if (reported)
+            return;
+        reported = true;
+        context.sc().removeSparkListener(listener);
+        context.setLocalProperty(RUN_ID_PROPERTY, previousRunId);
+
+        Map<String, Object> report = toMap();
+        StringBuilder summary = new StringBuilder("[RunMetrics] " + jobName + " took " + report.get("durationMs")
+            + " ms in " + listener.getJobs().size() + " Spark jobs / " + listener.getStages().size() + " stages");
+        phases.forEach((name, ms) -> summary.append("\n  phase ").append(name).append(": ").append(ms).append(" ms"));
+        ((Map<?, ?>) report.get("counters")).forEach((name, value) ->
+            summary.append("\n  ").append(name).append(": ").append(value));
+        values.forEach((name, value) -> summary.append("\n  ").append(name).append(": ").append(value));
+        for (Map<String, Object> iteration : iterations)
+            summary.append("\n  ").append(iteration);
+        logger.info(summary.toString());
+
+        if (reportDir == null || reportDir.isEmpty())
+            return;
+        try {
+            Path file = new Path(reportDir, jobName + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(
+                new Date(start)) + ".json");
+            FileSystem fs = file.getFileSystem(context.hadoopConfiguration());
+            try (OutputStream out = fs.create(file, true)) {
+                JSON.writeValue(out, report);
+            }
+            logger.info("[RunMetrics] Wrote run report " + file);
+        } catch (IOException e) {
+            logger.error("[RunMetrics] Could not write run report: " + e.getMessage());
+        }
+    }
+
+    private Map<String, Object> toMap() {
+        Map<String, Object> counters = new LinkedHashMap<>();
+        accumulators.forEach((name, accumulator) -> counters.put(name, accumulator.value()));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("job", jobName);
+        report.put("runId", runId);
+        report.put("startTime", start);
+        report.put("durationMs", System.currentTimeMillis() - start);
+        report.put("phases", phases);
+        report.put("counters", counters);
+        report.put("values", values);
+        report.put("iterations", iterations);
+        report.put("jobs", listener.getJobs());
+        report.put("stages", listener.getStages());
+        return report;
+    }
+}
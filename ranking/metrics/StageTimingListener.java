@@ -0,0 +1,119 @@
+package instalite.ranking.metrics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerJobEnd;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.StageInfo;
+
+import scala.jdk.javaapi.CollectionConverters;
+
+/**
+ * Records the duration and size of every Spark job and stage of a run, from the events
+ * the scheduler already posts, so timings cost no extra jobs.
+ *
+ * A listener sees the events of every job on the Spark context, including those other
+ * jobs sharing it submit at the same time. Given a run id, it only records jobs submitted
+ * with that id, or one nested under it (e.g. "RankingPipelineJob-1/FeedRankJob-2"), in the
+ * given local property, and the stages of those jobs.
+ *
+ * Events arrive on Spark's listener bus thread, so all state is guarded by this object.
+ */
+public class StageTimingListener extends SparkListener {
+    private final String property;
+    private final String runId;
+
+    private final List<Map<String, Object>> stages = new ArrayList<>();
+    private final Map<Integer, Long> jobStarts = new LinkedHashMap<>();
+    private final Set<Integer> stageIds = new HashSet<>();
+    private final List<Map<String, Object>> jobs = new ArrayList<>();
+
+    /**
+     * Record every job and stage
+     */
+    public StageTimingListener() {
+        this(null, null);
+    }
+
+    /**
+     * @param property the local property jobs carry their run id in
+     * @param runId    record only jobs of this run (null for every job)
+     */
+    public StageTimingListener(String property, String runId) {
+        this.property = property;
+        this.runId = runId;
+    }
+
+    private boolean isOwnJob(Properties properties) {
+        if (runId == null)
+            return true;
+        String jobRunId = (properties == null) ? null : properties.getProperty(property);
+        return jobRunId != null && (jobRunId.equals(runId) || jobRunId.startsWith(runId + "/"));
+    }
+
+    @Override
+    public synchronized void onJobStart(SparkListenerJobStart jobStart) {
+        if (!isOwnJob(jobStart.properties()))
+            return;
+        jobStarts.put(jobStart.jobId(), jobStart.time());
+        for (Object stageId : CollectionConverters.asJava(jobStart.stageIds()))
+            stageIds.add((Integer) stageId);
+    }
+
+    @Override
+    public synchronized void onJobEnd(SparkListenerJobEnd jobEnd) {
+        if (!jobStarts.containsKey(jobEnd.jobId()))
+            return;
+        Long start = jobStarts.remove(jobEnd.jobId());
+        Map<String, Object> job = new LinkedHashMap<>();
+        job.put("jobId", jobEnd.jobId());
+        job.put("durationMs", (start == null) ? null : jobEnd.time() - start);
+        job.put("result", jobEnd.jobResult().toString());
+        jobs.add(job);
+    }
+
+    @Override
+    public synchronized void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+        StageInfo info = stageCompleted.stageInfo();
+        if (runId != null && !stageIds.contains(info.stageId()))
+            return;
+        Map<String, Object> stage = new LinkedHashMap<>();
+        stage.put("stageId", info.stageId());
+        stage.put("name", info.name());
+        stage.put("tasks", info.numTasks());
+        if (info.submissionTime().isDefined() && info.completionTime().isDefined())
+            stage.put("durationMs", (Long) info.completionTime().get() - (Long) info.submissionTime().get());
+
+        TaskMetrics metrics = info.taskMetrics();
+        if (metrics != null) {
+            stage.put("executorRunTimeMs", metrics.executorRunTime());
+            stage.put("recordsRead", metrics.inputMetrics().recordsRead());
+            stage.put("shuffleReadBytes", metrics.shuffleReadMetrics().totalBytesRead());
+            stage.put("shuffleWriteBytes", metrics.shuffleWriteMetrics().bytesWritten());
+            // Writing shuffle files includes serializing the records into them
+            stage.put("shuffleWriteTimeMs", metrics.shuffleWriteMetrics().writeTime() / 1_000_000);
+            stage.put("resultSerializationMs", metrics.resultSerializationTime());
+            stage.put("spilledBytes", metrics.diskBytesSpilled());
+        }
+        if (info.failureReason().isDefined())
+            stage.put("failure", info.failureReason().get());
+        stages.add(stage);
+    }
+
+    public synchronized List<Map<String, Object>> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    public synchronized List<Map<String, Object>> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+}
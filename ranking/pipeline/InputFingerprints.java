@@ -0,0 +1,114 @@
+package instalite.ranking.pipeline;
+
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.sum;
+import static org.apache.spark.sql.functions.xxhash64;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+
+/**
+ * Remembers the inputs each pipeline stage last ran on, so a stage whose inputs have not
+ * changed since can be skipped.
+ *
+ * A table's fingerprint is its row count and the sum of a 64-bit hash of every row, one
+ * aggregation over the already cached table. The sum does not depend on row order or
+ * partitioning, and any inserted, deleted or updated row changes it (up to hash
+ * collisions). A stage's fingerprint is those of its input tables plus its parameters.
+ *
+ * Fingerprints are kept in one properties file under the state directory, on any Hadoop
+ * file system. Without a state directory nothing is remembered and every stage runs.
+ * They are read in the Spark driver to decide what to skip, but updated by whoever stores a
+ * stage's results, after they are stored (see RankingPipelineJob.commit), so that is often
+ * the client rather than the driver.
+ */
+public class InputFingerprints {
+    private static final String FINGERPRINT_FILE = "fingerprints.properties";
+
+    private final Configuration conf;
+    private final Path root;
+    private final Properties fingerprints;
+
+    /**
+     * @param spark    the Spark session
+     * @param stateDir where to keep the fingerprints (null or empty to keep none)
+     * @throws IOException if existing fingerprints cannot be read
+     */
+    public InputFingerprints(SparkSession spark, String stateDir) throws IOException {
+        this(spark.sparkContext().hadoopConfiguration(), stateDir);
+    }
+
+    /**
+     * @param conf     Hadoop settings for the file system the state directory is on
+     * @param stateDir where to keep the fingerprints (null or empty to keep none)
+     * @throws IOException if existing fingerprints cannot be read
+     */
+    public InputFingerprints(Configuration conf, String stateDir) throws IOException {
+        this.conf = conf;
+        this.root = (stateDir == null || stateDir.isEmpty()) ? null : new Path(stateDir);
+        this.fingerprints = new Properties();
+        if (root != null) {
+            FileSystem fs = fileSystem();
+            Path file = new Path(root, FINGERPRINT_FILE);
+            if (fs.exists(file)) {
+                try (InputStream in = fs.open(file)) {
+                    fingerprints.load(in);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return "[rows]:[sum of row hashes]" for the (cached) table
+     */
+    public static String of(Dataset<Row> table) {
+        Column[] columns = Arrays.stream(table.columns()).map(table::col).toArray(Column[]::new);
+        Row row = table.agg(count(lit(1)), sum(xxhash64(columns).cast("decimal(38,0)"))).first();
+        return row.getLong(0) + ":" + (row.isNullAt(1) ? "0" : row.get(1).toString());
+    }
+
+    /**
+     * @return whether the stage last completed on inputs with this fingerprint
+     */
+    public boolean isUnchanged(String stage, String fingerprint) {
+        return root != null && fingerprint.equals(fingerprints.getProperty(stage));
+    }
+
+    /**
+     * Record that the stage completed on inputs with this fingerprint
+     *
+     * @throws IOException if the fingerprints cannot be written
+     */
+    public void update(String stage, String fingerprint) throws IOException {
+        fingerprints.setProperty(stage, fingerprint);
+        if (root == null)
+            return;
+
+        // Write to a temporary file and rename over the old one, so a crash never leaves half a file
+        FileSystem fs = fileSystem();
+        Path file = new Path(root, FINGERPRINT_FILE);
+        Path temp = new Path(root, FINGERPRINT_FILE + ".tmp");
+        try (OutputStream out = fs.create(temp, true)) {
+            fingerprints.store(out, "Inputs of the last completed run of each pipeline stage");
+        }
+        fs.delete(file, false);
+        if (!fs.rename(temp, file))
+            throw new IOException("Could not update pipeline fingerprints " + file);
+    }
+
+    private FileSystem fileSystem() throws IOException {
+        return root.getFileSystem(conf);
+    }
+}
@@ -0,0 +1,108 @@
+package instalite.ranking.pipeline;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import instalite.ranking.utils.SerializablePair;
+import instalite.ranking.writer.ResultManifest;
+
+/**
+ * What a {@link RankingPipelineJob} run did: which stages ran or were skipped and how long
+ * each took, plus the friend recommendations if that stage ran, or the manifests of the
+ * files stages handed their results off in. Small enough to return through Livy.
+ *
+ * It also carries the input fingerprints of the stages that ran and left their results
+ * for the caller to store, which are not remembered until the caller has stored them (see
+ * RankingPipelineJob.commit).
+ */
+public class PipelineReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Status {
+        RAN, SKIPPED
+    }
+
+    private final Map<String, Status> statuses = new LinkedHashMap<>();
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+    private List<SerializablePair<SerializablePair<String, String>, Integer>> recommendations;
+    private final Map<String, ResultManifest> manifests = new LinkedHashMap<>();
+    private final Map<String, String> fingerprints = new LinkedHashMap<>();
+    private String stateDir;
+
+    public void record(String stage, Status status, long durationMs) {
+        statuses.put(stage, status);
+        durations.put(stage, durationMs);
+    }
+
+    public Status getStatus(String stage) {
+        return statuses.get(stage);
+    }
+
+    public boolean ran(String stage) {
+        return statuses.get(stage) == Status.RAN;
+    }
+
+    /**
+     * @return how long the stage took in ms (0 if it was skipped)
+     */
+    public long getDuration(String stage) {
+        return durations.getOrDefault(stage, 0L);
+    }
+
+    /**
+     * @return the ((user, recommended_user), strength) recommendations, or null if the stage was skipped
+     */
+    public List<SerializablePair<SerializablePair<String, String>, Integer>> getRecommendations() {
+        return recommendations;
+    }
+
+    public void setRecommendations(List<SerializablePair<SerializablePair<String, String>, Integer>> recommendations) {
+        this.recommendations = recommendations;
+    }
+
+    /**
+     * @return the files the stage handed its result off in, or null if it was skipped or
+     *         did not hand its result off
+     */
+    public ResultManifest getManifest(String stage) {
+        return manifests.get(stage);
+    }
+
+    public void setManifest(String stage, ResultManifest manifest) {
+        if (manifest != null)
+            manifests.put(stage, manifest);
+    }
+
+    /**
+     * @return the fingerprint of the inputs the stage ran on, or null if it was skipped or
+     *         stored its results itself
+     */
+    public String getFingerprint(String stage) {
+        return fingerprints.get(stage);
+    }
+
+    public void setFingerprint(String stage, String fingerprint) {
+        fingerprints.put(stage, fingerprint);
+    }
+
+    /**
+     * @return where the pipeline keeps its fingerprints (null or empty if it keeps none)
+     */
+    public String getStateDir() {
+        return stateDir;
+    }
+
+    public void setStateDir(String stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        statuses.forEach((stage, status) -> summary.append(summary.length() > 0 ? ", " : "")
+            .append(stage).append(' ').append(status).append(" in ").append(durations.get(stage)).append(" ms"));
+        return summary.toString();
+    }
+}
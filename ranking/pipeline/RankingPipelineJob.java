@@ -0,0 +1,200 @@
+package instalite.ranking.pipeline;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+
+import instalite.ranking.adsorption.AdsorptionEngine;
+import instalite.ranking.adsorption.FeedRankJob;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.friends.FriendsOfFriendsJob;
+import instalite.ranking.loader.GraphTables;
+import instalite.ranking.spark.SparkJob;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.SerializablePair;
+import instalite.ranking.writer.ParquetResultLoader;
+
+/**
+ * Runs the feed ranking ({@link FeedRankJob}) and the friend recommendations
+ * ({@link FriendsOfFriendsJob}) as stages of one job in one Spark session.
+ *
+ * The source tables are loaded (and cached) once and handed to both stages, so the
+ * friends table, which both stages build their follow graph from, is read from MySQL
+ * once instead of once per job. Each stage runs with its own metrics report, and the
+ * pipeline's report records how long loading, fingerprinting and each stage took.
+ *
+ * Before a stage runs, the fingerprints of its input tables and its parameters (see
+ * {@link InputFingerprints}) are compared with those of its last completed run; if
+ * nothing changed the stage is skipped, since it would produce the same output. The
+ * rankings are written to MySQL by the ranking stage itself; the recommendations come
+ * back in the {@link PipelineReport} for the caller to store. With setResultHandoff both
+ * stages write their results as Parquet files instead, and the report carries only the
+ * files' manifests for the caller to load.
+ *
+ * A stage's fingerprint is only remembered once its results are stored. Rankings the
+ * ranking stage writes to MySQL itself are stored when the stage completes; returned
+ * recommendations and handed off files are stored by the caller, so the report carries
+ * the fingerprints of those stages, and the caller calls {@link #commit} for each stage
+ * once its results are in MySQL. If storing fails, nothing is remembered and the stage
+ * runs again next time.
+ */
+public class RankingPipelineJob extends SparkJob<PipelineReport> {
+    private static final long serialVersionUID = 1L;
+
+    public static final String FEED_RANK = "feedRank";
+    public static final String FRIENDS_OF_FRIENDS = "friendsOfFriends";
+
+    private final FeedRankJob rankJob;
+    private final FriendsOfFriendsJob recsJob;
+
+    // Read from Config when the job is built, so it travels with it to Livy
+    private String stateDir = Config.PIPELINE_STATE_DIR;
+
+    private boolean force = false;
+
+    /**
+     * @param rankJob the ranking stage, set up as it would run on its own
+     * @param recsJob the recommendation stage
+     */
+    public RankingPipelineJob(FeedRankJob rankJob, FriendsOfFriendsJob recsJob, boolean isLocal, boolean debug,
+        FlexibleLogger logger, Config config) {
+        super(logger, config, isLocal, debug);
+        this.rankJob = rankJob;
+        this.recsJob = recsJob;
+    }
+
+    /**
+     * Have both stages hand their results off as Parquet files under Config.RESULT_HANDOFF_DIR
+     * (see ParquetResultWriter), whose manifests come back in the report
+     */
+    public void setResultHandoff(boolean handoff) {
+        rankJob.setResultHandoff(handoff);
+        recsJob.setResultHandoff(handoff);
+    }
+
+    /**
+     * Run every stage, even if its inputs have not changed
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    @Override
+    public PipelineReport run(boolean debug) throws Exception {
+        PipelineReport report = new PipelineReport();
+        report.setStateDir(stateDir);
+
+        long phaseStart = System.currentTimeMillis();
+        GraphTables tables = loadTables();
+        metrics.phase("loadTables", phaseStart);
+
+        try {
+            phaseStart = System.currentTimeMillis();
+            InputFingerprints fingerprints = new InputFingerprints(spark, stateDir);
+            String posts = InputFingerprints.of(tables.posts());
+            String likes = InputFingerprints.of(tables.likes());
+            String friends = InputFingerprints.of(tables.friends());
+            String hashtags = InputFingerprints.of(tables.hashtags());
+            metrics.phase("fingerprints", phaseStart);
+
+            // Stage 1: adsorption over the whole graph, written to post_rankings by the executors
+            String rankInputs = String.join("|", posts, likes, friends, hashtags, rankJob.describeParameters());
+            runStage(FEED_RANK, rankInputs, rankJob.storesRankings(), fingerprints, report, () -> {
+                rankJob.shareTables(tables);
+                rankJob.call(null);
+                report.setManifest(FEED_RANK, rankJob.getResultManifest());
+            });
+
+            // Stage 2: friends of friends over the follow graph only
+            runStage(FRIENDS_OF_FRIENDS, friends, false, fingerprints, report, () -> {
+                recsJob.shareTables(tables);
+                report.setRecommendations(recsJob.call(null));
+                report.setManifest(FRIENDS_OF_FRIENDS, recsJob.getResultManifest());
+            });
+        } finally {
+            tables.unpersist();
+        }
+
+        logger.info("[RankingPipelineJob run()] " + report);
+        return report;
+    }
+
+    // A stage's work; throws whatever the stage's job throws
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // stored: whether the stage stores its results itself, rather than leaving them to the caller
+    private void runStage(String name, String inputs, boolean stored, InputFingerprints fingerprints,
+        PipelineReport report, Stage stage) throws Exception {
+        long stageStart = System.currentTimeMillis();
+        if (!force && fingerprints.isUnchanged(name, inputs)) {
+            logger.info("[RankingPipelineJob run()] Skipping " + name + ": its inputs have not changed");
+            report.record(name, PipelineReport.Status.SKIPPED, 0);
+            metrics.set(name, PipelineReport.Status.SKIPPED);
+            return;
+        }
+
+        logger.info("[RankingPipelineJob run()] Running " + name);
+        stage.run();
+        // Only remembered once the results are stored, by the caller if it stores them (see
+        // commit), so a stage whose results never make it into MySQL runs again next time
+        if (stored)
+            fingerprints.update(name, inputs);
+        else
+            report.setFingerprint(name, inputs);
+        report.record(name, PipelineReport.Status.RAN, System.currentTimeMillis() - stageStart);
+        metrics.phase(name, stageStart);
+    }
+
+    /**
+     * Remember the inputs a stage ran on, once its results are stored, so the next run can
+     * skip it if they have not changed. Does nothing for a stage that was skipped or stored
+     * its results itself.
+     *
+     * @param report the pipeline run's report
+     * @param stage  FEED_RANK or FRIENDS_OF_FRIENDS
+     * @throws IOException if the fingerprints cannot be written
+     */
+    public static void commit(PipelineReport report, String stage) throws IOException {
+        if (report.getFingerprint(stage) == null)
+            return;
+        new InputFingerprints(ParquetResultLoader.clientConfiguration(), report.getStateDir())
+            .update(stage, report.getFingerprint(stage));
+    }
+
+    /**
+     * Run the pipeline locally
+     *
+     * Usage: RankingPipelineJob [d_max] [i_max] [--force]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Config config = ConfigSingleton.getInstance();
+        double d_max = (args.length > 0) ? Double.parseDouble(args[0]) : 1;
+        int i_max = (args.length > 1) ? Integer.parseInt(args[1]) : 15;
+        boolean force = args.length > 2 && args[2].equals("--force");
+
+        FlexibleLogger rankLogger = new FlexibleLogger(LogManager.getLogger(SparkJob.class), true, false);
+        FeedRankJob rankJob = new FeedRankJob(d_max, i_max, true, false, rankLogger, config);
+        rankJob.setEngine(AdsorptionEngine.Type.fromName(Config.ADSORPTION_ENGINE));
+        rankJob.setWriteRankings(true);
+        FriendsOfFriendsJob recsJob = new FriendsOfFriendsJob(true, false, rankLogger, config);
+
+        RankingPipelineJob pipeline = new RankingPipelineJob(rankJob, recsJob, true, false, rankLogger, config);
+        pipeline.setForce(force);
+        PipelineReport report = pipeline.mainLogic();
+        if (report == null)
+            System.exit(1);
+
+        // The rankings were written by the ranking stage itself
+        commit(report, FEED_RANK);
+        if (report.ran(FRIENDS_OF_FRIENDS)) {
+            List<SerializablePair<SerializablePair<String, String>, Integer>> recs = report.getRecommendations();
+            rankLogger.info("Friends of friends produced " + recs.size() + " recommendations");
+            FriendsOfFriendsJob.storeRecommendations(recs, rankLogger);
+            commit(report, FRIENDS_OF_FRIENDS);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package instalite.ranking.scheduler;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import instalite.ranking.loader.SourceTable;
+
+/**
+ * Indicators of how much the source tables changed: the row count and the largest
+ * partition column value of each.
+ *
+ * The largest key is cheap: every partition column leads an index (see SourceTable), so
+ * MAX is one index dive. The row count is not: InnoDB keeps no row count, so COUNT(*)
+ * reads every entry of the table's smallest index, which grows with the table (likes
+ * most of all). Counts are therefore read only now and then (see
+ * {@link #read(Connection, ChangeIndicators)}) and carried over in between, when only
+ * the largest keys are read.
+ *
+ * They see inserts and deletes but not rows updated in place (e.g. hashtags), and an
+ * insert and a delete between two counts cancel out; only for posts, whose key only
+ * grows, the growth of the largest key still counts the insert, at every poll. Runs
+ * therefore also need a staleness deadline (see RankingScheduler).
+ */
+public class ChangeIndicators {
+    private final Map<SourceTable, long[]> tables;
+
+    private ChangeIndicators(Map<SourceTable, long[]> tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * Read the indicators of every source table, counting the rows of each
+     *
+     * @throws SQLException if a table cannot be queried
+     */
+    public static ChangeIndicators read(Connection connection) throws SQLException {
+        return read(connection, null);
+    }
+
+    /**
+     * Read the largest keys of every source table, and take the row counts from earlier
+     * indicators instead of counting again
+     *
+     * @param counted the indicators to take the row counts from, or null to count the rows
+     * @throws SQLException if a table cannot be queried
+     */
+    public static ChangeIndicators read(Connection connection, ChangeIndicators counted) throws SQLException {
+        Map<SourceTable, long[]> tables = new EnumMap<>(SourceTable.class);
+        try (Statement statement = connection.createStatement()) {
+            for (SourceTable table : SourceTable.values()) {
+                String maxKey = "COALESCE(MAX(" + table.getPartitionColumn() + "), 0)";
+                if (counted == null) {
+                    try (ResultSet result = statement.executeQuery("SELECT " + maxKey + ", COUNT(*) FROM "
+                        + table.getTableName())) {
+                        result.next();
+                        tables.put(table, new long[] { result.getLong(2), result.getLong(1) });
+                    }
+                } else {
+                    try (ResultSet result = statement.executeQuery("SELECT " + maxKey + " FROM "
+                        + table.getTableName())) {
+                        result.next();
+                        tables.put(table, new long[] { counted.getRows(table), result.getLong(1) });
+                    }
+                }
+            }
+        }
+        return new ChangeIndicators(tables);
+    }
+
+    public long getRows(SourceTable table) {
+        return tables.get(table)[0];
+    }
+
+    public long getMaxKey(SourceTable table) {
+        return tables.get(table)[1];
+    }
+
+    /**
+     * @return about how many rows of the given tables were inserted or deleted since the
+     *         previous indicators: the change in row count, or for append-only tables the
+     *         growth of the largest key if that is more; at least 1 for a table whose
+     *         largest key changed
+     */
+    public long changesSince(ChangeIndicators previous, Collection<SourceTable> of) {
+        long changes = 0;
+        for (SourceTable table : of) {
+            long rows = Math.abs(getRows(table) - previous.getRows(table));
+            long keys = getMaxKey(table) - previous.getMaxKey(table);
+            if (table.isAppendOnly())
+                rows = Math.max(rows, keys);
+            else if (keys != 0)
+                rows = Math.max(rows, 1);
+            changes += rows;
+        }
+        return changes;
+    }
+
+    /**
+     * @return table -> { rows, maxKey }, for the scheduler's status
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        tables.forEach((table, values) -> {
+            Map<String, Long> indicators = new LinkedHashMap<>();
+            indicators.put("rows", values[0]);
+            indicators.put("maxKey", values[1]);
+            map.put(table.getTableName(), indicators);
+        });
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,591 @@
+package instalite.ranking.scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import instalite.ranking.ComputeRanksLivy;
+import instalite.ranking.ComputeRecsLivy;
+import instalite.ranking.adsorption.AdsorptionEngine;
+import instalite.ranking.adsorption.FeedRankJob;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.friends.FriendsOfFriendsJob;
+import instalite.ranking.loader.JdbcTableLoader;
+import instalite.ranking.spark.LivySessionManager;
+import instalite.ranking.spark.SparkConnector;
+import instalite.ranking.spark.SparkJob;
+import instalite.ranking.utils.FlexibleLogger;
+
+/**
+ * Runs the feed ranking and the friend recommendations when their inputs have changed
+ * enough, instead of on a fixed schedule or by hand.
+ *
+ * Every poll interval the scheduler reads the {@link ChangeIndicators} of the source
+ * tables (largest keys at every poll, an index dive per table, and row counts, a scan of
+ * an index per table, only every count interval) and compares them with those taken when
+ * each {@link RunKind} last ran successfully. A run is due when
+ *
+ * - it has never run since the scheduler started,
+ * - its input tables changed by at least its minimum number of rows, or
+ * - its last successful run is older than the staleness deadline (which also catches
+ *   changes the indicators cannot see, e.g. hashtags updated in place),
+ *
+ * unless it failed less than the retry delay ago. Only one run is in flight at a time,
+ * ranking or recommendations: a run that becomes due meanwhile is refused and counted,
+ * and starts at the first poll after the current run ends. Rankings go first when both are
+ * due. The runs themselves are {@link Runner}s, e.g. a Livy submission, so the scheduler
+ * only needs JDBC access to the tables, which a local MySQL-compatible server is enough for.
+ * main() runs every Livy submission in one session that it holds for the daemon's
+ * lifetime, so runs do not pay for attaching to (or starting) a session.
+ *
+ * The scheduler keeps a bounded history of its runs and, per kind, how stale the last
+ * successful run is, how many changes it has not seen and for how long changes have been
+ * waiting for it. It logs them, returns them from getStatus() and, with a status file,
+ * writes them there as JSON after every poll and run. With a status file, a lock file next
+ * to it also keeps a second scheduler from starting against the same file.
+ */
+public class RankingScheduler implements AutoCloseable {
+    private static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * Where the indicators come from, e.g. a JDBC connection per poll
+     */
+    public interface IndicatorSource {
+        ChangeIndicators poll() throws SQLException;
+    }
+
+    /**
+     * One run of a kind; returns once the run is done and throws if it failed
+     */
+    public interface Runner {
+        void run() throws Exception;
+    }
+
+    // Reads the indicators over a new connection per poll, counting rows every countInterval
+    private static class JdbcIndicatorSource implements IndicatorSource {
+        private final String driver;
+        private final String url;
+        private final String user;
+        private final String password;
+        private final Duration countInterval;
+        private final Clock clock;
+        private ChangeIndicators counted;
+        private Instant countedAt;
+
+        JdbcIndicatorSource(String driver, String url, String user, String password, Duration countInterval,
+            Clock clock) {
+            this.driver = driver;
+            this.url = url;
+            this.user = user;
+            this.password = password;
+            this.countInterval = countInterval;
+            this.clock = clock;
+        }
+
+        @Override
+        public ChangeIndicators poll() throws SQLException {
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("JDBC driver " + driver + " not found", e);
+            }
+            Instant now = clock.instant();
+            boolean count = counted == null || !now.isBefore(countedAt.plus(countInterval));
+            try (Connection connection = DriverManager.getConnection(url, user, password)) {
+                ChangeIndicators indicators = ChangeIndicators.read(connection, count ? null : counted);
+                if (count) {
+                    counted = indicators;
+                    countedAt = now;
+                }
+                return indicators;
+            }
+        }
+    }
+
+    // What the scheduler knows about one kind's runs
+    private static class KindState {
+        ChangeIndicators baseline; // indicators when the last successful run started
+        Instant lastSuccess; // when it started
+        Instant lastFailure;
+        int failures; // since the last success
+        Instant pendingSince; // first poll that saw changes the last successful run did not
+    }
+
+    private final IndicatorSource source;
+    private final Map<RunKind, Runner> runners;
+    private final FlexibleLogger logger;
+    private final Clock clock;
+
+    private final Map<RunKind, Long> minChanges = new EnumMap<>(RunKind.class);
+    private Duration maxStaleness = Duration.ofHours(6);
+    private Duration retryDelay = Duration.ofMinutes(10);
+    private int historySize = 100;
+    private Path statusFile;
+
+    private final Map<RunKind, KindState> states = new EnumMap<>(RunKind.class);
+    private final Deque<RunRecord> history = new ArrayDeque<>();
+    private ChangeIndicators latest;
+    private Instant polledAt;
+    private RunRecord current;
+    private long refusedRuns;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ranking-scheduler-run");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledExecutorService poller;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    /**
+     * @param source  reads the indicators at each poll
+     * @param runners the run of each kind to schedule (kinds without one are never run)
+     * @param logger  logs polls that trigger or refuse runs, and each run's outcome
+     * @param clock   the time polls and runs are measured with
+     */
+    public RankingScheduler(IndicatorSource source, Map<RunKind, Runner> runners, FlexibleLogger logger, Clock clock) {
+        this.source = source;
+        this.runners = new EnumMap<>(runners);
+        this.logger = logger;
+        this.clock = clock;
+        for (RunKind kind : RunKind.values()) {
+            states.put(kind, new KindState());
+            minChanges.put(kind, 1L);
+        }
+    }
+
+    /**
+     * @return a scheduler for the given runs that polls the configured MySQL database
+     *         (counting rows every Config.SCHEDULER_COUNT_MINUTES), with the configured
+     *         thresholds, deadline, retry delay, history size and status file
+     */
+    public static RankingScheduler fromConfig(Map<RunKind, Runner> runners, FlexibleLogger logger) {
+        Clock clock = Clock.systemUTC();
+        RankingScheduler scheduler = new RankingScheduler(new JdbcIndicatorSource(Config.JDBC_DRIVER,
+            JdbcTableLoader.getJdbcUrl(), Config.MYSQL_USER, Config.MYSQL_PASSWORD,
+            Duration.ofMinutes(Config.SCHEDULER_COUNT_MINUTES), clock), runners, logger, clock);
+        scheduler.setMinChanges(RunKind.RANKINGS, Config.SCHEDULER_RANKINGS_MIN_CHANGES);
+        scheduler.setMinChanges(RunKind.RECOMMENDATIONS, Config.SCHEDULER_RECOMMENDATIONS_MIN_CHANGES);
+        scheduler.setMaxStaleness(Duration.ofMinutes(Config.SCHEDULER_MAX_STALENESS_MINUTES));
+        scheduler.setRetryDelay(Duration.ofMinutes(Config.SCHEDULER_RETRY_MINUTES));
+        scheduler.setHistorySize(Config.SCHEDULER_HISTORY_SIZE);
+        if (Config.SCHEDULER_STATUS_FILE != null && !Config.SCHEDULER_STATUS_FILE.isEmpty())
+            scheduler.setStatusFile(Paths.get(Config.SCHEDULER_STATUS_FILE));
+        return scheduler;
+    }
+
+    /**
+     * Run a kind once its inputs changed by at least this many rows (1 by default)
+     */
+    public void setMinChanges(RunKind kind, long changes) {
+        minChanges.put(kind, Math.max(1, changes));
+    }
+
+    /**
+     * Run a kind once its last successful run is this old, whether or not its inputs changed
+     */
+    public void setMaxStaleness(Duration maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Wait this long before running a kind again after it failed
+     */
+    public void setRetryDelay(Duration retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Keep this many runs in the history
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = Math.max(1, historySize);
+    }
+
+    /**
+     * Write the status to this file as JSON after every poll and run
+     */
+    public void setStatusFile(Path statusFile) {
+        this.statusFile = statusFile;
+    }
+
+    /**
+     * Poll every interval until closed, from a background thread
+     *
+     * @throws IOException if another scheduler holds the status file's lock
+     */
+    public synchronized void start(Duration interval) throws IOException {
+        if (poller != null)
+            throw new IllegalStateException("The scheduler is already started");
+        lock();
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ranking-scheduler-poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (Exception e) {
+                // A failed poll (e.g. the database is down) must not end the schedule
+                logger.error("[RankingScheduler] Could not poll the source tables: " + e);
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        logger.info("[RankingScheduler] Polling every " + interval.getSeconds() + " s");
+    }
+
+    /**
+     * Read the indicators and start the first due run, if no run is in flight
+     *
+     * @return the run started, or null if none was due or a run is still in flight
+     * @throws SQLException if the indicators cannot be read
+     */
+    public synchronized RunRecord poll() throws SQLException {
+        latest = source.poll();
+        polledAt = clock.instant();
+
+        RunRecord started = null;
+        for (RunKind kind : RunKind.values()) {
+            KindState state = states.get(kind);
+            if (state.baseline != null && state.pendingSince == null
+                && latest.changesSince(state.baseline, kind.getInputs()) > 0)
+                state.pendingSince = polledAt;
+
+            String reason = dueReason(kind);
+            // A kind in flight is not due again until its run ends
+            if (reason == null || (current != null && current.getKind() == kind))
+                continue;
+            if (current != null || started != null) {
+                refusedRuns++;
+                logger.info("[RankingScheduler] " + kind + " is due (" + reason + "), but "
+                    + (current != null ? current : started).getKind() + " is still running");
+                continue;
+            }
+            started = start(kind, reason);
+        }
+        writeStatus();
+        return started;
+    }
+
+    /**
+     * Start a run of the kind now, whatever its inputs, unless a run is in flight
+     *
+     * @return the run started, or null if a run is still in flight
+     * @throws SQLException if the indicators cannot be read
+     */
+    public synchronized RunRecord runNow(RunKind kind) throws SQLException {
+        if (!runners.containsKey(kind))
+            throw new IllegalArgumentException("No run for " + kind);
+        if (current != null) {
+            refusedRuns++;
+            logger.info("[RankingScheduler] Not running " + kind + ": " + current.getKind() + " is still running");
+            return null;
+        }
+        latest = source.poll();
+        polledAt = clock.instant();
+        RunRecord started = start(kind, "requested");
+        writeStatus();
+        return started;
+    }
+
+    // Why the kind should run now, or null if it should not
+    private String dueReason(RunKind kind) {
+        if (!runners.containsKey(kind))
+            return null;
+        KindState state = states.get(kind);
+        if (state.lastFailure != null && polledAt.isBefore(state.lastFailure.plus(retryDelay)))
+            return null;
+        if (state.baseline == null)
+            return "no run since the scheduler started";
+        long changes = latest.changesSince(state.baseline, kind.getInputs());
+        if (changes >= minChanges.get(kind))
+            return changes + " changes";
+        if (!polledAt.isBefore(state.lastSuccess.plus(maxStaleness)))
+            return "stale since " + state.lastSuccess.plus(maxStaleness);
+        return null;
+    }
+
+    private RunRecord start(RunKind kind, String reason) {
+        RunRecord record = new RunRecord(kind, reason, clock.instant(), latest);
+        current = record;
+        history.addLast(record);
+        while (history.size() > historySize)
+            history.removeFirst();
+        logger.info("[RankingScheduler] Starting " + kind + ": " + reason);
+
+        Runner runner = runners.get(kind);
+        worker.submit(() -> {
+            Throwable failure = null;
+            try {
+                runner.run();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            finish(record, failure);
+        });
+        return record;
+    }
+
+    private synchronized void finish(RunRecord record, Throwable failure) {
+        record.finish(clock.instant(), failure);
+        KindState state = states.get(record.getKind());
+        if (failure == null) {
+            state.baseline = record.getIndicators();
+            state.lastSuccess = record.getStartedAt();
+            state.lastFailure = null;
+            state.failures = 0;
+            // Changes made during the run are found again by the next poll
+            state.pendingSince = null;
+            logger.info("[RankingScheduler] Finished " + record);
+        } else {
+            state.lastFailure = record.getFinishedAt();
+            state.failures++;
+            logger.error("[RankingScheduler] Failed " + record);
+        }
+        current = null;
+        writeStatus();
+    }
+
+    /**
+     * @return the runs kept in the history, oldest first
+     */
+    public synchronized List<RunRecord> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * @return the run in flight, or null
+     */
+    public synchronized RunRecord getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return the latest indicators, the run in flight, how many due runs were refused
+     *         because one was in flight, and per kind how stale the last successful run is
+     *         (stalenessSeconds), how many changes it has not seen (pendingChanges) and how
+     *         long changes have been waiting for it (changeLagSeconds)
+     */
+    public synchronized Map<String, Object> getStatus() {
+        Instant now = clock.instant();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("polledAt", (polledAt == null) ? null : polledAt.toString());
+        status.put("running", (current == null) ? null : current.toMap());
+        status.put("refusedRuns", refusedRuns);
+        if (latest != null)
+            status.put("indicators", latest.toMap());
+
+        Map<String, Object> kinds = new LinkedHashMap<>();
+        for (RunKind kind : runners.keySet()) {
+            KindState state = states.get(kind);
+            Map<String, Object> lag = new LinkedHashMap<>();
+            lag.put("lastSuccess", (state.lastSuccess == null) ? null : state.lastSuccess.toString());
+            lag.put("stalenessSeconds", (state.lastSuccess == null) ? null
+                : Duration.between(state.lastSuccess, now).getSeconds());
+            lag.put("pendingChanges", (state.baseline == null || latest == null) ? null
+                : latest.changesSince(state.baseline, kind.getInputs()));
+            lag.put("changeLagSeconds", (state.pendingSince == null) ? 0
+                : Duration.between(state.pendingSince, now).getSeconds());
+            lag.put("failures", state.failures);
+            kinds.put(kind.name(), lag);
+        }
+        status.put("kinds", kinds);
+
+        List<Map<String, Object>> runs = new ArrayList<>();
+        for (RunRecord record : history)
+            runs.add(record.toMap());
+        status.put("history", runs);
+        return status;
+    }
+
+    // Written to a temporary file and renamed, so readers never see half a status
+    private void writeStatus() {
+        if (statusFile == null)
+            return;
+        try {
+            Path temp = statusFile.resolveSibling(statusFile.getFileName() + ".tmp");
+            if (statusFile.getParent() != null)
+                Files.createDirectories(statusFile.getParent());
+            Files.write(temp, JSON.writeValueAsBytes(getStatus()));
+            Files.move(temp, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("[RankingScheduler] Could not write " + statusFile + ": " + e);
+        }
+    }
+
+    // One scheduler per status file, so two daemons never run the same jobs side by side
+    private void lock() throws IOException {
+        if (statusFile == null)
+            return;
+        File file = new File(statusFile + ".lock");
+        if (file.getParentFile() != null)
+            file.getParentFile().mkdirs();
+        lockFile = new RandomAccessFile(file, "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another scheduler in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            lockFile = null;
+            throw new IOException("Another scheduler holds " + file);
+        }
+    }
+
+    /**
+     * Stop polling and wait for the run in flight, if any, to end. If interrupted while
+     * waiting, the run is left to end on its own and the interrupt is kept.
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService polling;
+        synchronized (this) {
+            polling = poller;
+            poller = null;
+        }
+        if (polling != null)
+            polling.shutdownNow();
+        worker.shutdown();
+        try {
+            worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (lock != null) {
+            lock.release();
+            lockFile.close();
+            lock = null;
+        }
+    }
+
+    /**
+     * Run the scheduler until the JVM is stopped, with the runs on Livy, or in a local Spark
+     * session with --local
+     *
+     * Usage: RankingScheduler [d_max] [i_max] [--local]
+     */
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigSingleton.getInstance();
+        double d_max = (args.length > 0 && !args[0].startsWith("--")) ? Double.parseDouble(args[0]) : 1;
+        int i_max = (args.length > 1 && !args[1].startsWith("--")) ? Integer.parseInt(args[1]) : 25;
+        boolean local = args.length > 0 && args[args.length - 1].equals("--local");
+
+        FlexibleLogger logger = new FlexibleLogger(LogManager.getLogger(RankingScheduler.class), true, false);
+        AdsorptionEngine.Type engine = AdsorptionEngine.Type.fromName(Config.ADSORPTION_ENGINE);
+        Map<RunKind, Runner> runners = new EnumMap<>(RunKind.class);
+        List<AutoCloseable> closeOnExit = new ArrayList<>();
+        if (local) {
+            runners.put(RunKind.RANKINGS, () -> {
+                FeedRankJob job = new FeedRankJob(d_max, i_max, true, false, logger, config);
+                job.setEngine(engine);
+                job.setWriteRankings(true);
+                runLocally(job);
+            });
+            runners.put(RunKind.RECOMMENDATIONS, () -> ComputeRecsLivy.storeRecommendations(
+                runLocally(new FriendsOfFriendsJob(true, false, logger, config)), logger));
+        } else {
+            // Runs one at a time, so they can share the session
+            LivySession livy = new LivySession(SparkJob.getLivyUrl(new String[0]), logger);
+            closeOnExit.add(livy);
+            // Rankings go straight from the executors into post_rankings, or through handed off files
+            runners.put(RunKind.RANKINGS,
+                () -> ComputeRanksLivy.callLivy(livy.get(), logger, config, d_max, i_max, false, engine, true));
+            runners.put(RunKind.RECOMMENDATIONS, () -> ComputeRecsLivy.callLivyAndStore(livy.get(), logger, config,
+                false));
+        }
+
+        RankingScheduler scheduler = fromConfig(runners, logger);
+        // The scheduler first, so no run is using the session when it is closed
+        closeOnExit.add(0, scheduler);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (AutoCloseable closeable : closeOnExit) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    logger.error("[RankingScheduler] Could not stop: " + e);
+                }
+            }
+        }));
+        scheduler.start(Duration.ofSeconds(Config.SCHEDULER_POLL_SECONDS));
+        Thread.currentThread().join();
+    }
+
+    // The daemon's Livy session: opened by the first run and reused by the next ones, and
+    // only opened again if Livy no longer has it (e.g. after its idle timeout)
+    private static class LivySession implements AutoCloseable {
+        private final String livyUrl;
+        private final FlexibleLogger logger;
+        private LivySessionManager session;
+
+        LivySession(String livyUrl, FlexibleLogger logger) {
+            this.livyUrl = livyUrl;
+            this.logger = logger;
+        }
+
+        synchronized LivySessionManager get()
+            throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+            if (session != null && !session.isLive()) {
+                logger.info("[RankingScheduler] Livy session " + session.getSessionId() + " is gone; opening another");
+                session.close();
+                session = null;
+            }
+            if (session == null)
+                session = LivySessionManager.open(livyUrl);
+            return session;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (session != null)
+                session.close();
+            session = null;
+        }
+    }
+
+    // mainLogic() reports failures by returning null, and closes the session it ran in
+    private static <T> T runLocally(SparkJob<T> job) throws IOException {
+        try {
+            T result = job.mainLogic();
+            if (result == null)
+                throw new IOException(job.getClass().getSimpleName() + " failed");
+            return result;
+        } finally {
+            SparkConnector.setSparkSession(null);
+            SparkConnector.setSparkContext(null);
+        }
+    }
+}
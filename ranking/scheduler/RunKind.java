@@ -0,0 +1,28 @@
+package instalite.ranking.scheduler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import instalite.ranking.loader.SourceTable;
+
+/**
+ * The runs RankingScheduler triggers, with the tables whose changes make each one due
+ */
+public enum RunKind {
+    RANKINGS(SourceTable.POSTS, SourceTable.LIKES, SourceTable.FRIENDS, SourceTable.HASHTAGS),
+    RECOMMENDATIONS(SourceTable.FRIENDS);
+
+    private final List<SourceTable> inputs;
+
+    RunKind(SourceTable... inputs) {
+        this.inputs = Collections.unmodifiableList(Arrays.asList(inputs));
+    }
+
+    /**
+     * @return the tables the run reads
+     */
+    public List<SourceTable> getInputs() {
+        return inputs;
+    }
+}
@@ -0,0 +1,94 @@
+package instalite.ranking.scheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One run RankingScheduler started: why, when, how it ended and the indicators of its
+ * input tables when it started
+ */
+public class RunRecord {
+    public enum Status {
+        RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final RunKind kind;
+    private final String reason;
+    private final Instant startedAt;
+    private final ChangeIndicators indicators;
+    private volatile Instant finishedAt;
+    private volatile Status status = Status.RUNNING;
+    private volatile String error;
+
+    RunRecord(RunKind kind, String reason, Instant startedAt, ChangeIndicators indicators) {
+        this.kind = kind;
+        this.reason = reason;
+        this.startedAt = startedAt;
+        this.indicators = indicators;
+    }
+
+    void finish(Instant finishedAt, Throwable failure) {
+        this.finishedAt = finishedAt;
+        this.error = (failure == null) ? null : failure.toString();
+        this.status = (failure == null) ? Status.SUCCEEDED : Status.FAILED;
+    }
+
+    public RunKind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return why the run was started, e.g. "612 changes" or "stale"
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return when the run ended, or null while it is running
+     */
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return what the run failed with, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    public ChangeIndicators getIndicators() {
+        return indicators;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("kind", kind.name());
+        map.put("reason", reason);
+        map.put("status", status.name());
+        map.put("startedAt", startedAt.toString());
+        if (finishedAt != null) {
+            map.put("finishedAt", finishedAt.toString());
+            map.put("durationMs", Duration.between(startedAt, finishedAt).toMillis());
+        }
+        if (error != null)
+            map.put("error", error);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
@@ -0,0 +1,200 @@
+package instalite.ranking.serving;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * One generation of post_rankings, reduced to each user's top N posts by weight and held
+ * in a few primitive arrays, for {@link FeedServer} to answer feed requests from memory:
+ *
+ * - users: the user ids, ascending, found by binary search
+ * - offsets: user i's posts are at [offsets[i], offsets[i + 1])
+ * - posts, weights: each user's posts, by weight descending
+ *
+ * That is 12 bytes per ranking and 8 per user, with no object per entry for the garbage
+ * collector to trace. A generation is immutable once built, so requests can read it
+ * without locks while the next one is loaded.
+ */
+public class FeedGeneration {
+    private final long version;
+    private final String source;
+    private final Instant loadedAt;
+    private final int[] users;
+    private final int[] offsets;
+    private final long[] posts;
+    private final float[] weights;
+
+    private FeedGeneration(long version, String source, Instant loadedAt, int[] users, int[] offsets, long[] posts,
+        float[] weights) {
+        this.version = version;
+        this.source = source;
+        this.loadedAt = loadedAt;
+        this.users = users;
+        this.offsets = offsets;
+        this.posts = posts;
+        this.weights = weights;
+    }
+
+    /**
+     * @return a generation without any rankings
+     */
+    public static FeedGeneration empty(long version) {
+        return new FeedGeneration(version, "empty", Instant.now(), new int[0], new int[] { 0 }, new long[0],
+            new float[0]);
+    }
+
+    /**
+     * @return which load this is, counting up from 1
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return what the rankings were loaded from, e.g. the table's generation marker
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public Instant getLoadedAt() {
+        return loadedAt;
+    }
+
+    /**
+     * @return the number of users with rankings
+     */
+    public int getUserCount() {
+        return users.length;
+    }
+
+    /**
+     * @return the number of rankings kept over all users
+     */
+    public int getRankingCount() {
+        return posts.length;
+    }
+
+    /**
+     * @return the index of the user's rankings, or -1 if the user has none
+     */
+    public int find(int user) {
+        int index = Arrays.binarySearch(users, user);
+        return (index < 0) ? -1 : index;
+    }
+
+    /**
+     * @return where the rankings of the user at the index start in getPost and getWeight
+     */
+    public int start(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @return where the rankings of the user at the index end (exclusive)
+     */
+    public int end(int index) {
+        return offsets[index + 1];
+    }
+
+    public long getPost(int position) {
+        return posts[position];
+    }
+
+    public float getWeight(int position) {
+        return weights[position];
+    }
+
+    /**
+     * Builds a generation from rankings grouped by user in ascending user order, e.g. as
+     * post_rankings is read in primary key order, keeping each user's topN by weight
+     */
+    public static class Builder {
+        private final int topN;
+
+        private int[] users = new int[1024];
+        private int[] offsets = new int[1025];
+        private long[] posts = new long[4096];
+        private float[] weights = new float[4096];
+        private int userCount = 0;
+        private int size = 0;
+
+        // The current user's rankings, before they are cut to topN
+        private int user;
+        private long[] userPosts = new long[256];
+        private float[] userWeights = new float[256];
+        private long[] order = new long[256];
+        private int userSize = 0;
+
+        public Builder(int topN) {
+            this.topN = Math.max(1, topN);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the user comes before the previous one
+         */
+        public void add(int user, long post, float weight) {
+            if (userSize > 0 && user != this.user) {
+                if (user < this.user)
+                    throw new IllegalArgumentException("Rankings of user " + user + " after those of user " + this.user);
+                flushUser();
+            }
+            this.user = user;
+            if (userSize == userPosts.length) {
+                userPosts = Arrays.copyOf(userPosts, userSize * 2);
+                userWeights = Arrays.copyOf(userWeights, userSize * 2);
+            }
+            userPosts[userSize] = post;
+            userWeights[userSize] = weight;
+            userSize++;
+        }
+
+        // Append the current user's topN rankings, by weight descending
+        private void flushUser() {
+            // Sort (weight, index) pairs packed into longs, so nothing is boxed
+            if (order.length < userSize)
+                order = new long[userPosts.length];
+            for (int i = 0; i < userSize; i++)
+                order[i] = ((long) sortable(userWeights[i]) << 32) | i;
+            Arrays.sort(order, 0, userSize);
+
+            int kept = Math.min(topN, userSize);
+            if (userCount == users.length) {
+                users = Arrays.copyOf(users, userCount * 2);
+                offsets = Arrays.copyOf(offsets, userCount * 2 + 1);
+            }
+            if (size + kept > posts.length) {
+                int capacity = Math.max(posts.length * 2, size + kept);
+                posts = Arrays.copyOf(posts, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+            for (int i = 0; i < kept; i++) {
+                int index = (int) order[userSize - 1 - i];
+                posts[size] = userPosts[index];
+                weights[size] = userWeights[index];
+                size++;
+            }
+            users[userCount] = user;
+            userCount++;
+            offsets[userCount] = size;
+            userSize = 0;
+        }
+
+        // The float's bits as an int that sorts like the float
+        private static int sortable(float weight) {
+            int bits = Float.floatToIntBits(weight);
+            return bits ^ ((bits >> 31) & 0x7fffffff);
+        }
+
+        /**
+         * @param version which load this is
+         * @param source  what the rankings were loaded from
+         */
+        public FeedGeneration build(long version, String source) {
+            if (userSize > 0)
+                flushUser();
+            return new FeedGeneration(version, source, Instant.now(), Arrays.copyOf(users, userCount),
+                Arrays.copyOf(offsets, userCount + 1), Arrays.copyOf(posts, size), Arrays.copyOf(weights, size));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package instalite.ranking.serving;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.loader.JdbcTableLoader;
+import instalite.ranking.writer.ShadowTablePublisher;
+
+/**
+ * Reads generations of the rankings table for {@link FeedServer}.
+ *
+ * A new generation is recognized by the table's marker, which combines two values:
+ *  - its generation in ShadowTablePublisher.GENERATIONS_TABLE, which the publisher counts
+ *    up after renaming a freshly loaded staging table over the live one, and which
+ *    rankings written in place (Config.RANKINGS_SHADOW_PUBLISH off) count up once they are
+ *    all written; a reload during an in-place write still sees a mix of two runs, until
+ *    the next generation;
+ *  - its creation time from information_schema, which the rename changes as well, so a
+ *    swap is still seen if the publisher died before counting up the generation (or there
+ *    is no generation yet). A reload that falls between the rename and the count reads
+ *    the new rows once more when the count lands.
+ * The update time is not used: MySQL 8 caches it in memory only, so it is lost on restart
+ * and may lag the write.
+ *
+ * The table is read in primary key order (user_id, post_id), which needs no sort in
+ * MySQL, with a cursor so the rows are streamed rather than held by the driver.
+ */
+public class FeedLoader {
+    private static final int FETCH_SIZE = 10000;
+
+    // SQLSTATE of a missing table
+    private static final String NO_SUCH_TABLE = "42S02";
+
+    private final String driver;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String table;
+
+    /**
+     * @param driver   JDBC driver class
+     * @param url      JDBC URL of the database
+     * @param user     database user
+     * @param password database password
+     * @param table    the rankings table, with user_id, post_id and weight columns
+     */
+    public FeedLoader(String driver, String url, String user, String password, String table) {
+        this.driver = driver;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.table = table;
+    }
+
+    /**
+     * @return a loader for post_rankings in the configured MySQL database
+     */
+    public static FeedLoader fromConfig() {
+        return new FeedLoader(Config.JDBC_DRIVER, JdbcTableLoader.getJdbcUrl() + "?useCursorFetch=true",
+            Config.MYSQL_USER, Config.MYSQL_PASSWORD, "post_rankings");
+    }
+
+    /**
+     * @return the table's generation marker, "generation N, created T", which changes when a
+     *         new generation is published, or null if the table does not exist
+     * @throws SQLException if the generation or information_schema cannot be read
+     */
+    public String readMarker() throws SQLException {
+        try (Connection connection = connect()) {
+            String created;
+            try (PreparedStatement statement = connection.prepareStatement("SELECT CREATE_TIME "
+                + "FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?")) {
+                statement.setString(1, table);
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next())
+                        return null;
+                    created = result.getString(1);
+                }
+            }
+
+            long generation = 0;
+            try (PreparedStatement statement = connection.prepareStatement("SELECT generation FROM "
+                + ShadowTablePublisher.GENERATIONS_TABLE + " WHERE table_name = ?")) {
+                statement.setString(1, table);
+                try (ResultSet result = statement.executeQuery()) {
+                    if (result.next())
+                        generation = result.getLong(1);
+                }
+            } catch (SQLException e) {
+                // Nothing was published yet
+                if (!NO_SUCH_TABLE.equals(e.getSQLState()))
+                    throw e;
+            }
+            return "generation " + generation + ", created " + created;
+        }
+    }
+
+    /**
+     * Read the table into a generation that keeps each user's topN rankings
+     *
+     * @param topN    how many rankings to keep per user
+     * @param version the generation's version
+     * @param marker  the table's marker, read before the table
+     * @throws SQLException if the table cannot be read
+     */
+    public FeedGeneration load(int topN, long version, String marker) throws SQLException {
+        FeedGeneration.Builder builder = new FeedGeneration.Builder(topN);
+        try (Connection connection = connect();
+            PreparedStatement statement = connection.prepareStatement(
+                "SELECT user_id, post_id, weight FROM " + table + " ORDER BY user_id, post_id",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(FETCH_SIZE);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next())
+                    builder.add(result.getInt(1), result.getLong(2), result.getFloat(3));
+            }
+        }
+        return builder.build(version, table + "@" + marker);
+    }
+
+    private Connection connect() throws SQLException {
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBC driver " + driver + " not found", e);
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+}
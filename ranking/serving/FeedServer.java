@@ -0,0 +1,504 @@
+package instalite.ranking.serving;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import instalite.ranking.adsorption.ForwardPushRanker;
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.graph.CsrGraph;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.utils.SerializablePair;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+
+/**
+ * Serves users' ranked feeds from memory over HTTP, so a feed load does not have to
+ * query post_rankings and sort it:
+ *
+ * GET /feed/{userId}?limit=N returns {"userId":..,"generation":..,"posts":[{"postId":..,"weight":..},..]}
+ * with the user's N highest ranked posts (the default limit if none is given, at most the
+ * top N kept per user; no posts for a user without rankings).
+ * GET /refresh/{userId}?limit=N returns {"userId":..,"posts":[{"postId":..,"weight":..},..]}
+ * with posts ranked for the user right now by {@link ForwardPushRanker} over the graph
+ * store (Config.GRAPH_STORE_PATH), e.g. for a user who joined or followed someone since
+ * the last batch run; 503 without a graph store.
+ * GET /status returns the current generation and the cache's size, hits and misses.
+ *
+ * The rankings are held as a {@link FeedGeneration} of primitive arrays, with a
+ * {@link RecentFeedCache} of encoded responses. A background thread polls the rankings
+ * table's marker (see {@link FeedLoader}) and, once a new generation is published, loads
+ * it next to the current one and swaps both in with one volatile write: a request sees
+ * either the old generation or the new one, and requests are never held up by a load.
+ *
+ * Requests are answered on the Netty event loop threads (epoll where available) without
+ * blocking: a binary search over the users, a copy of at most N (post, weight) pairs into
+ * a small JSON response, or one cache hit. Refreshes take milliseconds of pushing, so they
+ * run on a separate pool of the same size instead, with a bounded queue: a refresh that
+ * finds it full is answered with 503 rather than piling up behind the others. Responses on
+ * a connection go out in request order, as HTTP/1.1 pipelining requires: while a refresh
+ * runs, the connection's later requests wait, and are answered on its event loop once the
+ * refresh's response is written. The graph store is reopened whenever a new generation is
+ * swapped in, as FeedRankJob writes both in the same run.
+ */
+public class FeedServer implements AutoCloseable {
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    // Refreshes queued per refresh thread before more are turned away with 503
+    private static final int REFRESH_QUEUE_PER_THREAD = 256;
+
+    // Requests a connection may pipeline behind a running refresh before it is closed
+    private static final int MAX_WAITING_REQUESTS = 64;
+
+    // A connection's requests received while its refresh runs, set only while one does
+    private static final AttributeKey<Queue<HttpRequest>> WAITING = AttributeKey.valueOf("feedServerWaiting");
+
+    // A generation with the cache of its responses, swapped in together
+    private static class Served {
+        final FeedGeneration feeds;
+        final RecentFeedCache cache;
+
+        Served(FeedGeneration feeds, RecentFeedCache cache) {
+            this.feeds = feeds;
+            this.cache = cache;
+        }
+    }
+
+    private final FeedLoader loader;
+    private final FlexibleLogger logger;
+    private final int topN;
+    private final int defaultLimit;
+    private final int cacheSize;
+
+    private volatile Served served;
+    private String marker;
+
+    private String graphStorePath;
+    private volatile ForwardPushRanker ranker;
+
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel channel;
+    private ScheduledExecutorService reloader;
+    private ThreadPoolExecutor refresher;
+
+    /**
+     * @param loader       reads generations of the rankings
+     * @param logger       logs loads and errors
+     * @param topN         rankings kept per user
+     * @param defaultLimit posts returned without a limit parameter
+     * @param cacheSize    responses kept per generation
+     */
+    public FeedServer(FeedLoader loader, FlexibleLogger logger, int topN, int defaultLimit, int cacheSize) {
+        this.loader = loader;
+        this.logger = logger;
+        this.topN = Math.max(1, topN);
+        this.defaultLimit = Math.max(1, Math.min(defaultLimit, this.topN));
+        this.cacheSize = cacheSize;
+        this.served = new Served(FeedGeneration.empty(0), new RecentFeedCache(cacheSize));
+    }
+
+    /**
+     * @return a server for post_rankings with the configured top N, default limit and cache size
+     */
+    public static FeedServer fromConfig(FlexibleLogger logger) {
+        FeedServer server = new FeedServer(FeedLoader.fromConfig(), logger, Config.SERVING_TOP_N,
+            Config.SERVING_DEFAULT_LIMIT, Config.SERVING_CACHE_SIZE);
+        server.setGraphStore(Config.GRAPH_STORE_PATH);
+        return server;
+    }
+
+    /**
+     * Answer refreshes with forward push over the graph store at the path (null or empty
+     * to answer them with 503), opening it now if it exists
+     */
+    public void setGraphStore(String path) {
+        this.graphStorePath = (path == null || path.isEmpty()) ? null : path;
+        reloadGraph();
+    }
+
+    // Reopen the graph store, keeping the current one if it cannot be read
+    private void reloadGraph() {
+        if (graphStorePath == null || !new File(graphStorePath).exists())
+            return;
+        try {
+            CsrGraph graph = CsrGraph.open(graphStorePath);
+            ranker = new ForwardPushRanker(graph);
+            logger.info("[FeedServer] Opened the graph store " + graphStorePath + ": " + graph.getNodeCount()
+                + " nodes, " + graph.getEdgeCount() + " edges");
+        } catch (IOException e) {
+            logger.error("[FeedServer] Could not open the graph store " + graphStorePath + ": " + e);
+        }
+    }
+
+    /**
+     * Load the rankings if a new generation was published since the last load
+     *
+     * @return whether a new generation was swapped in
+     * @throws SQLException if the rankings cannot be read; the current generation stays
+     */
+    public synchronized boolean reload() throws SQLException {
+        String current = loader.readMarker();
+        if (current == null || current.equals(marker))
+            return false;
+
+        long start = System.currentTimeMillis();
+        FeedGeneration feeds = loader.load(topN, served.feeds.getVersion() + 1, current);
+        swap(feeds);
+        marker = current;
+        reloadGraph();
+        logger.info("[FeedServer] Loaded generation " + feeds.getVersion() + " from " + feeds.getSource() + ": "
+            + feeds.getUserCount() + " users, " + feeds.getRankingCount() + " rankings in "
+            + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Serve the given generation from now on, with an empty cache
+     */
+    public void swap(FeedGeneration feeds) {
+        served = new Served(feeds, new RecentFeedCache(cacheSize));
+    }
+
+    public FeedGeneration getGeneration() {
+        return served.feeds;
+    }
+
+    /**
+     * Listen on the port, with the given number of event loop threads, and check for new
+     * generations every reload interval
+     *
+     * @throws InterruptedException if interrupted while binding
+     */
+    public void start(int port, int threads, long reloadSeconds) throws InterruptedException {
+        boolean epoll = Epoll.isAvailable();
+        bossGroup = epoll ? new EpollEventLoopGroup(1) : new NioEventLoopGroup(1);
+        workerGroup = epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+        Class<? extends ServerChannel> channelClass = epoll ? EpollServerSocketChannel.class
+            : NioServerSocketChannel.class;
+
+        refresher = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * REFRESH_QUEUE_PER_THREAD), runnable -> {
+                Thread thread = new Thread(runnable, "feed-server-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        FeedHandler handler = new FeedHandler();
+        channel = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(channelClass)
+            .option(ChannelOption.SO_BACKLOG, 1024)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    channel.pipeline()
+                        .addLast(new HttpServerCodec())
+                        .addLast(new HttpServerKeepAliveHandler())
+                        .addLast(handler);
+                }
+            })
+            .bind(port)
+            .sync()
+            .channel();
+
+        if (reloadSeconds > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "feed-server-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(() -> {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    // Keep serving the current generation; the next check tries again
+                    logger.error("[FeedServer] Could not load the rankings: " + e);
+                }
+            }, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        }
+        logger.info("[FeedServer] Serving feeds on port " + port + " with " + threads + " threads"
+            + (epoll ? " (epoll)" : ""));
+    }
+
+    /**
+     * Wait until the server is closed
+     */
+    public void awaitClose() throws InterruptedException {
+        channel.closeFuture().sync();
+    }
+
+    @Override
+    public void close() {
+        if (reloader != null)
+            reloader.shutdownNow();
+        if (refresher != null)
+            refresher.shutdownNow();
+        if (channel != null)
+            channel.close().syncUninterruptibly();
+        if (bossGroup != null)
+            bossGroup.shutdownGracefully();
+        if (workerGroup != null)
+            workerGroup.shutdownGracefully();
+    }
+
+    /**
+     * Encode the user's feed of at most limit posts
+     */
+    byte[] encodeFeed(FeedGeneration feeds, int user, int limit) {
+        StringBuilder json = new StringBuilder(64 + limit * 40);
+        json.append("{\"userId\":").append(user)
+            .append(",\"generation\":").append(feeds.getVersion())
+            .append(",\"posts\":[");
+        int index = feeds.find(user);
+        if (index >= 0) {
+            int end = Math.min(feeds.end(index), feeds.start(index) + limit);
+            for (int i = feeds.start(index); i < end; i++) {
+                if (i > feeds.start(index))
+                    json.append(',');
+                json.append("{\"postId\":").append(feeds.getPost(i))
+                    .append(",\"weight\":").append(feeds.getWeight(i)).append('}');
+            }
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the posts forward push ranked for the user
+     */
+    byte[] encodeRefresh(int user, List<SerializablePair<String, Double>> posts) {
+        StringBuilder json = new StringBuilder(64 + posts.size() * 40);
+        json.append("{\"userId\":").append(user).append(",\"posts\":[");
+        for (int i = 0; i < posts.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            String post = posts.get(i).getLeft(); // "post:[postId]"
+            json.append("{\"postId\":").append(post, post.indexOf(':') + 1, post.length())
+                .append(",\"weight\":").append(posts.get(i).getRight()).append('}');
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodeStatus() throws JsonProcessingException {
+        Served current = served;
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("generation", current.feeds.getVersion());
+        status.put("source", current.feeds.getSource());
+        status.put("loadedAt", current.feeds.getLoadedAt().toString());
+        status.put("users", current.feeds.getUserCount());
+        status.put("rankings", current.feeds.getRankingCount());
+        status.put("cachedFeeds", current.cache.size());
+        status.put("cacheHits", current.cache.getHits());
+        status.put("cacheMisses", current.cache.getMisses());
+        return JSON.writeValueAsBytes(status);
+    }
+
+    // Answers each request on its event loop thread
+    @Sharable
+    private class FeedHandler extends SimpleChannelInboundHandler<HttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext context, HttpRequest request) throws Exception {
+            Queue<HttpRequest> waiting = context.channel().attr(WAITING).get();
+            if (waiting == null) {
+                handle(context, request);
+            } else if (waiting.size() < MAX_WAITING_REQUESTS) {
+                waiting.add(request);
+            } else {
+                logger.error("[FeedServer] Closing a connection with too many requests behind a refresh");
+                context.close();
+            }
+        }
+
+        private void handle(ChannelHandlerContext context, HttpRequest request) throws Exception {
+            if (!request.method().equals(HttpMethod.GET)) {
+                respond(context, request, HttpResponseStatus.METHOD_NOT_ALLOWED, error("Only GET is supported"));
+                return;
+            }
+
+            QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+            String path = uri.path();
+            if (path.equals("/status")) {
+                respond(context, request, HttpResponseStatus.OK, encodeStatus());
+            } else if (path.startsWith("/feed/")) {
+                int[] userAndLimit = parseUserAndLimit(context, request, uri, "/feed/");
+                if (userAndLimit == null)
+                    return;
+                int user = userAndLimit[0];
+                int limit = userAndLimit[1];
+
+                // One read, so the response comes from one generation and its own cache
+                Served current = served;
+                byte[] response = current.cache.get(user, limit);
+                if (response == null) {
+                    response = encodeFeed(current.feeds, user, limit);
+                    current.cache.put(user, limit, response);
+                }
+                respond(context, request, HttpResponseStatus.OK, response);
+            } else if (path.startsWith("/refresh/")) {
+                int[] userAndLimit = parseUserAndLimit(context, request, uri, "/refresh/");
+                if (userAndLimit == null)
+                    return;
+                ForwardPushRanker current = ranker;
+                if (current == null) {
+                    respond(context, request, HttpResponseStatus.SERVICE_UNAVAILABLE, error("No graph store"));
+                    return;
+                }
+                // Off the event loop; later requests on the connection wait for its response
+                context.channel().attr(WAITING).set(new ArrayDeque<>());
+                try {
+                    refresher.execute(() -> refresh(context, request, current, userAndLimit[0], userAndLimit[1]));
+                } catch (RejectedExecutionException e) {
+                    context.channel().attr(WAITING).set(null);
+                    respond(context, request, HttpResponseStatus.SERVICE_UNAVAILABLE, error("Too many refreshes"));
+                }
+            } else {
+                respond(context, request, HttpResponseStatus.NOT_FOUND, error("Not found"));
+            }
+        }
+
+        // Rank on a refresh thread, then answer and resume the connection on its event loop
+        private void refresh(ChannelHandlerContext context, HttpRequest request, ForwardPushRanker current, int user,
+            int limit) {
+            HttpResponseStatus status = HttpResponseStatus.OK;
+            byte[] response;
+            try {
+                response = encodeRefresh(user, current.rank(Integer.toString(user), limit));
+            } catch (RuntimeException e) {
+                logger.error("[FeedServer] Could not refresh the feed of user " + user + ": " + e);
+                status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+                response = error("Could not rank");
+            }
+            HttpResponseStatus responseStatus = status;
+            byte[] body = response;
+            context.executor().execute(() -> {
+                respond(context, request, responseStatus, body);
+                resume(context);
+            });
+        }
+
+        // Answer the requests that waited for a refresh, until one of them starts another
+        private void resume(ChannelHandlerContext context) {
+            Queue<HttpRequest> waiting = context.channel().attr(WAITING).getAndSet(null);
+            while (waiting != null && !waiting.isEmpty()) {
+                try {
+                    handle(context, waiting.poll());
+                } catch (Exception e) {
+                    exceptionCaught(context, e);
+                    return;
+                }
+                Queue<HttpRequest> next = context.channel().attr(WAITING).get();
+                if (next != null) {
+                    next.addAll(waiting);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the user id after the prefix and the limit parameter, or null after
+         *         answering 400 if either is invalid
+         */
+        private int[] parseUserAndLimit(ChannelHandlerContext context, HttpRequest request, QueryStringDecoder uri,
+            String prefix) {
+            int user;
+            int limit = defaultLimit;
+            try {
+                user = Integer.parseInt(uri.path().substring(prefix.length()));
+                List<String> limits = uri.parameters().get("limit");
+                if (limits != null && !limits.isEmpty())
+                    limit = Integer.parseInt(limits.get(0));
+            } catch (NumberFormatException e) {
+                respond(context, request, HttpResponseStatus.BAD_REQUEST, error("Invalid user id or limit"));
+                return null;
+            }
+            if (limit < 1) {
+                respond(context, request, HttpResponseStatus.BAD_REQUEST, error("limit must be positive"));
+                return null;
+            }
+            return new int[] { user, Math.min(limit, topN) };
+        }
+
+        private byte[] error(String message) {
+            return ("{\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private void respond(ChannelHandlerContext context, HttpRequest request, HttpResponseStatus status,
+            byte[] body) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                Unpooled.wrappedBuffer(body));
+            response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, body.length);
+            HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(request));
+            context.writeAndFlush(response);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+            logger.error("[FeedServer] " + cause);
+            context.close();
+        }
+    }
+
+    /**
+     * Load the latest rankings and serve them until the JVM is stopped
+     *
+     * Usage: FeedServer [port]
+     */
+    public static void main(String[] args) throws Exception {
+        ConfigSingleton.getInstance();
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : Config.SERVING_PORT;
+
+        FlexibleLogger logger = new FlexibleLogger(LogManager.getLogger(FeedServer.class), true, false);
+        FeedServer server = fromConfig(logger);
+        server.reload();
+        server.start(port, Config.SERVING_THREADS, Config.SERVING_RELOAD_SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.awaitClose();
+    }
+}
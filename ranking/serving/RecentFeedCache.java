@@ -0,0 +1,71 @@
+package instalite.ranking.serving;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The encoded responses to the most recently requested feeds of one generation, so a
+ * user reloading their feed is answered without encoding it again. Least recently used
+ * entries are evicted beyond the capacity, and the cache is replaced along with its
+ * generation, so it never serves rankings of an older one.
+ */
+public class RecentFeedCache {
+    private final Map<Long, byte[]> responses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity how many (user, limit) responses to keep
+     */
+    public RecentFeedCache(int capacity) {
+        int maxSize = Math.max(1, capacity);
+        this.responses = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static long key(int user, int limit) {
+        return ((long) user << 32) | (limit & 0xffffffffL);
+    }
+
+    /**
+     * @return the cached response, or null
+     */
+    public byte[] get(int user, int limit) {
+        byte[] response;
+        synchronized (responses) {
+            response = responses.get(key(user, limit));
+        }
+        if (response == null)
+            misses.increment();
+        else
+            hits.increment();
+        return response;
+    }
+
+    public void put(int user, int limit, byte[] response) {
+        synchronized (responses) {
+            responses.put(key(user, limit), response);
+        }
+    }
+
+    public int size() {
+        synchronized (responses) {
+            return responses.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
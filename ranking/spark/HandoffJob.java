@@ -0,0 +1,45 @@
+package instalite.ranking.spark;
+
+import org.apache.livy.JobContext;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.writer.ResultManifest;
+
+/**
+ * Runs a job that hands its result off as Parquet files and returns the files' manifest
+ * instead of the job's own (empty) result, since only a job's return value comes back
+ * from Livy. The client then loads the files, e.g. with FeedRankJob.loadRankings.
+ */
+public class HandoffJob extends SparkJob<ResultManifest> {
+    private static final long serialVersionUID = 1L;
+
+    private final SparkJob<?> job;
+
+    /**
+     * @param job the job, which is set to hand its result off
+     * @throws UnsupportedOperationException if the job cannot hand its result off
+     */
+    public HandoffJob(SparkJob<?> job, FlexibleLogger logger, Config config, boolean isLocal, boolean debug) {
+        super(logger, config, isLocal, debug);
+        this.job = job;
+        job.setResultHandoff(true);
+    }
+
+    @Override
+    public ResultManifest run(boolean debug) throws Exception {
+        job.initialize();
+        try {
+            job.run(debug);
+        } finally {
+            job.reportMetrics();
+        }
+        return job.getResultManifest();
+    }
+
+    @Override
+    public ResultManifest call(JobContext context) throws Exception {
+        job.call(context);
+        return job.getResultManifest();
+    }
+}
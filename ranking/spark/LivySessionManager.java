@@ -0,0 +1,352 @@
+package instalite.ranking.spark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.livy.JobHandle;
+import org.apache.livy.LivyClient;
+import org.apache.livy.LivyClientBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import instalite.ranking.config.Config;
+
+/**
+ * Keeps a Livy session warm between runs and submits SparkJobs to it.
+ *
+ * Starting a session on EMR (YARN application, Spark driver, executors) and uploading
+ * the shaded JAR take longer than a small ranking run, so instead of a new session per
+ * job the manager records its session's id and the SHA-256 of the JAR it was given in
+ * Config.LIVY_SESSION_FILE and reattaches to it next time, as long as Livy still reports
+ * it alive. The JAR is only uploaded when a session is started: classes already loaded in
+ * the session's driver cannot be replaced, so when the JAR's hash changes the old session
+ * is deleted and a new one started with the new JAR.
+ *
+ * Jobs are submitted asynchronously and run concurrently in the session (each Livy job
+ * runs on its own thread of the shared Spark driver), so e.g. the ranking and the
+ * recommendation jobs pay for one session start between them. {@link #await} polls and
+ * logs the state of a set of jobs (queued, started, succeeded, ...) until all are done,
+ * and cancels the rest if one fails or the wait is interrupted. Jobs still running when the
+ * JVM exits (e.g. on Ctrl-C) are cancelled too, by a shutdown hook that close() and
+ * shutdown() remove again, so a long-lived process can open managers repeatedly.
+ *
+ * close() detaches and leaves the session running (Livy deletes it after its idle timeout,
+ * livy.server.session.timeout); shutdown() deletes it. With no session file, a session
+ * lives exactly as long as the manager.
+ *
+ * https://livy.apache.org/docs/latest/rest-api.html
+ */
+public class LivySessionManager implements AutoCloseable {
+    static Logger logger = LogManager.getLogger(LivySessionManager.class);
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    // Session states in which jobs can (eventually) run
+    private static final String[] LIVE_STATES = { "not_started", "starting", "idle", "busy" };
+
+    private final String livyUrl;
+    private final String sessionFile;
+    private final int sessionId;
+    private final LivyClient client;
+    private final Map<String, JobHandle<?>> running = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Thread cancelOnExit;
+
+    private LivySessionManager(String livyUrl, String sessionFile, int sessionId, LivyClient client) {
+        this.livyUrl = livyUrl;
+        this.sessionFile = sessionFile;
+        this.sessionId = sessionId;
+        this.client = client;
+        // Ctrl-C should not leave jobs running in the session
+        this.cancelOnExit = new Thread(this::cancelAll, "LivySessionManager-cancel");
+        Runtime.getRuntime().addShutdownHook(cancelOnExit);
+    }
+
+    /**
+     * Attach to the warm session for the current JAR, or start one (and upload the JAR)
+     *
+     * @param livyUrl the Livy server, e.g. http://host:8998
+     * @return the manager; close() it when done
+     * @throws IOException if the session cannot be started or the JAR cannot be uploaded
+     * @throws InterruptedException if interrupted while waiting for the session
+     */
+    public static LivySessionManager open(String livyUrl)
+        throws IOException, URISyntaxException, InterruptedException, ExecutionException {
+        String sessionFile = Config.LIVY_SESSION_FILE;
+        File jar = new File(Config.JAR);
+        String jarHash = hash(jar);
+
+        Properties saved = readSessionFile(sessionFile);
+        if (saved != null) {
+            int savedId = Integer.parseInt(saved.getProperty("sessionId"));
+            String state = getState(livyUrl, savedId);
+            if (jarHash.equals(saved.getProperty("jarHash")) && isLive(state)) {
+                logger.info("Reusing Livy session " + savedId + " (" + state + ")");
+                LivyClient client = new LivyClientBuilder()
+                    .setURI(new URI(livyUrl + "/sessions/" + savedId))
+                    .build();
+                return new LivySessionManager(livyUrl, sessionFile, savedId, client);
+            }
+            if (isLive(state)) {
+                logger.info("JAR changed since Livy session " + savedId + " started; replacing the session");
+                deleteSession(livyUrl, savedId);
+            }
+        }
+
+        int sessionId = createSession(livyUrl);
+        logger.info("Started Livy session " + sessionId + ", waiting for it to come up");
+        waitUntilIdle(livyUrl, sessionId);
+        LivyClient client = new LivyClientBuilder()
+            .setURI(new URI(livyUrl + "/sessions/" + sessionId))
+            .build();
+        LivySessionManager manager = new LivySessionManager(livyUrl, sessionFile, sessionId, client);
+        try {
+            logger.info("Uploading " + jar + " to Livy session " + sessionId);
+            client.uploadJar(jar).get();
+        } catch (ExecutionException e) {
+            manager.shutdown();
+            throw e;
+        }
+        writeSessionFile(sessionFile, sessionId, jarHash);
+        return manager;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return true if Livy still has the session in a state in which jobs can run
+     * @throws IOException if Livy cannot be asked
+     */
+    public boolean isLive() throws IOException {
+        return isLive(getState(livyUrl, sessionId));
+    }
+
+    /**
+     * Submit a job to run in the session without waiting for it
+     *
+     * @param name what the job is called in logs and by {@link #await}
+     * @return the job's handle, a Future of its result
+     */
+    public <T> JobHandle<T> submit(String name, SparkJob<T> job) {
+        logger.info("Submitting " + name + " to Livy session " + sessionId);
+        JobHandle<T> handle = client.submit(job);
+        running.put(name, handle);
+        return handle;
+    }
+
+    /**
+     * Wait for jobs to finish, logging their states every pollMillis. If one fails or the
+     * wait is interrupted, the others are cancelled.
+     *
+     * @param jobs       the jobs by name
+     * @param pollMillis how often to log progress
+     * @throws ExecutionException if a job failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void await(Map<String, ? extends Future<?>> jobs, long pollMillis)
+        throws ExecutionException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            while (true) {
+                boolean done = true;
+                StringBuilder progress = new StringBuilder();
+                for (Map.Entry<String, ? extends Future<?>> job : jobs.entrySet()) {
+                    Future<?> handle = job.getValue();
+                    if (handle.isDone()) {
+                        // Throws if the job failed, which cancels the others below
+                        handle.get();
+                        running.values().remove(handle);
+                    } else {
+                        done = false;
+                    }
+                    progress.append(' ').append(job.getKey()).append('=')
+                        .append((handle instanceof JobHandle) ? ((JobHandle<?>) handle).getState()
+                            : handle.isDone() ? "DONE" : "RUNNING");
+                }
+                if (done)
+                    break;
+                logger.info("[" + (System.currentTimeMillis() - start) / 1000 + "s]" + progress);
+                Thread.sleep(pollMillis);
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            cancelAll();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancel every job that has not finished
+     */
+    public void cancelAll() {
+        synchronized (running) {
+            running.forEach((name, handle) -> {
+                if (!handle.isDone()) {
+                    logger.info("Cancelling " + name);
+                    handle.cancel(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Detach from the session, leaving it warm for the next run (unless there is no session file)
+     */
+    @Override
+    public void close() {
+        if (sessionFile == null || sessionFile.isEmpty()) {
+            shutdown();
+            return;
+        }
+        cancelAll();
+        removeShutdownHook();
+        client.stop(false);
+    }
+
+    /**
+     * Cancel the running jobs and delete the session
+     */
+    public void shutdown() {
+        cancelAll();
+        removeShutdownHook();
+        client.stop(true);
+        if (sessionFile != null && !sessionFile.isEmpty())
+            new File(sessionFile).delete();
+    }
+
+    private void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(cancelOnExit);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down, and the hook runs anyway
+        }
+    }
+
+    private static boolean isLive(String state) {
+        for (String live : LIVE_STATES) {
+            if (live.equals(state))
+                return true;
+        }
+        return false;
+    }
+
+    // POST /sessions: a session that accepts jobs from the programmatic API. Settings read when
+    // the context starts (the serializer) must be given here; the Kryo registrator is only
+    // loaded once jobs run, by which time the uploaded JAR is on the classpath.
+    private static int createSession(String livyUrl) throws IOException {
+        ObjectNode body = JSON.createObjectNode().put("kind", "shared");
+        ObjectNode conf = body.putObject("conf");
+        RankingKryoRegistrator.sparkSettings().forEach(conf::put);
+        JsonNode session = request("POST", livyUrl + "/sessions", JSON.writeValueAsString(body));
+        return session.get("id").asInt();
+    }
+
+    private static void waitUntilIdle(String livyUrl, int sessionId) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + Config.LIVY_SESSION_START_TIMEOUT * 1000L;
+        String state;
+        while (!"idle".equals(state = getState(livyUrl, sessionId))) {
+            if (!isLive(state) || System.currentTimeMillis() > deadline) {
+                deleteSession(livyUrl, sessionId);
+                throw new IOException("Livy session " + sessionId + " did not start (" + state + ")");
+            }
+            Thread.sleep(2000);
+        }
+    }
+
+    // GET /sessions/{id}/state, or null if there is no such session
+    private static String getState(String livyUrl, int sessionId) throws IOException {
+        JsonNode state = request("GET", livyUrl + "/sessions/" + sessionId + "/state", null);
+        return (state == null) ? null : state.get("state").asText();
+    }
+
+    private static void deleteSession(String livyUrl, int sessionId) throws IOException {
+        request("DELETE", livyUrl + "/sessions/" + sessionId, null);
+    }
+
+    // A request to the REST API: the JSON response, or null on 404
+    private static JsonNode request(String method, String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Content-Type", "application/json");
+            // Required by Livy's CSRF protection for anything but GET
+            connection.setRequestProperty("X-Requested-By", "instalite");
+            if (body != null) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+                return null;
+            if (status >= 300)
+                throw new IOException(method + " " + url + " returned " + status);
+            try (InputStream in = connection.getInputStream()) {
+                return JSON.readTree(in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String hash(File jar) throws IOException {
+        try (DigestInputStream in = new DigestInputStream(new FileInputStream(jar),
+            MessageDigest.getInstance("SHA-256"))) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) != -1) {
+                // Only digesting
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : in.getMessageDigest().digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Properties readSessionFile(String sessionFile) throws IOException {
+        if (sessionFile == null || sessionFile.isEmpty() || !new File(sessionFile).exists())
+            return null;
+        Properties saved = new Properties();
+        try (InputStream in = new FileInputStream(sessionFile)) {
+            saved.load(in);
+        }
+        return saved.containsKey("sessionId") ? saved : null;
+    }
+
+    private static void writeSessionFile(String sessionFile, int sessionId, String jarHash) throws IOException {
+        if (sessionFile == null || sessionFile.isEmpty())
+            return;
+        Properties saved = new Properties();
+        saved.setProperty("sessionId", Integer.toString(sessionId));
+        saved.setProperty("jarHash", jarHash);
+        try (OutputStream out = new FileOutputStream(sessionFile)) {
+            saved.store(out, "Warm Livy session (see LivySessionManager)");
+        }
+    }
+}
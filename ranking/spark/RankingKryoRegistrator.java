@@ -0,0 +1,133 @@
+package instalite.ranking.spark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.graphx.GraphXUtils;
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.serializer.KryoSerializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import instalite.ranking.adsorption.AdsorptionSerializers;
+import instalite.ranking.adsorption.DegreeCounts;
+import instalite.ranking.adsorption.FrontierState;
+import instalite.ranking.adsorption.LabelVector;
+import instalite.ranking.config.Config;
+import instalite.ranking.utils.SerializablePair;
+import scala.Tuple2;
+import scala.reflect.ClassTag$;
+
+/**
+ * Registers every type the ranking jobs shuffle, cache, broadcast or collect with Kryo,
+ * with compact serializers for the adsorption records (see AdsorptionSerializers).
+ *
+ * With spark.kryo.registrationRequired a type missing from here fails the job instead
+ * of silently being written with its full class name in every record, so add new record
+ * types here along with the code that shuffles them. Scala tuples, options and
+ * collections, boxed primitives, Strings and Spark's own types are registered by Spark
+ * (through chill) before this runs.
+ */
+public class RankingKryoRegistrator implements KryoRegistrator {
+    @Override
+    public void registerClasses(Kryo kryo) {
+        // Adsorption records: (node, labels), (node, frontier state), (node, degrees)
+        kryo.register(LabelVector.class, new AdsorptionSerializers.LabelVectorSerializer());
+        kryo.register(FrontierState.class, new AdsorptionSerializers.FrontierStateSerializer());
+        kryo.register(DegreeCounts.class, new AdsorptionSerializers.DegreeCountsSerializer());
+
+        // Collected results: (user, (post, weight)) and ((user, friend), strength)
+        kryo.register(SerializablePair.class, new SerializablePairSerializer());
+
+        // Primitive arrays held by cached and collected records
+        kryo.register(long[].class);
+        kryo.register(float[].class);
+        kryo.register(double[].class);
+        kryo.register(int[].class);
+        kryo.register(Object[].class);
+
+        // Arrays Spark builds of the records: a cogroup's buffers (pair joins) and GraphX's
+        // vertex attributes
+        kryo.register(LabelVector[].class);
+        kryo.register(sparkClass("[Lorg.apache.spark.util.collection.CompactBuffer;"));
+        // ... which carry the ClassTag of their (Java, so untyped) elements
+        kryo.register(ClassTag$.MODULE$.AnyRef().getClass());
+        kryo.register(ClassTag$.MODULE$.Any().getClass());
+
+        // Internals of GraphX's partitions that GraphXUtils leaves out, written when the GraphX
+        // engine checkpoints its graph
+        kryo.register(sparkClass("org.apache.spark.util.collection.OpenHashSet$LongHasher"));
+        kryo.register(sparkClass("org.apache.spark.graphx.util.collection.GraphXPrimitiveKeyOpenHashMap$mcJI$sp"));
+        kryo.register(ClassTag$.MODULE$.Long().getClass());
+        kryo.register(ClassTag$.MODULE$.Int().getClass());
+        // ... and the edge weights, boxed as the engine's edge ClassTag is java.lang.Double
+        kryo.register(Double[].class);
+
+        // Driver-side maps and sets broadcast to the executors (node dictionary, hubs)
+        kryo.register(HashMap.class);
+        kryo.register(HashSet.class);
+        kryo.register(ArrayList.class);
+        kryo.register(Collections.emptySet().getClass());
+        kryo.register(Collections.emptyMap().getClass());
+        kryo.register(Collections.emptyList().getClass());
+    }
+
+    // Spark-internal classes can only be named
+    private static Class<?> sparkClass(String name) {
+        try {
+            return Class.forName(name, false, RankingKryoRegistrator.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Spark class " + name + " not found", e);
+        }
+    }
+
+    /**
+     * The Spark settings that switch serialization to Kryo with these registrations, or none
+     * if Config.KRYO_SERIALIZATION is off. They only take effect when the context starts, so
+     * they go into the session builder locally and into the session request on Livy.
+     */
+    public static Map<String, String> sparkSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        if (!Config.KRYO_SERIALIZATION)
+            return settings;
+
+        SparkConf conf = new SparkConf(false)
+            .set("spark.serializer", KryoSerializer.class.getName())
+            .set("spark.kryo.registrator", RankingKryoRegistrator.class.getName())
+            .set("spark.kryo.registrationRequired", Boolean.toString(Config.KRYO_REGISTRATION_REQUIRED));
+        // GraphX's vertex and edge partitions, for the GraphX engine
+        GraphXUtils.registerKryoClasses(conf);
+        for (Tuple2<String, String> setting : conf.getAll())
+            settings.put(setting._1(), setting._2());
+        return settings;
+    }
+
+    /**
+     * [left] [right], each written with its class, since the pairs are generic
+     */
+    public static class SerializablePairSerializer extends Serializer<SerializablePair<?, ?>> {
+        public SerializablePairSerializer() {
+            setAcceptsNull(false);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, SerializablePair<?, ?> pair) {
+            kryo.writeClassAndObject(output, pair.getLeft());
+            kryo.writeClassAndObject(output, pair.getRight());
+        }
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        @Override
+        public SerializablePair<?, ?> read(Kryo kryo, Input input, Class<SerializablePair<?, ?>> type) {
+            return new SerializablePair(kryo.readClassAndObject(input), kryo.readClassAndObject(input));
+        }
+    }
+}
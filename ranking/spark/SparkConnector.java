@@ -1,6 +1,7 @@
 package instalite.ranking.spark;
 
 import java.io.File;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -53,13 +54,12 @@ public class SparkConnector {
                 if (config.SESSION_TOKEN != null)
                     sparkBuilder = sparkBuilder.config("spark.hadoop.fs.s3a.session.token", config.SESSION_TOKEN);
 
-                spark = sparkBuilder
+                spark = withSerializer(sparkBuilder)
                     .config("spark.hadoop.fs.s3a.endpoint", "s3.us-east-1.amazonaws.com")
                     .getOrCreate();
         } else {
                 logger.info("Credentials were not provided in .env: using AWS profile credentials");
-                spark = SparkSession
-                        .builder()
+                spark = withSerializer(SparkSession.builder())
                         .appName("Homework3")
                         .master((host == null) ? config.LOCAL_SPARK : host)
                         .config("spark.hadoop.fs.s3a.aws.credentials.provider", "com.amazonaws.auth.profile.ProfileCredentialsProvider")
@@ -71,6 +71,13 @@ public class SparkConnector {
         return spark;
     }
 
+    // Kryo with the ranking types registered (see RankingKryoRegistrator)
+    private static Builder withSerializer(Builder builder) {
+        for (Map.Entry<String, String> setting : RankingKryoRegistrator.sparkSettings().entrySet())
+            builder = builder.config(setting.getKey(), setting.getValue());
+        return builder;
+    }
+
     public static synchronized JavaSparkContext getSparkContext(Config config) {
         if (context == null)
             context = new JavaSparkContext(getSparkConnection(config).sparkContext());
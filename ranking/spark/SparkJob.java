@@ -1,24 +1,27 @@
 package instalite.ranking.spark;
 
-import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashSet;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.livy.Job;
 import org.apache.livy.JobContext;
-import org.apache.livy.LivyClient;
-import org.apache.livy.LivyClientBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.SparkSession;
 
 import instalite.ranking.config.Config;
+import instalite.ranking.loader.GraphTables;
+import instalite.ranking.loader.JdbcTableLoader;
+import instalite.ranking.loader.SnapshotTableLoader;
+import instalite.ranking.loader.SourceTable;
+import instalite.ranking.loader.TableLoadSettings;
+import instalite.ranking.metrics.RunMetrics;
 import instalite.ranking.spark.SparkConnector;
 import instalite.ranking.utils.FlexibleLogger;
+import instalite.ranking.writer.ResultManifest;
 
 /**
  * A basic Spark job with session info, initialize, shutdown, and run methods
@@ -39,9 +42,23 @@ public abstract class SparkJob<T> implements Job<T> {
     protected JavaSparkContext context;
     protected Config config;
 
+    /**
+     * Diagnostics of the current run, reported once when it ends
+     */
+    protected transient RunMetrics metrics;
+
+    /**
+     * Tables already loaded by an enclosing job (see shareTables)
+     */
+    protected transient GraphTables sharedTables;
+
     protected boolean isLocal = true;
     boolean run_with_debug = false;
 
+    // Read from Config when the job is built, so they travel with it to Livy
+    private TableLoadSettings tableLoadSettings = TableLoadSettings.fromConfig();
+    private String runReportDir = Config.RUN_REPORT_DIR;
+
     public SparkJob(FlexibleLogger logger, Config config, boolean isLocal, boolean debug) {
         System.setProperty("file.encoding", "UTF-8");
         this.isLocal = isLocal;
@@ -62,10 +79,71 @@ public abstract class SparkJob<T> implements Job<T> {
 
         spark = SparkConnector.getSparkConnection(config);
         context = SparkConnector.getSparkContext(config);
+        metrics = new RunMetrics(getClass().getSimpleName(), context, logger, runReportDir);
 
         logger.debug("Connected!");
     }
 
+    /**
+     * Log and write the metrics of the run, if it got as far as connecting to Spark
+     */
+    protected void reportMetrics() {
+        if (metrics != null)
+            metrics.report();
+    }
+
+    /**
+     * Load the given ranking source tables, from the Parquet snapshot cache if
+     * Config.SNAPSHOT_DIR was set when the job was built and straight from MySQL otherwise
+     *
+     * @param tables the tables to load (all of them if empty)
+     * @return the cached tables
+     * @throws IOException          if a table cannot be read
+     * @throws InterruptedException if loading is interrupted
+     */
+    protected GraphTables loadTables(SourceTable... tables) throws IOException, InterruptedException {
+        if (sharedTables != null && containsAll(sharedTables, tables))
+            return sharedTables;
+        if (tableLoadSettings.usesSnapshots())
+            return new SnapshotTableLoader(spark, logger, tableLoadSettings).loadAll(tables);
+        return new JdbcTableLoader(spark, logger, tableLoadSettings).loadAll(tables);
+    }
+
+    /**
+     * Use tables another job in the same Spark session has already loaded and cached, instead
+     * of loading them again. The job only reads them; whoever loaded them unpersists them.
+     */
+    public void shareTables(GraphTables tables) {
+        this.sharedTables = tables;
+    }
+
+    private static boolean containsAll(GraphTables loaded, SourceTable... tables) {
+        for (SourceTable table : (tables.length == 0) ? SourceTable.values() : tables) {
+            if (!loaded.contains(table))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the result as Parquet files under Config.RESULT_HANDOFF_DIR instead of writing it
+     * to MySQL or returning it, for the client to load (see HandoffJob). Jobs that can do
+     * so override this and getResultManifest().
+     *
+     * @throws UnsupportedOperationException if the job cannot hand its result off
+     */
+    public void setResultHandoff(boolean handoff) {
+        if (handoff)
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot hand its result off");
+    }
+
+    /**
+     * @return the files the last run handed its result off in, or null if it did not
+     */
+    public ResultManifest getResultManifest() {
+        return null;
+    }
+
     /**
      * Main functionality in the program: read and process the social network
      *
@@ -103,6 +181,7 @@ public abstract class SparkJob<T> implements Job<T> {
             e.printStackTrace();
             return null;
         } finally {
+            reportMetrics();
             shutdown();
         }
     }
@@ -110,7 +189,11 @@ public abstract class SparkJob<T> implements Job<T> {
     @Override
     public T call(JobContext arg0) throws Exception {
         initialize();
-        return run(run_with_debug);
+        try {
+            return run(run_with_debug);
+        } finally {
+            reportMetrics();
+        }
     }
 
     /**
@@ -139,7 +222,7 @@ public abstract class SparkJob<T> implements Job<T> {
 
     /**
      * Static method to run a SparkJob remotely at a Livy URL.
-     * Will create the Livy client, upload the JAR, and run the job.
+     * Will attach to the warm Livy session (or start one and upload the JAR) and run the job.
      *
      * @param <T>
      * @param livyUrl
@@ -151,23 +234,17 @@ public abstract class SparkJob<T> implements Job<T> {
      * @throws ExecutionException
      */
     public static <T> T runJob(String livyUrl, SparkJob<T> job) throws IOException, URISyntaxException, InterruptedException, ExecutionException {
-
-        LivyClient client = new LivyClientBuilder()
-                .setURI(new URI(livyUrl))
-                .build();
-
-        try {
-            String jar = Config.JAR;
-
-            System.out.printf("Uploading %s to the Spark context...\n", jar);
-            client.uploadJar(new File(jar)).get();
-
-            System.out.printf("Running job...\n");
-            T result = client.submit(job).get();
-
-            return result;
-        } finally {
-            client.stop(true);
+        try (LivySessionManager session = LivySessionManager.open(livyUrl)) {
+            return runJob(session, job);
         }
     }
+
+    /**
+     * Run a SparkJob in a Livy session the caller keeps open, e.g. across the runs of a daemon
+     */
+    public static <T> T runJob(LivySessionManager session, SparkJob<T> job) throws InterruptedException, ExecutionException {
+        job.logger.info("[SparkJob runJob()] Running " + job.getClass().getSimpleName() + " in Livy session "
+            + session.getSessionId());
+        return session.submit(job.getClass().getSimpleName(), job).get();
+    }
 }
@@ -0,0 +1,56 @@
+package instalite.ranking.utils;
+
+import org.apache.spark.util.AccumulatorV2;
+
+/**
+ * Spark accumulator that keeps the largest value added to it.
+ *
+ * Max is idempotent, so the value stays correct even if a task that updates it
+ * inside a transformation is retried or its partition is recomputed.
+ */
+public class MaxAccumulator extends AccumulatorV2<Double, Double> {
+    private static final long serialVersionUID = 1L;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    @Override
+    public boolean isZero() {
+        return max == Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public MaxAccumulator copy() {
+        MaxAccumulator copy = new MaxAccumulator();
+        copy.max = max;
+        return copy;
+    }
+
+    @Override
+    public void reset() {
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public void add(Double value) {
+        add(value.doubleValue());
+    }
+
+    public void add(double value) {
+        if (value > max)
+            max = value;
+    }
+
+    @Override
+    public void merge(AccumulatorV2<Double, Double> other) {
+        if (!other.isZero())
+            add(other.value());
+    }
+
+    /**
+     * @return the largest value added, or 0 if nothing was added
+     */
+    @Override
+    public Double value() {
+        return isZero() ? 0.0 : max;
+    }
+}
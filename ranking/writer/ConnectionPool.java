@@ -0,0 +1,107 @@
+package instalite.ranking.writer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A small, bounded pool of JDBC connections, one per database and user in each JVM.
+ *
+ * On an executor, every task writing to the same database borrows from the same pool, so
+ * the executor never holds more than maxSize connections however many cores it has, and
+ * later tasks (and later jobs) reuse the connections of earlier ones instead of opening
+ * their own. Tasks beyond maxSize wait for a connection to be returned. Idle connections
+ * are closed when the JVM exits.
+ */
+public class ConnectionPool {
+    private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(ConnectionPool::closeAll, "ConnectionPool-shutdown"));
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    private ConnectionPool(String url, String user, String password, int maxSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+    }
+
+    /**
+     * @param maxSize most connections open at once (only the first call for a database and user sets it)
+     * @return this JVM's pool for the database and user
+     */
+    public static ConnectionPool get(String url, String user, String password, int maxSize) {
+        return POOLS.computeIfAbsent(url + "|" + user, key -> new ConnectionPool(url, user, password, maxSize));
+    }
+
+    /**
+     * Close the idle connections of every pool
+     */
+    public static void closeAll() {
+        POOLS.values().forEach(ConnectionPool::closeIdle);
+    }
+
+    /**
+     * Wait for a free connection, reusing an idle one if it is still valid
+     *
+     * @return a connection to hand back with {@link #release(Connection, boolean)}
+     * @throws SQLException if a new connection cannot be opened
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Connection borrow() throws SQLException, InterruptedException {
+        permits.acquire();
+        try {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                if (connection.isValid(2))
+                    return connection;
+                closeQuietly(connection);
+            }
+            return DriverManager.getConnection(url, user, password);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a borrowed connection
+     *
+     * @param broken whether the connection failed, in which case it is closed rather than reused
+     */
+    public void release(Connection connection, boolean broken) {
+        try {
+            if (broken)
+                closeQuietly(connection);
+            else
+                idle.add(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void closeIdle() {
+        Connection connection;
+        while ((connection = idle.poll()) != null)
+            closeQuietly(connection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Nothing left to do with it
+        }
+    }
+}
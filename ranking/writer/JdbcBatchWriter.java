@@ -0,0 +1,198 @@
+package instalite.ranking.writer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.util.LongAccumulator;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.loader.JdbcTableLoader;
+import instalite.ranking.metrics.RunMetrics;
+
+/**
+ * Writes the rows of an RDD to MySQL from the executors, one partition per task, so the
+ * rows never pass through the driver and the inserts run on as many connections as there
+ * are tasks writing (bounded per executor by the {@link ConnectionPool}).
+ *
+ * Each partition is written in chunks of batchSize rows, each chunk one executeBatch() and
+ * one transaction; with rewriteBatchedStatements on the URL the driver sends a chunk as a
+ * few multi-row INSERTs rather than one round trip per row. A chunk that fails on a deadlock
+ * or lock wait timeout, e.g. when two tasks update neighbouring index ranges, is rolled back
+ * and retried with backoff, and Spark may run a task again after some of its chunks
+ * committed, so writing a row twice must not duplicate it. INSERT ... ON DUPLICATE KEY
+ * UPDATE is idempotent only if the target table has a primary or unique key over the
+ * columns that identify a row (post_rankings and recommendations are keyed by their pair
+ * of ids); on a table without one it appends every row again. Only the current chunk is
+ * held in memory.
+ *
+ * The writer is built on the driver and shipped with the task, so it carries its own
+ * connection settings. It can also write rows streamed in this JVM, e.g. a result read
+ * back from files on the client (see {@link ParquetResultLoader}), the same way.
+ */
+public class JdbcBatchWriter<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // MySQL error codes for a deadlock and a lock wait timeout, and the SQL state of a serialization failure
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    private final String driver;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String sql;
+    private final RowBinder<T> binder;
+    private final int batchSize;
+    private final int connectionsPerExecutor;
+    private final int maxRetries;
+
+    /**
+     * @param driver                 JDBC driver class, loaded before connecting (jars added to a
+     *                               running session are not seen by DriverManager otherwise)
+     * @param url                    JDBC URL of the database
+     * @param user                   database user
+     * @param password               database password
+     * @param sql                    the parameterized INSERT
+     * @param binder                 sets the INSERT's parameters from a row
+     * @param batchSize              rows per executeBatch() and transaction
+     * @param connectionsPerExecutor most connections open at once in one executor
+     * @param maxRetries             how often to retry a chunk that hit a deadlock
+     */
+    public JdbcBatchWriter(String driver, String url, String user, String password, String sql, RowBinder<T> binder,
+        int batchSize, int connectionsPerExecutor, int maxRetries) {
+        this.driver = driver;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.sql = sql;
+        this.binder = binder;
+        this.batchSize = Math.max(1, batchSize);
+        this.connectionsPerExecutor = connectionsPerExecutor;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return a writer to the configured MySQL database, with the configured batch size,
+     *         connections per executor and retries
+     */
+    public static <T> JdbcBatchWriter<T> fromConfig(String sql, RowBinder<T> binder) {
+        String url = JdbcTableLoader.getJdbcUrl() + "?rewriteBatchedStatements=true";
+        return new JdbcBatchWriter<>(Config.JDBC_DRIVER, url, Config.MYSQL_USER, Config.MYSQL_PASSWORD, sql, binder, Config.WRITE_BATCH_SIZE,
+            Config.WRITE_CONNECTIONS_PER_EXECUTOR, Config.WRITE_MAX_RETRIES);
+    }
+
+    /**
+     * Write every row, one task per partition
+     *
+     * @param name    what the rows are called in the run's metrics
+     * @param rows    the rows to write
+     * @param metrics the run's metrics, which count the rows written and the retried chunks
+     * @return the number of rows written
+     */
+    public long write(String name, JavaRDD<T> rows, RunMetrics metrics) {
+        LongAccumulator written = metrics.counter(name + "Written");
+        LongAccumulator retries = metrics.counter(name + "RetriedBatches");
+        rows.foreachPartition(partition -> writePartition(partition, written::add, retries::add));
+        return written.value();
+    }
+
+    /**
+     * Write the rows from this JVM, holding only one chunk of them in memory at a time
+     *
+     * @param rows the rows to write
+     * @return the number of rows written
+     * @throws IOException if a chunk cannot be written (after retries)
+     */
+    public long write(Iterator<T> rows) throws IOException, InterruptedException {
+        AtomicLong written = new AtomicLong();
+        try {
+            writePartition(rows, written::addAndGet, retried -> { });
+        } catch (SQLException | ClassNotFoundException e) {
+            throw new IOException("Could not write rows after " + written.get(), e);
+        }
+        return written.get();
+    }
+
+    private void writePartition(Iterator<T> rows, LongConsumer written, LongConsumer retries)
+        throws SQLException, InterruptedException, ClassNotFoundException {
+        if (!rows.hasNext())
+            return;
+        Class.forName(driver);
+
+        ConnectionPool pool = ConnectionPool.get(url, user, password, connectionsPerExecutor);
+        Connection connection = pool.borrow();
+        boolean broken = true;
+        try {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                List<T> chunk = new ArrayList<>(batchSize);
+                while (rows.hasNext()) {
+                    chunk.add(rows.next());
+                    if (chunk.size() == batchSize || !rows.hasNext()) {
+                        writeChunk(connection, statement, chunk, retries);
+                        written.accept(chunk.size());
+                        chunk.clear();
+                    }
+                }
+            }
+            connection.setAutoCommit(true);
+            broken = false;
+        } finally {
+            pool.release(connection, broken);
+        }
+    }
+
+    // One chunk in one transaction, retried from the start if it hits a deadlock
+    private void writeChunk(Connection connection, PreparedStatement statement, List<T> chunk,
+        LongConsumer retries) throws SQLException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                for (T row : chunk) {
+                    binder.bind(statement, row);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+                return;
+            } catch (SQLException e) {
+                statement.clearBatch();
+                connection.rollback();
+                if (attempt >= maxRetries || !isRetryable(e))
+                    throw e;
+                retries.accept(1);
+                // Exponential backoff with jitter, so the tasks that deadlocked do not collide again
+                long backoff = (50L << Math.min(attempt, 6)) + ThreadLocalRandom.current().nextLong(50);
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    /**
+     * @return whether the statement failed on a deadlock or lock wait timeout, and can be retried
+     */
+    static boolean isRetryable(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                if (sqlException.getErrorCode() == ER_LOCK_DEADLOCK
+                    || sqlException.getErrorCode() == ER_LOCK_WAIT_TIMEOUT
+                    || SERIALIZATION_FAILURE.equals(sqlException.getSQLState()))
+                    return true;
+                if (sqlException.getNextException() != null && isRetryable(sqlException.getNextException()))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+package instalite.ranking.writer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.utils.FlexibleLogger;
+
+/**
+ * Streams a result a job handed off as Parquet files (see {@link ParquetResultWriter})
+ * into MySQL from the client, file by file, through a {@link JdbcBatchWriter}: rows are
+ * read one at a time and written in the writer's chunks, so at most one chunk of the
+ * result is in memory however large it is.
+ *
+ * Rows are read as Parquet Groups, from which the writer's binder takes the primitive
+ * columns by name, e.g. group.getInteger("user_id", 0).
+ *
+ * A load can always be run again from the start: the files are only deleted once it
+ * succeeds, and rows are either written to a staging table that is recreated or upserted
+ * into a table whose key they replace rows by (post_rankings and recommendations are
+ * both keyed by their pair of ids), so {@link #withRetries} starts a failed load over a
+ * few times before giving up.
+ */
+public class ParquetResultLoader {
+    /**
+     * One attempt at loading a result, from its first file to deleting the files
+     */
+    @FunctionalInterface
+    public interface Attempt {
+        long run() throws IOException, InterruptedException;
+    }
+
+    private final Configuration conf;
+
+    /**
+     * @param conf Hadoop settings for the file system the files are on
+     */
+    public ParquetResultLoader(Configuration conf) {
+        this.conf = conf;
+    }
+
+    /**
+     * @return a loader with the same S3 credentials as the Spark session (see SparkConnector)
+     */
+    public static ParquetResultLoader fromConfig() {
+        return new ParquetResultLoader(clientConfiguration());
+    }
+
+    /**
+     * @return Hadoop settings with the same S3 credentials as the Spark session, for reading
+     *         and writing job files from the client
+     */
+    public static Configuration clientConfiguration() {
+        Configuration conf = new Configuration();
+        if (Config.ACCESS_KEY_ID != null) {
+            conf.set("fs.s3a.access.key", Config.ACCESS_KEY_ID);
+            conf.set("fs.s3a.secret.key", Config.SECRET_ACCESS_KEY);
+            if (Config.SESSION_TOKEN != null)
+                conf.set("fs.s3a.session.token", Config.SESSION_TOKEN);
+            conf.set("fs.s3a.endpoint", "s3.us-east-1.amazonaws.com");
+        } else {
+            conf.set("fs.s3a.aws.credentials.provider", "com.amazonaws.auth.profile.ProfileCredentialsProvider");
+            conf.set("fs.s3a.aws.credentials.profile.name", "default");
+        }
+        return conf;
+    }
+
+    /**
+     * Write every row of the result's files
+     *
+     * @param manifest the result, as returned by the job
+     * @param writer   writes the rows, with a binder that reads the result's columns
+     * @return the number of rows written
+     * @throws IOException if a file cannot be read or written, or the files hold a different
+     *                     number of rows than the manifest says
+     */
+    public long load(ResultManifest manifest, JdbcBatchWriter<Group> writer) throws IOException, InterruptedException {
+        long written = 0;
+        for (String file : manifest.getFiles()) {
+            try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), new Path(file))
+                .withConf(conf)
+                .build()) {
+                written += writer.write(new GroupIterator(reader));
+            } catch (UncheckedIOException e) {
+                throw new IOException("Could not read " + file, e.getCause());
+            }
+        }
+        if (written != manifest.getRows())
+            throw new IOException("Loaded " + written + " rows of " + manifest.getName() + ", but its manifest lists "
+                + manifest.getRows());
+        return written;
+    }
+
+    /**
+     * Run a load, starting it over up to Config.RESULT_HANDOFF_LOAD_ATTEMPTS times in all
+     *
+     * @param manifest the result being loaded
+     * @param logger   logs failed attempts
+     * @param attempt  the load
+     * @return what the successful attempt returned
+     * @throws IOException the last attempt's error, if none succeeded; the files are kept
+     */
+    public static long withRetries(ResultManifest manifest, FlexibleLogger logger, Attempt attempt)
+        throws IOException, InterruptedException {
+        int attempts = Math.max(1, Config.RESULT_HANDOFF_LOAD_ATTEMPTS);
+        for (int i = 1;; i++) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                if (i >= attempts)
+                    throw new IOException("Could not load " + manifest.getName() + " after " + attempts
+                        + " attempts; its files are kept in " + manifest.getDirectory(), e);
+                logger.error("[ParquetResultLoader] Loading " + manifest.getName() + " failed (attempt " + i + " of "
+                    + attempts + "), starting over: " + e);
+                Thread.sleep(1000L << Math.min(i, 6));
+            }
+        }
+    }
+
+    /**
+     * Delete the result's files, once they are loaded
+     *
+     * @throws IOException if the directory cannot be deleted
+     */
+    public void delete(ResultManifest manifest) throws IOException {
+        Path directory = new Path(manifest.getDirectory());
+        directory.getFileSystem(conf).delete(directory, true);
+    }
+
+    // The rows of one file, read as they are iterated
+    private static class GroupIterator implements Iterator<Group> {
+        private final ParquetReader<Group> reader;
+        private Group next;
+
+        GroupIterator(ParquetReader<Group> reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = reader.read();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Group next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Group row = next;
+            next = null;
+            return row;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package instalite.ranking.writer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.metrics.RunMetrics;
+
+import static org.apache.spark.sql.functions.col;
+
+/**
+ * Hands a large result off through files rather than through the Livy return value: the
+ * executors write the rows as compressed Parquet files under a fresh directory and the
+ * job returns only a {@link ResultManifest} of them, which the client passes to a
+ * {@link ParquetResultLoader} to stream the rows into MySQL.
+ *
+ * The rows should have primitive (int, long, float) columns, which Parquet stores
+ * unboxed and which the loader reads back without building Strings or objects per
+ * value. They are hash partitioned by a key column into a fixed number of files and
+ * sorted by the key within each file, so all of one user's rows are in one file and
+ * neighbouring values compress well.
+ *
+ * The writer is built on the client and travels with the job, so it carries its own
+ * settings.
+ */
+public class ParquetResultWriter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String root;
+    private final int files;
+    private final String compression;
+
+    /**
+     * @param root        directory each result gets a directory under, e.g. s3a://bucket/results
+     * @param files       how many files each result is written as
+     * @param compression Parquet compression codec, e.g. zstd or snappy
+     */
+    public ParquetResultWriter(String root, int files, String compression) {
+        this.root = root;
+        this.files = Math.max(1, files);
+        this.compression = compression;
+    }
+
+    /**
+     * @return a writer to the configured Config.RESULT_HANDOFF_DIR
+     */
+    public static ParquetResultWriter fromConfig() {
+        return new ParquetResultWriter(Config.RESULT_HANDOFF_DIR, Config.RESULT_HANDOFF_FILES,
+            Config.RESULT_HANDOFF_COMPRESSION);
+    }
+
+    /**
+     * Write the rows to [root]/[name]/[timestamp]
+     *
+     * @param name    what the result is called in its path and the run's metrics
+     * @param rows    the rows to write
+     * @param key     the column the files are partitioned and sorted by
+     * @param metrics the run's metrics, which record the rows, files and bytes written
+     * @return the manifest of the files
+     * @throws IOException if the written files cannot be listed
+     */
+    public ResultManifest write(String name, Dataset<Row> rows, String key, RunMetrics metrics) throws IOException {
+        Path directory = new Path(new Path(root, name), Long.toString(System.currentTimeMillis()));
+        rows.repartition(files, col(key))
+            .sortWithinPartitions(key)
+            .write()
+            .mode(SaveMode.ErrorIfExists)
+            .option("compression", compression)
+            .parquet(directory.toString());
+
+        // The row counts are in the files' footers, so nothing is read twice
+        Configuration conf = rows.sparkSession().sparkContext().hadoopConfiguration();
+        FileSystem fs = directory.getFileSystem(conf);
+        List<String> paths = new ArrayList<>();
+        long count = 0;
+        long bytes = 0;
+        for (FileStatus status : fs.listStatus(directory, path -> path.getName().endsWith(".parquet"))) {
+            try (ParquetFileReader reader = ParquetFileReader.open(HadoopInputFile.fromStatus(status, conf))) {
+                count += reader.getRecordCount();
+            }
+            paths.add(status.getPath().toString());
+            bytes += status.getLen();
+        }
+
+        ResultManifest manifest = new ResultManifest(name, directory.toString(), Arrays.asList(rows.columns()),
+            paths, count, bytes);
+        metrics.set(name + "HandoffRows", count);
+        metrics.set(name + "HandoffFiles", paths.size());
+        metrics.set(name + "HandoffBytes", bytes);
+        return manifest;
+    }
+}
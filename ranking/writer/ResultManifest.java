@@ -0,0 +1,70 @@
+package instalite.ranking.writer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where a job left a result it wrote as Parquet files (see {@link ParquetResultWriter}):
+ * the directory, its files and how many rows they hold. This is all that comes back
+ * through Livy; the rows themselves are streamed from the files by a
+ * {@link ParquetResultLoader}.
+ */
+public class ResultManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String directory;
+    private final List<String> columns;
+    private final List<String> files;
+    private final long rows;
+    private final long bytes;
+
+    /**
+     * @param name      what the result is, e.g. "rankings"
+     * @param directory the directory the files were written to
+     * @param columns   the files' columns, in order
+     * @param files     the full paths of the Parquet files
+     * @param rows      the number of rows over all files
+     * @param bytes     the size of all files
+     */
+    public ResultManifest(String name, String directory, List<String> columns, List<String> files, long rows,
+        long bytes) {
+        this.name = name;
+        this.directory = directory;
+        this.columns = new ArrayList<>(columns);
+        this.files = new ArrayList<>(files);
+        this.rows = rows;
+        this.bytes = bytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + rows + " rows " + columns + " in " + files.size() + " files (" + bytes + " bytes) at "
+            + directory;
+    }
+}
@@ -0,0 +1,14 @@
+package instalite.ranking.writer;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the parameters of a prepared INSERT from one row. Ships to the executors with the
+ * {@link JdbcBatchWriter}, so it must be serializable (a lambda assigned to it is).
+ */
+@FunctionalInterface
+public interface RowBinder<T> extends Serializable {
+    void bind(PreparedStatement statement, T row) throws SQLException;
+}
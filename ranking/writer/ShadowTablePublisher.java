@@ -0,0 +1,265 @@
+package instalite.ranking.writer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import instalite.ranking.config.Config;
+import instalite.ranking.config.ConfigSingleton;
+import instalite.ranking.loader.JdbcTableLoader;
+
+/**
+ * Publishes a new generation of a derived table (e.g. post_rankings) all at once.
+ *
+ * Instead of updating the live table in place, which holds row locks for the whole
+ * write and lets readers see a mix of old and new rows (and never drops stale ones),
+ * a run loads a fresh [table]_staging table and then swaps it in:
+ *
+ * 1) prepare(): (re)create the staging table LIKE the live one, without its secondary
+ *    indexes, so the load only maintains the primary key;
+ * 2) the rows are written into getStagingTable(), e.g. with a {@link JdbcBatchWriter};
+ * 3) publish(): build the secondary indexes in one ALTER TABLE, then RENAME TABLE the
+ *    live table to [table]_previous and the staging table to the live name in one
+ *    atomic statement, so readers switch from the old generation to the new one between
+ *    two queries and never wait on the load.
+ *
+ * The previous generation is kept until the next publish, and rollback() swaps it back.
+ * Every swap also counts up the table's generation in {@link #GENERATIONS_TABLE}, which
+ * readers poll to find a new generation (see FeedLoader): the information_schema times
+ * are no marker alone, as MySQL 8 caches UPDATE_TIME and does not persist it. The
+ * generation is counted after the swap, so a reader that sees it will read the new rows;
+ * readers also compare the live table's CREATE_TIME, which the swap changes, so a
+ * publisher that dies between the swap and the count does not hide the new generation.
+ * A table written in place can be marked with markGeneration() once the write is done.
+ * Generation tables carry no foreign keys: the rows are derived and rebuilt every run,
+ * and the previous generation must not keep users or posts from being deleted.
+ *
+ * Each step runs on the driver over its own JDBC connection. The publisher carries its
+ * own connection settings so it can travel with a Livy job.
+ */
+public class ShadowTablePublisher implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The table of generations: table_name, and generation, counted up from 1 per publish
+     */
+    public static final String GENERATIONS_TABLE = "table_generations";
+
+    private final String driver;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String table;
+
+    // Secondary indexes of the live table, name -> "[UNIQUE ]INDEX name (columns)", found by prepare()
+    private Map<String, String> indexes = new LinkedHashMap<>();
+
+    /**
+     * @param driver   JDBC driver class
+     * @param url      JDBC URL of the database
+     * @param user     database user
+     * @param password database password
+     * @param table    the live table
+     */
+    public ShadowTablePublisher(String driver, String url, String user, String password, String table) {
+        this.driver = driver;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.table = table;
+    }
+
+    /**
+     * @return a publisher for the given table in the configured MySQL database
+     */
+    public static ShadowTablePublisher fromConfig(String table) {
+        return new ShadowTablePublisher(Config.JDBC_DRIVER, JdbcTableLoader.getJdbcUrl(), Config.MYSQL_USER,
+            Config.MYSQL_PASSWORD, table);
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the table a run loads its rows into
+     */
+    public String getStagingTable() {
+        return table + "_staging";
+    }
+
+    /**
+     * @return the table holding the generation before the live one
+     */
+    public String getPreviousTable() {
+        return table + "_previous";
+    }
+
+    /**
+     * Create an empty staging table shaped like the live table, minus its secondary indexes
+     * and foreign keys. A staging table left behind by a failed run is dropped first.
+     *
+     * @throws IOException if the staging table cannot be created
+     */
+    public void prepare() throws IOException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            indexes = secondaryIndexes(connection, table);
+            statement.execute("DROP TABLE IF EXISTS " + getStagingTable());
+            statement.execute("CREATE TABLE " + getStagingTable() + " LIKE " + table);
+            if (!indexes.isEmpty()) {
+                List<String> drops = new ArrayList<>();
+                for (String index : indexes.keySet())
+                    drops.add("DROP INDEX " + quote(index));
+                statement.execute("ALTER TABLE " + getStagingTable() + " " + String.join(", ", drops));
+            }
+        } catch (SQLException | ClassNotFoundException e) {
+            throw new IOException("Could not prepare " + getStagingTable(), e);
+        }
+    }
+
+    /**
+     * Build the staging table's secondary indexes and swap it in for the live table,
+     * which becomes the previous generation (replacing the one before it)
+     *
+     * @throws IOException if the indexes cannot be built or the tables cannot be swapped;
+     *                     the live table is unchanged then
+     */
+    public void publish() throws IOException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            if (!indexes.isEmpty()) {
+                List<String> adds = new ArrayList<>();
+                for (String definition : indexes.values())
+                    adds.add("ADD " + definition);
+                statement.execute("ALTER TABLE " + getStagingTable() + " " + String.join(", ", adds));
+            }
+
+            statement.execute("DROP TABLE IF EXISTS " + getPreviousTable());
+            statement.execute("RENAME TABLE " + table + " TO " + getPreviousTable() + ", "
+                + getStagingTable() + " TO " + table);
+            nextGeneration(connection, table);
+            dropForeignKeys(connection, getPreviousTable());
+        } catch (SQLException | ClassNotFoundException e) {
+            throw new IOException("Could not publish " + getStagingTable() + " as " + table, e);
+        }
+    }
+
+    /**
+     * Swap the previous generation back in. The generation it replaces becomes the staging
+     * table, so a second rollback undoes the first.
+     *
+     * @throws IOException if there is no previous generation or the tables cannot be swapped
+     */
+    public void rollback() throws IOException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + getStagingTable());
+            statement.execute("RENAME TABLE " + table + " TO " + getStagingTable() + ", "
+                + getPreviousTable() + " TO " + table + ", " + getStagingTable() + " TO " + getPreviousTable());
+            nextGeneration(connection, table);
+        } catch (SQLException | ClassNotFoundException e) {
+            throw new IOException("Could not roll " + table + " back to " + getPreviousTable(), e);
+        }
+    }
+
+    /**
+     * Count up the live table's generation without swapping, after it was written in place
+     *
+     * @throws IOException if the generation cannot be written
+     */
+    public void markGeneration() throws IOException {
+        try (Connection connection = connect()) {
+            nextGeneration(connection, table);
+        } catch (SQLException | ClassNotFoundException e) {
+            throw new IOException("Could not mark a new generation of " + table, e);
+        }
+    }
+
+    /**
+     * Roll a table back to its previous generation
+     *
+     * Usage: ShadowTablePublisher rollback [table, default post_rankings]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !args[0].equals("rollback")) {
+            System.err.println("Usage: ShadowTablePublisher rollback [table]");
+            System.exit(-1);
+        }
+        ConfigSingleton.getInstance();
+        ShadowTablePublisher publisher = fromConfig((args.length > 1) ? args[1] : "post_rankings");
+        publisher.rollback();
+        System.out.println("Rolled " + publisher.getTable() + " back to its previous generation");
+    }
+
+    private Connection connect() throws SQLException, ClassNotFoundException {
+        Class.forName(driver);
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    // Count up the table's generation, creating the table of generations on first use
+    private static void nextGeneration(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + GENERATIONS_TABLE + " ("
+                + "table_name VARCHAR(64) NOT NULL PRIMARY KEY, "
+                + "generation BIGINT NOT NULL, "
+                + "published_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP)");
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + GENERATIONS_TABLE
+            + " (table_name, generation) VALUES (?, 1) ON DUPLICATE KEY UPDATE generation = generation + 1")) {
+            statement.setString(1, table);
+            statement.executeUpdate();
+        }
+    }
+
+    // Non-primary indexes of a table, as ALTER TABLE ... ADD clauses
+    private static Map<String, String> secondaryIndexes(Connection connection, String table) throws SQLException {
+        Map<String, List<String>> columns = new LinkedHashMap<>();
+        Map<String, Boolean> unique = new LinkedHashMap<>();
+        String query = "SELECT INDEX_NAME, COLUMN_NAME, SUB_PART, NON_UNIQUE FROM information_schema.STATISTICS "
+            + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + table + "' AND INDEX_NAME <> 'PRIMARY' "
+            + "ORDER BY INDEX_NAME, SEQ_IN_INDEX";
+        try (Statement statement = connection.createStatement(); ResultSet rows = statement.executeQuery(query)) {
+            while (rows.next()) {
+                String index = rows.getString(1);
+                String column = quote(rows.getString(2));
+                long prefix = rows.getLong(3);
+                if (!rows.wasNull())
+                    column += "(" + prefix + ")";
+                columns.computeIfAbsent(index, name -> new ArrayList<>()).add(column);
+                unique.put(index, rows.getInt(4) == 0);
+            }
+        }
+
+        Map<String, String> indexes = new LinkedHashMap<>();
+        columns.forEach((index, indexColumns) -> indexes.put(index, (unique.get(index) ? "UNIQUE " : "")
+            + "INDEX " + quote(index) + " (" + String.join(", ", indexColumns) + ")"));
+        return indexes;
+    }
+
+    // A table made by an older version of the backend still has its foreign keys
+    private static void dropForeignKeys(Connection connection, String table) throws SQLException {
+        List<String> foreignKeys = new ArrayList<>();
+        String query = "SELECT CONSTRAINT_NAME FROM information_schema.TABLE_CONSTRAINTS "
+            + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '" + table + "' AND CONSTRAINT_TYPE = 'FOREIGN KEY'";
+        try (Statement statement = connection.createStatement(); ResultSet rows = statement.executeQuery(query)) {
+            while (rows.next())
+                foreignKeys.add("DROP FOREIGN KEY " + quote(rows.getString(1)));
+        }
+        if (!foreignKeys.isEmpty()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ALTER TABLE " + table + " " + String.join(", ", foreignKeys));
+            }
+        }
+    }
+
+    private static String quote(String identifier) {
+        return "`" + identifier.replace("`", "``") + "`";
+    }
+}